@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps track of what has been received from one peer so ACKs can be delayed
+ * and coalesced. An ACK payload is cumulative:
+ * <pre>
+ * | cumulative sequence (2) | [ range start (2) | range end (2) ] ... |
+ * </pre>
+ * meaning everything up to and including the cumulative sequence number has
+ * arrived, plus each inclusive range beyond it. A lone two byte payload, which
+ * is what every ACK used to look like, is just an ACK with no ranges.
+ *
+ * A tracker only knows a cumulative sequence number if it was given one by
+ * {@link #resume(short)}; the first packet a fresh tracker sees says nothing
+ * about the ones before it, which may still be on their way. Likewise when a
+ * packet arrives too far ahead to keep track of, whatever is missing behind it
+ * can no longer be vouched for. Either way the tracker only reports ranges
+ * from then on, and the cumulative field is set to the start of the first
+ * range. A real cumulative ACK is always followed by a missing packet, so that
+ * can't be mistaken for one. The server gives each session a cumulative start
+ * when its HELLO arrives, so this is only the case for peers which don't send
+ * one.
+ *
+ * A lost packet is never sent again, so the gap it leaves stays open. When
+ * there are more ranges than fit in an ACK, the newest are sent; the older
+ * ones went out in earlier ACKs.
+ *
+ * ACKs are wanted right away whenever a packet opens or fills a gap, since the
+ * sender needs to hear about loss quickly; otherwise they wait until enough
+ * packets have piled up or the oldest unacknowledged one has waited long
+ * enough.
+ *
+ * All methods are synchronized since the receive thread and the ACK timer both
+ * use trackers.
+ *
+ * @author Kevin Raoofi
+ */
+public class AckTracker {
+
+    public static final int MAX_RANGES = 16;
+
+    private static final int WINDOW = 1024;
+    private static final int MASK = WINDOW - 1;
+
+    private final long[] seen;
+    /**
+     * Starts and ends of the newest ranges found by {@link #writeAck}, kept
+     * round robin
+     */
+    private final int[] ranges;
+    private final int ackEvery;
+    private final long delayNanos;
+    /**
+     * Everything up to here is either ACKed or given up on; bits are only set
+     * for sequence numbers after it, up to {@link #highest}
+     */
+    private int base;
+    private int highest;
+    /**
+     * Whether everything up to {@link #base} is known to have arrived
+     */
+    private boolean cumulative;
+    private boolean empty;
+    private int pending;
+    private long oldestPending;
+
+    /**
+     *
+     * @param ackEvery   ACK at least once per this many packets
+     * @param delayNanos longest a packet may wait to be ACKed
+     */
+    public AckTracker(int ackEvery, long delayNanos) {
+        this.seen = new long[WINDOW / 64];
+        this.ranges = new int[MAX_RANGES * 2];
+        this.ackEvery = Math.max(1, ackEvery);
+        this.delayNanos = delayNanos;
+        this.empty = true;
+    }
+
+    /**
+     * Records a newly arrived packet.
+     *
+     * @param sequence its sequence number
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return true if an ACK should be sent straight away
+     */
+    public synchronized boolean onReceive(short sequence, long nowNanos) {
+        int seq = sequence & 0xFFFF;
+        if (pending++ == 0) {
+            oldestPending = nowNanos;
+        }
+        if (empty) {
+            empty = false;
+            base = (seq - 1) & 0xFFFF;
+            highest = seq;
+            set(seq);
+            return pending >= ackEvery;
+        }
+
+        boolean inOrder = seq == ((highest + 1) & 0xFFFF);
+        if ((short) (seq - base) <= 0) {
+            if (cumulative || (short) (highest - seq) > WINDOW - 2) {
+                // already covered, or too old to track; the sender must have
+                // missed an ACK
+                return true;
+            }
+            // an early packet overtaken by later ones
+            base = (seq - 1) & 0xFFFF;
+            set(seq);
+            return true;
+        }
+        boolean hadGap = highest != base;
+        if ((short) (seq - base) >= WINDOW) {
+            // too far ahead to keep track of; stop tracking what's missing,
+            // but don't claim it either
+            int newBase = (seq - WINDOW) & 0xFFFF;
+            if ((short) (newBase - highest) >= 0) {
+                Arrays.fill(seen, 0);
+            } else {
+                for (int s = (base + 1) & 0xFFFF; s != ((newBase + 1) & 0xFFFF);
+                        s = (s + 1) & 0xFFFF) {
+                    clear(s);
+                }
+            }
+            base = newBase;
+            cumulative = false;
+        }
+
+        set(seq);
+        if ((short) (seq - highest) > 0) {
+            highest = seq;
+        }
+        if (!cumulative) {
+            return !inOrder || pending >= ackEvery;
+        }
+        while (highest != base && isSet(base + 1)) {
+            base = (base + 1) & 0xFFFF;
+            clear(base);
+        }
+        boolean gap = highest != base;
+        return gap || hadGap || pending >= ackEvery;
+    }
+
+    /**
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return true if a delayed ACK has waited long enough
+     */
+    public synchronized boolean isDue(long nowNanos) {
+        return pending > 0 && nowNanos - oldestPending >= delayNanos;
+    }
+
+    /**
+     * Writes out an ACK payload and marks everything as ACKed.
+     *
+     * @param buf where to write the payload
+     * @return false if nothing has been received yet
+     */
+    public synchronized boolean writeAck(ByteBuffer buf) {
+        if (empty) {
+            return false;
+        }
+        int found = 0;
+        int seq = (base + 1) & 0xFFFF;
+        while ((short) (highest - seq) >= 0) {
+            if (!isSet(seq)) {
+                seq = (seq + 1) & 0xFFFF;
+                continue;
+            }
+            int slot = (found++ % MAX_RANGES) * 2;
+            ranges[slot] = seq;
+            while (seq != highest && isSet(seq + 1)) {
+                seq = (seq + 1) & 0xFFFF;
+            }
+            ranges[slot + 1] = seq;
+            seq = (seq + 1) & 0xFFFF;
+        }
+        int first = found > MAX_RANGES ? found % MAX_RANGES : 0;
+        int count = Math.min(found, MAX_RANGES);
+        buf.putShort((short) (cumulative || count == 0 ? base
+                : ranges[first * 2]));
+        for (int i = 0; i < count; i++) {
+            int slot = ((first + i) % MAX_RANGES) * 2;
+            buf.putShort((short) ranges[slot]);
+            buf.putShort((short) ranges[slot + 1]);
+        }
+        pending = 0;
+        return true;
+    }
+
+    /**
+     * Picks up where an earlier tracker left off, with everything up to
+     * {@code sequence} received and ACKed. Only for a tracker which hasn't
+     * received anything yet.
+     *
+     * @param sequence the cumulative sequence number ACKed before
+     * @see StateSnapshot
+     */
+    public synchronized void resume(short sequence) {
+        if (!empty) {
+            throw new IllegalStateException("Tracker already in use");
+        }
+        empty = false;
+        cumulative = true;
+        base = sequence & 0xFFFF;
+        highest = base;
+    }
+
+    /**
+     *
+     * @param ack an ACK payload
+     * @return whether its cumulative field really is cumulative, rather than
+     *         the start of the first range
+     */
+    public static boolean isCumulative(ByteBuffer ack) {
+        int at = ack.position();
+        return ack.remaining() < 6 || ack.getShort(at) != ack.getShort(at + 2);
+    }
+
+    /**
+     *
+     * @return packets received since the last ACK was written
+     */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+    private boolean isSet(int seq) {
+        int bit = seq & MASK;
+        return (seen[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(int seq) {
+        int bit = seq & MASK;
+        seen[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(int seq) {
+        int bit = seq & MASK;
+        seen[bit >>> 6] &= ~(1L << bit);
+    }
+}
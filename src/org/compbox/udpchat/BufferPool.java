@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A small pool of heap {@link ByteBuffer}s bucketed into power of two size
+ * classes. Buffers handed out are always array backed so callers can copy
+ * straight into {@link ByteBuffer#array()}.
+ *
+ * Requests bigger than the largest size class are simply allocated and are
+ * dropped on the floor when released.
+ *
+ * @author Kevin Raoofi
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 11;
+
+    private final List<ArrayDeque<ByteBuffer>> classes;
+    private final int maxPerClass;
+
+    /**
+     * Constructs a pool with size classes up to
+     * {@link ChatPacketFactory#MAX_DATAGRAM_SIZE}, which is all datagrams
+     * need, keeping at most 16 idle buffers per class.
+     */
+    public BufferPool() {
+        this(ChatPacketFactory.MAX_DATAGRAM_SIZE, 16);
+    }
+
+    /**
+     *
+     * @param maxBufferSize the largest capacity that will be pooled
+     * @param maxPerClass   how many idle buffers to keep per size class
+     */
+    public BufferPool(int maxBufferSize, int maxPerClass) {
+        int count = Math.max(1, shiftFor(maxBufferSize) - MIN_SHIFT + 1);
+        this.classes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            classes.add(new ArrayDeque<>());
+        }
+        this.maxPerClass = maxPerClass;
+    }
+
+    private static int shiftFor(int capacity) {
+        if (capacity <= 1 << MIN_SHIFT) {
+            return MIN_SHIFT;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /**
+     * Gets a cleared buffer with at least {@code capacity} bytes of room.
+     *
+     * @param capacity the minimum capacity needed
+     * @return a cleared, array backed buffer
+     */
+    public synchronized ByteBuffer acquire(int capacity) {
+        int idx = shiftFor(capacity) - MIN_SHIFT;
+        if (idx >= classes.size()) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buf = classes.get(idx).poll();
+        if (buf == null) {
+            return ByteBuffer.allocate(1 << (idx + MIN_SHIFT));
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Hands a buffer back to the pool. The caller must not touch it afterwards.
+     *
+     * @param buf a buffer previously given out by {@link #acquire(int)}
+     */
+    public synchronized void release(ByteBuffer buf) {
+        int cap = buf.capacity();
+        if (Integer.bitCount(cap) != 1 || cap < 1 << MIN_SHIFT) {
+            return;
+        }
+        int idx = shiftFor(cap) - MIN_SHIFT;
+        if (idx < classes.size() && classes.get(idx).size() < maxPerClass) {
+            classes.get(idx).push(buf);
+        }
+    }
+}
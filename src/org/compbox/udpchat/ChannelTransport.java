@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A {@link DatagramTransport} backed by a {@link DatagramChannel}.
+ *
+ * @author Kevin Raoofi
+ */
+public class ChannelTransport implements DatagramTransport {
+
+    private final DatagramChannel channel;
+
+    /**
+     *
+     * @param channel the channel to use; blocking or not
+     */
+    public ChannelTransport(DatagramChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens a blocking channel.
+     *
+     * @param bind the local address, or null for any
+     * @return the transport
+     * @throws IOException if the channel can't be opened or bound
+     */
+    public static ChannelTransport open(SocketAddress bind) throws IOException {
+        return open(bind, TransportConfig.DEFAULT);
+    }
+
+    /**
+     * Opens a blocking channel with the given socket options.
+     *
+     * @param bind   the local address, or null for any
+     * @param config socket options to set before binding
+     * @return the transport
+     * @throws IOException if the channel can't be opened, set up or bound
+     */
+    public static ChannelTransport open(SocketAddress bind,
+            TransportConfig config) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            config.configure(channel);
+            channel.bind(bind);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return new ChannelTransport(channel);
+    }
+
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public void send(ByteBuffer buf, SocketAddress to) throws IOException {
+        channel.send(buf, to);
+    }
+
+    @Override
+    public SocketAddress receive(ByteBuffer buf) throws IOException {
+        return channel.receive(buf);
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return channel.getLocalAddress();
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws IOException {
+        return channel.getOption(StandardSocketOptions.SO_RCVBUF);
+    }
+
+    @Override
+    public void setReceiveBufferSize(int bytes) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -19,19 +19,29 @@ package org.compbox.udpchat;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
 import java.util.ArrayDeque;
-import java.util.NavigableSet;
 import java.util.Queue;
 import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.ACK;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.HELLO;
 import static org.compbox.udpchat.ChatPacketFactory.PacketType.MESSAGE;
 
 /**
- * Client code for each server. Client sockets are re-instantiated for each
- * packet sent. Mostly similar to {@link ChatServer} in implementation
+ * Client code for each server. The client socket is opened once and reused for
+ * every packet sent so the server sees a stable source address. Messages that
+ * don't fit in one datagram are split up by a {@link ChatPacketFragmenter}.
+ * Mostly similar to {@link ChatServer} in implementation
+ *
+ * Each client opens its session with a HELLO and holds messages back until the
+ * server echoes it, so a server which still remembers an earlier client at the
+ * same address starts this one's sequence numbers afresh.
  *
  * @author Kevin Raoofi
  */
@@ -39,7 +49,10 @@ public class ChatClient implements Runnable {
 
     private static final Logger LOG = Logger.getLogger(ChatClient.class
             .getName());
-    private final NavigableSet<ChatPacket> sentMsgs;
+    /**
+     * Messages sent which haven't been ACKed yet
+     */
+    private final SequenceRingBuffer<ChatPacket> sentMsgs;
     private final SortedSet<ChatPacket> allMsgs;
     private final ChatPacketFactory cpf;
     private final ByteBuffer buf;
@@ -47,29 +60,108 @@ public class ChatClient implements Runnable {
     private SocketAddress listeningAdd;
     private final Queue<String> msgQueue;
     private final ChatPacketDispatcher sentEvents;
-    private DatagramChannel clientSocket;
+    private final ChatPacketFragmenter fragmenter;
+    private final PayloadCompressor compressor;
+    private final PacketSealer sealer;
+    private boolean peerAcceptsCompression;
+    /**
+     * Random id for this client's run of sequence numbers; see
+     * {@link ChatPacketFactory.PacketType#HELLO}
+     */
+    private final long sessionId;
+    /**
+     * Whether the server has echoed our HELLO. Until it has, any ACK could be
+     * for an earlier session at this address, so ACKs are ignored.
+     */
+    private boolean established;
+    private int traceSampling;
+    private DatagramTransport clientSocket;
+    private TransportConfig transportConfig;
 
     public ChatClient(SortedSet<ChatPacket> allMsgs, SocketAddress add) {
-        cpf = new ChatPacketFactory();
-        buf = ByteBuffer.allocate(2048);
+        this(allMsgs, add, ChatPacketFragmenter.DEFAULT_MTU);
+    }
+
+    /**
+     *
+     * @param allMsgs where sent messages are recorded
+     * @param add     the server to send to
+     * @param mtu     the largest datagram to send before fragmenting
+     */
+    public ChatClient(SortedSet<ChatPacket> allMsgs, SocketAddress add,
+            int mtu) {
+        this(allMsgs, add, mtu, (byte) 0);
+    }
+
+    /**
+     *
+     * @param allMsgs where sent messages are recorded
+     * @param add     the server to send to
+     * @param mtu     the largest datagram to send before fragmenting
+     * @param version the protocol version to send with
+     * @see ChatPacketFactory#getCodec(byte)
+     */
+    public ChatClient(SortedSet<ChatPacket> allMsgs, SocketAddress add,
+            int mtu, byte version) {
+        this(allMsgs, null, add, mtu, version);
+    }
+
+    /**
+     *
+     * @param allMsgs   where sent messages are recorded
+     * @param transport where to send from, or null to open a socket on first
+     *                  use
+     * @param add       the server to send to
+     * @param mtu       the largest datagram to send before fragmenting
+     * @param version   the protocol version to send with
+     * @see ChatPacketFactory#getCodec(byte)
+     */
+    public ChatClient(SortedSet<ChatPacket> allMsgs,
+            DatagramTransport transport, SocketAddress add, int mtu,
+            byte version) {
+        ChatPacketFactory.getCodec(version);
+        clientSocket = transport;
+        cpf = new ChatPacketFactory(version);
+        buf = ByteBuffer.allocate(ChatPacketFactory.MAX_DATAGRAM_SIZE);
+        fragmenter = new ChatPacketFragmenter(mtu);
+        compressor = new PayloadCompressor();
+        sealer = new PacketSealer(new SessionKeyCache());
         this.add = add;
         msgQueue = new ArrayDeque<>();
         this.sentEvents = new ChatPacketDispatcher();
         this.allMsgs = allMsgs;
-        this.sentMsgs = new TreeSet<>(ChatPacket.getSequenceComparator());
+        this.sentMsgs = new SequenceRingBuffer<>(1024);
+        this.transportConfig = TransportConfig.DEFAULT;
+        long id;
+        while ((id = ThreadLocalRandom.current().nextLong()) == 0) {
+        }
+        this.sessionId = id;
 
-        sentEvents.register(MESSAGE, (pck, sa) -> sentMsgs.add(pck));
+        sentEvents.register(MESSAGE, (pck, sa) -> sentMsgs.put(pck
+                .getSequence(), pck));
         sentEvents.register(MESSAGE, (pck, sa) -> allMsgs.add(pck));
     }
 
+    /**
+     * Sets the socket options used whenever the client opens a channel, from
+     * the next {@link #resetChannel(SocketAddress)} or first send on.
+     *
+     * @param config socket options
+     */
+    public void setTransportConfig(TransportConfig config) {
+        this.transportConfig = config;
+    }
+
     public void resetChannel(SocketAddress listeningAdd) {
         try {
             this.listeningAdd = listeningAdd;
+            // the server sees a new peer now, so the session starts over
+            established = false;
             if (clientSocket != null) {
                 clientSocket.close();
             }
-            clientSocket = DatagramChannel.open();
-            clientSocket.bind(this.listeningAdd);
+            clientSocket = ChannelTransport.open(this.listeningAdd,
+                    transportConfig);
         } catch (IOException ex) {
             Logger.getLogger(ChatClient.class.getName()).log(Level.SEVERE, null,
                     ex);
@@ -79,44 +171,216 @@ public class ChatClient implements Runnable {
     @Override
     public void run() {
         try {
-            clientSocket = DatagramChannel.open();
-
-            buf.put(msgQueue.poll().getBytes());
-            buf.flip();
+            if (clientSocket == null) {
+                clientSocket = ChannelTransport.open(null, transportConfig);
+            }
+            if (!established) {
+                // messages wait for the echo, which sends them on
+                sendHello();
+                poll();
+            } else {
+                sendQueued();
+            }
+            if (established) {
+                poll();
+            }
+        } catch (Exception ex) {
+            LOG.log(Level.SEVERE, "Client error!", ex);
+        }
+    }
 
+    private void sendQueued() throws IOException, GeneralSecurityException {
+        while (!msgQueue.isEmpty()) {
             ChatPacket cp = cpf.createPacket(
-                    ChatPacketFactory.PacketType.MESSAGE, buf);
-            LOG.log(Level.INFO, "Finished crafting packet, data is: {0}", cp
-                    .toString());
-            buf.clear();
-            cp.toByteBuffer(buf);
-            buf.flip();
-            LOG.log(Level.INFO, "Sending packet...: {0}", cp.toString());
+                    ChatPacketFactory.PacketType.MESSAGE, msgQueue.poll()
+                    .getBytes(StandardCharsets.UTF_8));
+            if ((cpf.version & ChatPacketFactory.VERSION_MASK)
+                    == PacketCodecV1.VERSION) {
+                cp = cp.withSendTime(MonotonicClock.nowMicros(), nextTraceId());
+            }
+            LOG.log(Level.INFO, "Finished crafting packet, data is: {0}", cp);
+            LOG.log(Level.INFO, "Sending packet...: {0}", cp);
+            long overwritten = sentMsgs.getOverwrittenCount();
             sentEvents.dispatch(cp, add);
-            clientSocket.send(buf, add);
-            LOG.log(Level.INFO, "Sent packet: {0}", cp.toString());
+            if (sentMsgs.getOverwrittenCount() != overwritten) {
+                ChatEvents.drop(add, "unacknowledged message evicted");
+            }
+            ChatPacket wire = peerAcceptsCompression ? compressor.compress(cp)
+                    : cp;
+            wire = sealer.seal(wire, add);
+            if (fragmenter.needsFragmenting(wire)) {
+                fragmenter.fragment(wire, buf, (frag) -> clientSocket.send(
+                        frag, add));
+            } else {
+                buf.clear();
+                wire.toByteBuffer(buf);
+                buf.flip();
+                clientSocket.send(buf, add);
+            }
+            LOG.log(Level.INFO, "Sent packet: {0}", cp);
+        }
+    }
 
-            buf.clear();
-            clientSocket.receive(buf);
-            buf.flip();
-            cp = ChatPacketFactory.parsePacket(buf);
-            buf.clear();
+    /**
+     * Sends a HELLO with this client's session id, so the server forgets any
+     * earlier session from the same address before our MESSAGEs get there.
+     * It doesn't use up a sequence number; MESSAGEs still start from 0.
+     */
+    private void sendHello() throws IOException, GeneralSecurityException {
+        ChatPacket hello = new ChatPacket(HELLO.ID, cpf.version, (short) 0,
+                ByteBuffer.allocate(Long.BYTES).putLong(0, sessionId).array(),
+                Instant.now());
+        buf.clear();
+        sealer.seal(hello, add).toByteBuffer(buf);
+        buf.flip();
+        clientSocket.send(buf, add);
+        buf.clear();
+    }
 
-            LOG.log(Level.INFO,
-                    "Got Packet: {0}", cp);
-        } catch (Exception ex) {
-            LOG.log(Level.SEVERE, "Client error!", ex);
+    /**
+     * Handles a reply from the server, waiting for one if the transport
+     * blocks. {@link #run()} calls this after each send; with a non-blocking
+     * transport it should also be called whenever something arrives.
+     *
+     * @return false if nothing was waiting
+     * @throws IOException              if the transport is broken
+     * @throws GeneralSecurityException if the reply can't be opened
+     */
+    public boolean poll() throws IOException, GeneralSecurityException {
+        buf.clear();
+        if (clientSocket.receive(buf) == null) {
+            return false;
         }
+        ChatEvents.PacketReceived event = new ChatEvents.PacketReceived();
+        event.begin();
+        buf.flip();
+        int size = buf.remaining();
+        ChatPacket cp = ChatPacketFactory.parsePacket(buf);
+        buf.clear();
+        if (cp == null) {
+            ChatEvents.drop(add, "malformed");
+            return true;
+        }
+        cp = sealer.open(cp, add);
+        peerAcceptsCompression = PayloadCompressor.acceptsCompression(cp);
+        if (cp.getType() == HELLO.ID) {
+            if (!established && cp.getData().length == Long.BYTES
+                    && ByteBuffer.wrap(cp.getData()).getLong() == sessionId) {
+                established = true;
+                sendQueued();
+            }
+        } else if (cp.getType() == ACK.ID && established) {
+            onAck(cp);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.peer = String.valueOf(add);
+            event.bytes = size;
+            event.records = 1;
+            event.commit();
+        }
+
+        LOG.log(Level.INFO,
+                "Got Packet: {0}", cp);
+        return true;
     }
 
-    public NavigableSet<ChatPacket> getSentMsgs() {
+    /**
+     * Sets how often sent messages are sampled for tracing on the server. Send
+     * times and trace ids only go out with v1.
+     *
+     * @param oneIn trace one message in this many, or 0 to trace none
+     * @see ChatServer#setTraceSink(TraceSink)
+     */
+    public void setTraceSampling(int oneIn) {
+        if (oneIn < 0) {
+            throw new IllegalArgumentException("Bad sampling rate: " + oneIn);
+        }
+        this.traceSampling = oneIn;
+    }
+
+    private long nextTraceId() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        if (traceSampling == 0 || r.nextInt(traceSampling) != 0) {
+            return 0;
+        }
+        long id;
+        while ((id = r.nextLong()) == 0) {
+        }
+        return id;
+    }
+
+    /**
+     * Drops whatever an ACK covers from {@link #sentMsgs}. See
+     * {@link AckTracker} for the payload layout.
+     */
+    private void onAck(ChatPacket ack) {
+        ByteBuffer p = ByteBuffer.wrap(ack.getData());
+        if (p.remaining() < 2) {
+            return;
+        }
+        if (AckTracker.isCumulative(p)) {
+            sentMsgs.removeUpTo(p.getShort());
+        } else {
+            p.getShort();
+        }
+        while (p.remaining() >= 4) {
+            sentMsgs.removeRange(p.getShort(), p.getShort());
+        }
+    }
+
+    /**
+     * If the server has a session in here, everything sent to it is sealed
+     * with {@link PacketSealer}.
+     *
+     * @return the session keys used by this client
+     */
+    public SessionKeyCache getSessions() {
+        return sealer.getSessions();
+    }
+
+    /**
+     * Replaces getSentMsgs(), which returned every message sent; ACKed ones
+     * aren't kept any more.
+     *
+     * @return messages sent which haven't been ACKed yet
+     */
+    public SequenceRingBuffer<ChatPacket> getUnackedMsgs() {
         return sentMsgs;
     }
 
+    /**
+     *
+     * @return the id this client's HELLOs carry
+     */
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     *
+     * @return whether the server has answered this client's HELLO
+     */
+    public boolean isEstablished() {
+        return established;
+    }
+
     public SortedSet<ChatPacket> getAllMsgs() {
         return allMsgs;
     }
 
+    /**
+     * Adds handlers called with each packet once it has been sent, along with
+     * where it was sent.
+     *
+     * @param type          which packets to handle
+     * @param eventHandlers the handlers
+     */
+    public void register(ChatPacketFactory.PacketType type,
+            BiConsumer<ChatPacket, SocketAddress>... eventHandlers) {
+        this.sentEvents.register(type, eventHandlers);
+    }
+
     public void sendMsg(String msg) {
         msgQueue.add(msg);
         this.run();
@@ -0,0 +1,524 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs servers without a GUI, for production boxes. Configured from a
+ * properties file and/or the command line:
+ * <pre>
+ * java org.compbox.udpchat.ChatDaemon --config=chat.properties --workers=4
+ * </pre>
+ * with command line settings winning. The settings and their defaults:
+ * <dl>
+ * <dt>bind</dt><dd>comma separated host:port addresses to listen on</dd>
+ * <dt>workers</dt><dd>servers per address; more than one shares the port
+ * through SO_REUSEPORT and the kernel spreads peers between them</dd>
+ * <dt>receiveBuffer, sendBuffer</dt><dd>socket buffer sizes in bytes, 0 for
+ * the OS default</dd>
+ * <dt>autotuneMax</dt><dd>largest the receive buffer may grow to when it
+ * overflows, 0 not to grow it</dd>
+ * <dt>dataDir</dt><dd>where the history journal and snapshots go; empty to
+ * keep nothing</dd>
+ * <dt>snapshotSeconds, snapshotRecent</dt><dd>how often to snapshot, and how
+ * many recent messages each snapshot keeps</dd>
+ * <dt>admin</dt><dd>host:port of the HTTP admin endpoint; empty for none.
+ * {@code /stats} gives throughput, peers, queue depths and latency as JSON;
+ * {@code /health} answers 200 until shutdown starts, then 503</dd>
+ * <dt>shutdownSeconds</dt><dd>longest to wait for outbound queues to drain
+ * on shutdown</dd>
+ * </dl>
+ * Shutdown is graceful on SIGTERM or Ctrl-C: see
+ * {@link ChatServer#shutdown}.
+ *
+ * @author Kevin Raoofi
+ */
+public class ChatDaemon implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(ChatDaemon.class
+            .getName());
+
+    public static final Properties DEFAULTS = new Properties();
+
+    static {
+        DEFAULTS.setProperty("bind", "0.0.0.0:65434");
+        DEFAULTS.setProperty("workers", "1");
+        DEFAULTS.setProperty("receiveBuffer", "0");
+        DEFAULTS.setProperty("sendBuffer", "0");
+        DEFAULTS.setProperty("autotuneMax", "0");
+        DEFAULTS.setProperty("dataDir", "");
+        DEFAULTS.setProperty("snapshotSeconds", "60");
+        DEFAULTS.setProperty("snapshotRecent", String.valueOf(
+                StateSnapshot.DEFAULT_RECENT));
+        DEFAULTS.setProperty("admin", "127.0.0.1:8642");
+        DEFAULTS.setProperty("shutdownSeconds", "5");
+    }
+
+    private final SortedSet<ChatPacket> allMsgs;
+    private final List<ChatServer> servers;
+    private final HistoryJournal journal;
+    private final InetSocketAddress adminAddress;
+    private final long shutdownNanos;
+    private final ScheduledExecutorService sampler;
+    private final CountDownLatch stopped;
+    private final long started;
+    private HttpServer admin;
+    private volatile boolean stopping;
+
+    /**
+     * Received counts and per second rates as of the last sample, for each
+     * server
+     */
+    private final long[] lastCount;
+    private final long[] lastBytes;
+    private volatile double[] countRate;
+    private volatile double[] byteRate;
+    private long lastSample;
+
+    /**
+     * Opens the sockets and restores any saved state, but doesn't start
+     * serving until {@link #start()}.
+     *
+     * @param config settings; anything missing takes its default
+     * @throws IOException if a socket or the data directory can't be set up
+     */
+    public ChatDaemon(Properties config) throws IOException {
+        Properties p = new Properties(DEFAULTS);
+        for (String key : config.stringPropertyNames()) {
+            if (!DEFAULTS.containsKey(key)) {
+                throw new IllegalArgumentException("Unknown setting: " + key);
+            }
+            p.setProperty(key, config.getProperty(key));
+        }
+        int workers = intSetting(p, "workers", 1);
+        TransportConfig transport = TransportConfig.DEFAULT
+                .withReceiveBuffer(intSetting(p, "receiveBuffer", 0))
+                .withSendBuffer(intSetting(p, "sendBuffer", 0))
+                .withAutotune(intSetting(p, "autotuneMax", 0));
+        if (workers > 1) {
+            transport = transport.withReuse(true, true);
+        }
+        String admin = p.getProperty("admin").trim();
+        this.adminAddress = admin.isEmpty() ? null : parseAddress(admin);
+        this.shutdownNanos = TimeUnit.SECONDS.toNanos(intSetting(p,
+                "shutdownSeconds", 0));
+
+        this.allMsgs = Collections.synchronizedSortedSet(new TreeSet<>(
+                (ChatPacket o1, ChatPacket o2) -> {
+                    return o1.timestamp.compareTo(o2.timestamp);
+                }));
+        String dataDir = p.getProperty("dataDir").trim();
+        File dir = null;
+        if (!dataDir.isEmpty()) {
+            dir = new File(dataDir);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Can't create " + dir);
+            }
+            this.journal = new HistoryJournal(new File(dir, "history.journal"));
+        } else {
+            this.journal = null;
+        }
+
+        this.servers = new ArrayList<>();
+        try {
+            for (String bind : p.getProperty("bind").split(",")) {
+                InetSocketAddress address = parseAddress(bind.trim());
+                for (int i = 0; i < workers; i++) {
+                    ChatServer server = new ChatServer(allMsgs, address,
+                            transport);
+                    if (journal != null) {
+                        server.setJournal(journal);
+                        server.setSnapshots(new File(dir, "state-"
+                                + servers.size() + ".snapshot"), intSetting(p,
+                                        "snapshotRecent", 0), intSetting(p,
+                                        "snapshotSeconds", 1),
+                                TimeUnit.SECONDS);
+                    }
+                    servers.add(server);
+                }
+            }
+            if (journal != null) {
+                restore();
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (ChatServer server : servers) {
+                try {
+                    server.shutdown(0, TimeUnit.SECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            throw ex;
+        }
+
+        this.lastCount = new long[servers.size()];
+        this.lastBytes = new long[servers.size()];
+        this.countRate = new double[servers.size()];
+        this.byteRate = new double[servers.size()];
+        this.sampler = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "ChatDaemon-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.stopped = new CountDownLatch(1);
+        this.started = System.nanoTime();
+    }
+
+    /**
+     * Every server shares the journal and the message store, so each only
+     * loads its own snapshot and the journal tail is replayed once for all of
+     * them, from the oldest position any snapshot got to. A sender goes back
+     * to the workers whose snapshot knew it; one no snapshot knew could be
+     * hashed to any worker, so all of them learn it.
+     */
+    private void restore() throws IOException {
+        long from = Long.MAX_VALUE;
+        int recent = 0;
+        for (ChatServer server : servers) {
+            StateSnapshot snapshot = server.restoreSnapshot();
+            from = Math.min(from, snapshot == null ? 0 : snapshot
+                    .getJournalPosition());
+            recent += snapshot == null ? 0 : snapshot.getRecent().size();
+        }
+        int replayed = journal.replay(from, (cp, sa) -> {
+            allMsgs.add(cp);
+            if (sa == null) {
+                return;
+            }
+            boolean known = false;
+            for (ChatServer server : servers) {
+                if (server.getReplayWindow(sa) != null) {
+                    server.markReceived(sa, cp.getSequence());
+                    known = true;
+                }
+            }
+            if (!known) {
+                for (ChatServer server : servers) {
+                    server.markReceived(sa, cp.getSequence());
+                }
+            }
+        });
+        LOG.log(Level.INFO, "Restored {0} messages from {1} snapshots and {2} "
+                + "from the journal", new Object[]{recent, servers.size(),
+                    replayed});
+    }
+
+    private static int intSetting(Properties p, String key, int min) {
+        String value = p.getProperty(key).trim();
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min) {
+                return n;
+            }
+        } catch (NumberFormatException ex) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Bad " + key + ": " + value);
+    }
+
+    /**
+     *
+     * @param s host:port, with IPv6 hosts in brackets
+     * @return the address
+     */
+    static InetSocketAddress parseAddress(String s) {
+        int colon = s.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port: " + s);
+        }
+        String host = s.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        try {
+            int port = Integer.parseInt(s.substring(colon + 1));
+            return host.isEmpty() ? new InetSocketAddress(port)
+                    : new InetSocketAddress(host, port);
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Bad address: " + s, ex);
+        }
+    }
+
+    /**
+     * Reads settings from the command line: {@code --config=file} loads a
+     * properties file, and {@code --key=value} sets a single setting over
+     * whatever the file says.
+     *
+     * @param args command line arguments
+     * @return the settings
+     * @throws IOException if the config file can't be read
+     */
+    static Properties parseArgs(String... args) throws IOException {
+        Properties config = new Properties();
+        Properties overrides = new Properties();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected --key=value: "
+                        + arg);
+            }
+            String key = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            if (key.equals("config")) {
+                try (InputStream in = new FileInputStream(value)) {
+                    config.load(in);
+                }
+            } else {
+                overrides.setProperty(key, value);
+            }
+        }
+        config.putAll(overrides);
+        return config;
+    }
+
+    /**
+     * Starts each server on a thread of its own, the admin endpoint and the
+     * throughput sampler.
+     *
+     * @throws IOException if the admin endpoint can't be bound
+     */
+    public void start() throws IOException {
+        if (adminAddress != null) {
+            admin = HttpServer.create(adminAddress, 0);
+            admin.createContext("/stats", (ex) -> respond(ex, 200,
+                    "application/json", stats()));
+            admin.createContext("/health", (ex) -> respond(ex, stopping ? 503
+                    : 200, "text/plain", stopping ? "stopping\n" : "ok\n"));
+            admin.setExecutor(Executors.newSingleThreadExecutor((r) -> {
+                Thread t = new Thread(r, "ChatDaemon-admin");
+                t.setDaemon(true);
+                return t;
+            }));
+            admin.start();
+        }
+        lastSample = System.nanoTime();
+        sampler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        for (ChatServer server : servers) {
+            Thread t = new Thread(server, "ChatDaemon-server "
+                    + server.add);
+            t.setDaemon(true);
+            t.start();
+        }
+        LOG.log(Level.INFO, "Serving on {0}, admin on {1}", new Object[]{
+            getAddresses(), adminAddress});
+    }
+
+    private static void respond(HttpExchange ex, int status,
+            String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", contentType);
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Works out the receive rates since the last sample.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1e9;
+        lastSample = now;
+        double[] counts = new double[servers.size()];
+        double[] bytes = new double[servers.size()];
+        for (int i = 0; i < servers.size(); i++) {
+            long count = servers.get(i).getReceivedCount();
+            long b = servers.get(i).getReceivedBytes();
+            counts[i] = (count - lastCount[i]) / seconds;
+            bytes[i] = (b - lastBytes[i]) / seconds;
+            lastCount[i] = count;
+            lastBytes[i] = b;
+        }
+        countRate = counts;
+        byteRate = bytes;
+    }
+
+    /**
+     *
+     * @return what {@code /stats} answers with
+     */
+    String stats() {
+        double[] counts = countRate;
+        double[] bytes = byteRate;
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"uptimeSeconds\": ").append(TimeUnit.NANOSECONDS
+                .toSeconds(System.nanoTime() - started));
+        sb.append(",\n  \"stopping\": ").append(stopping);
+        sb.append(",\n  \"stored\": ").append(allMsgs.size());
+        if (journal != null) {
+            sb.append(",\n  \"journalAppended\": ").append(journal
+                    .getAppendedCount());
+        }
+        sb.append(",\n  \"servers\": [");
+        for (int i = 0; i < servers.size(); i++) {
+            ChatServer s = servers.get(i);
+            OutboundScheduler out = s.getOutbound();
+            LatencyHistogram latency = s.getLatencyHistogram();
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"address\": \"").append(s.add)
+                    .append('"');
+            sb.append(", \"receivedPerSecond\": ").append(Math.round(
+                    counts[i]));
+            sb.append(", \"bytesPerSecond\": ").append(Math.round(bytes[i]));
+            sb.append(", \"received\": ").append(s.getReceivedCount());
+            sb.append(", \"peers\": ").append(s.getPeerCount());
+            sb.append(", \"duplicates\": ").append(s.getDuplicateCount());
+            sb.append(", \"missing\": ").append(s.getMissingCount());
+            sb.append(",\n     \"outbound\": {");
+            for (OutboundScheduler.Lane lane : OutboundScheduler.Lane
+                    .values()) {
+                sb.append('"').append(lane.name().toLowerCase()).append(
+                        "\": ").append(out.getDepth(lane)).append(", ");
+            }
+            sb.append("\"sent\": ").append(out.getSentCount());
+            sb.append(", \"dropped\": ").append(out.getDroppedCount())
+                    .append('}');
+            sb.append(",\n     \"latencyMicros\": {\"count\": ").append(
+                    latency.getCount());
+            sb.append(", \"p50\": ").append(latency.getPercentile(50));
+            sb.append(", \"p90\": ").append(latency.getPercentile(90));
+            sb.append(", \"p99\": ").append(latency.getPercentile(99));
+            sb.append(", \"p999\": ").append(latency.getPercentile(99.9));
+            sb.append(", \"max\": ").append(latency.getMax()).append("}}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+    /**
+     *
+     * @return the servers, in the order of the bind addresses
+     */
+    public List<ChatServer> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    /**
+     *
+     * @return where each server is listening
+     */
+    public List<SocketAddress> getAddresses() {
+        List<SocketAddress> addresses = new ArrayList<>();
+        servers.forEach((s) -> addresses.add(s.add));
+        return addresses;
+    }
+
+    /**
+     *
+     * @return where the admin endpoint is listening, or null if it isn't
+     */
+    public InetSocketAddress getAdminAddress() {
+        return admin == null ? null : admin.getAddress();
+    }
+
+    public SortedSet<ChatPacket> getAllMsgs() {
+        return allMsgs;
+    }
+
+    /**
+     * Shuts every server down gracefully, then closes the journal and the
+     * admin endpoint. Safe to call more than once.
+     */
+    @Override
+    public synchronized void close() {
+        if (stopping) {
+            return;
+        }
+        stopping = true;
+        LOG.log(Level.INFO, "Shutting down");
+        long deadline = System.nanoTime() + shutdownNanos;
+        boolean drained = true;
+        try {
+            for (ChatServer server : servers) {
+                drained &= server.shutdown(Math.max(0, deadline - System
+                        .nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+        if (!drained) {
+            LOG.log(Level.WARNING, "Outbound queues didn't drain in time");
+        }
+        if (journal != null) {
+            try {
+                journal.sync();
+                journal.close();
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Couldn't close the journal", ex);
+            }
+        }
+        sampler.shutdown();
+        if (admin != null) {
+            admin.stop(0);
+        }
+        stopped.countDown();
+    }
+
+    /**
+     * Waits for {@link #close()} to finish.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitStopped() throws InterruptedException {
+        stopped.await();
+    }
+
+    public static void main(String... args) throws Exception {
+        ChatDaemon daemon;
+        try {
+            daemon = new ChatDaemon(parseArgs(args));
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: ChatDaemon [--config=file] "
+                    + "[--key=value]...");
+            System.err.println("Settings and defaults: " + DEFAULTS);
+            System.exit(2);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(daemon::close,
+                "ChatDaemon-shutdown"));
+        daemon.start();
+        daemon.awaitStopped();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds preset dictionaries for {@link DeflatePayloadCodec}.
+ *
+ * Deflate can only refer back 32KiB and codes near matches more cheaply than
+ * far ones, so the most useful strings go at the end of the dictionary.
+ *
+ * @author Kevin Raoofi
+ */
+public final class ChatDictionary {
+
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    /**
+     * Common chat phrases, least useful first
+     */
+    private static final String DEFAULT_TEXT
+            = "http://www. https://www. .com/ .org/ what's up? "
+            + "I don't know. I think that's good morning, good night, "
+            + "see you later, talk to you later, let me know if you "
+            + "have any questions about the meeting tomorrow. "
+            + "Can you send me the file? I'll be there in a few minutes. "
+            + "Sorry, I was away. No problem. Sounds good. "
+            + "Thank you! Thanks! lol haha :) :( :D ok okay yeah yes no "
+            + "what do you want to do when are you going to be "
+            + "where are you? how are you doing? I'm fine, and you? "
+            + "hello hi hey there the and that this with have you ";
+
+    private static final byte[] DEFAULT = DEFAULT_TEXT.getBytes(
+            StandardCharsets.UTF_8);
+
+    private ChatDictionary() {
+    }
+
+    /**
+     *
+     * @return a copy of the built in dictionary
+     */
+    public static byte[] getDefault() {
+        return DEFAULT.clone();
+    }
+
+    /**
+     * Trains a dictionary from sample messages. Words and two word phrases are
+     * counted across the samples and the ones which would save the most bytes,
+     * frequency times length, are kept until {@code maxSize} is reached.
+     *
+     * @param samples sample chat messages
+     * @param maxSize largest dictionary to produce
+     * @return the trained dictionary, most valuable strings last
+     */
+    public static byte[] train(Iterable<String> samples, int maxSize) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            String[] words = sample.split("\\s+");
+            for (int i = 0; i < words.length; i++) {
+                if (words[i].isEmpty()) {
+                    continue;
+                }
+                counts.merge(words[i] + ' ', 1, Integer::sum);
+                if (i + 1 < words.length) {
+                    counts.merge(words[i] + ' ' + words[i + 1] + ' ', 1,
+                            Integer::sum);
+                }
+            }
+        }
+
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(counts
+                .entrySet());
+        ranked.removeIf((e) -> e.getValue() < 2);
+        ranked.sort((e1, e2) -> Long.compare(score(e2), score(e1)));
+
+        List<byte[]> picked = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> e : ranked) {
+            byte[] b = e.getKey().getBytes(StandardCharsets.UTF_8);
+            if (size + b.length > maxSize) {
+                continue;
+            }
+            picked.add(b);
+            size += b.length;
+        }
+
+        Collections.reverse(picked);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        picked.forEach((b) -> out.write(b, 0, b.length));
+        return out.toByteArray();
+    }
+
+    private static long score(Map.Entry<String, Integer> e) {
+        return (long) e.getValue() * e.getKey().length();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for the datagram pipeline. They show up under
+ * "DatagramChat" next to the JVM's own GC and socket events. None of them
+ * capture a stack trace, and the duration events have thresholds, so a normal
+ * recording only picks up the slow cases. Emitters check
+ * {@link Event#isEnabled()} before filling in fields, so a disabled event
+ * costs about as much as allocating an object escape analysis gets rid of.
+ * jdk.jfr only exists from Java 11, so the project builds for 11 and up.
+ *
+ * @author Kevin Raoofi
+ */
+final class ChatEvents {
+
+    private static final String CATEGORY = "DatagramChat";
+
+    private ChatEvents() {
+    }
+
+    @Name("org.compbox.udpchat.PacketReceived")
+    @Label("Datagram Received")
+    @Description("A datagram read off the socket and everything done with it")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class PacketReceived extends Event {
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+
+        @Label("Records")
+        int records;
+    }
+
+    @Name("org.compbox.udpchat.PacketDispatched")
+    @Label("Packet Dispatched")
+    @Description("A packet run through its handlers")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class PacketDispatched extends Event {
+
+        @Label("Type")
+        String type;
+
+        @Label("Sequence")
+        int sequence;
+
+        @Label("Handlers")
+        int handlers;
+    }
+
+    @Name("org.compbox.udpchat.AckSent")
+    @Label("ACK Sent")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class AckSent extends Event {
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Cumulative Sequence")
+        int sequence;
+
+        @Label("Ranges")
+        int ranges;
+
+        @Label("Sealed")
+        boolean sealed;
+    }
+
+    @Name("org.compbox.udpchat.Retransmit")
+    @Label("Retransmit")
+    @Description("A peer sent a MESSAGE again, most likely after losing the "
+            + "ACK for it")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Retransmit extends Event {
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Sequence")
+        int sequence;
+    }
+
+    @Name("org.compbox.udpchat.Drop")
+    @Label("Packet Dropped")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Drop extends Event {
+
+        @Label("Peer")
+        String peer;
+
+        @Label("Reason")
+        String reason;
+    }
+
+    @Name("org.compbox.udpchat.StoreAppend")
+    @Label("Store Append")
+    @Description("A MESSAGE added to the message history")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static final class StoreAppend extends Event {
+
+        @Label("Sequence")
+        int sequence;
+
+        @Label("History Size")
+        int size;
+    }
+
+    /**
+     * Records a drop if anyone is listening.
+     *
+     * @param peer   who sent the packet
+     * @param reason why it was dropped
+     */
+    static void drop(Object peer, String reason) {
+        Drop e = new Drop();
+        if (e.isEnabled()) {
+            e.peer = String.valueOf(peer);
+            e.reason = reason;
+            e.commit();
+        }
+    }
+}
@@ -60,6 +60,21 @@ public class ChatPacket implements Serializable {
      */
     public transient final Instant timestamp;
 
+    /**
+     * When the sender sent the packet, in {@link MonotonicClock} microseconds,
+     * or 0 if it didn't say. Only v1 records carry this.
+     */
+    protected final long sendTime;
+    /**
+     * Trace id of a packet sampled for tracing, or 0 if it isn't being traced.
+     * Only v1 records carry this.
+     */
+    protected final long traceId;
+    /**
+     * The payload as text, made the first time it's asked for
+     */
+    private transient volatile MessageText text;
+
     /**
      * A {@code Comparator} which orders {@link ChatPacket} instances based on
      * its sequence number.
@@ -74,11 +89,52 @@ public class ChatPacket implements Serializable {
 
     protected ChatPacket(byte type, byte version, short sequence, byte[] data,
             Instant timestamp) {
+        this(type, version, sequence, data, timestamp, 0, 0);
+    }
+
+    protected ChatPacket(byte type, byte version, short sequence, byte[] data,
+            Instant timestamp, long sendTime, long traceId) {
         this.type = type;
         this.version = version;
         this.sequence = sequence;
         this.data = data;
         this.timestamp = timestamp;
+        this.sendTime = sendTime;
+        this.traceId = traceId;
+    }
+
+    /**
+     * Copies the packet with a different payload, keeping everything else
+     * including the header extensions.
+     *
+     * @param version the new version byte
+     * @param data    the new payload
+     * @return the new packet
+     */
+    protected ChatPacket withPayload(byte version, byte[] data) {
+        return new ChatPacket(type, version, sequence, data, timestamp,
+                sendTime, traceId);
+    }
+
+    /**
+     *
+     * @param timestamp the new timestamp
+     * @return a copy of the packet with a different timestamp
+     */
+    protected ChatPacket withTimestamp(Instant timestamp) {
+        return new ChatPacket(type, version, sequence, data, timestamp,
+                sendTime, traceId);
+    }
+
+    /**
+     *
+     * @param sendTime when it's being sent, from {@link MonotonicClock}
+     * @param traceId  a trace id, or 0 if it isn't being traced
+     * @return a copy of the packet carrying a send time and trace id
+     */
+    public ChatPacket withSendTime(long sendTime, long traceId) {
+        return new ChatPacket(type, version, sequence, data, timestamp,
+                sendTime, traceId);
     }
 
     public byte getVersion() {
@@ -107,18 +163,57 @@ public class ChatPacket implements Serializable {
         return this.data;
     }
 
+    /**
+     * The payload as UTF-8 text. It's only decoded when first used as
+     * characters, and kept after that.
+     *
+     * @return a view of the payload as text
+     */
+    public MessageText getText() {
+        MessageText t = text;
+        if (t == null) {
+            t = new MessageText(data);
+            text = t;
+        }
+        return t;
+    }
+
+    /**
+     *
+     * @return when the sender sent the packet, in {@link MonotonicClock}
+     *         microseconds, or 0 if unknown
+     */
+    public long getSendTime() {
+        return this.sendTime;
+    }
+
+    /**
+     *
+     * @return the trace id, or 0 if the packet isn't being traced
+     */
+    public long getTraceId() {
+        return this.traceId;
+    }
+
+    /**
+     * Writes the packet out using the codec picked by its version.
+     *
+     * @param buf where to write the packet
+     * @see ChatPacketFactory#getCodec(byte)
+     */
     public void toByteBuffer(ByteBuffer buf) {
-        buf.put(this.type);
-        buf.put(this.version);
-        buf.putShort(sequence);
-        buf.put(this.data);
+        ChatPacketFactory.getCodec(version).encode(this, buf);
     }
 
     @Override
     public String toString() {
+        // plain MESSAGEs are text; anything else is shown as bytes
+        boolean plain = type == ChatPacketFactory.PacketType.MESSAGE.ID
+                && (version & (ChatPacketFactory.FLAG_COMPRESSED
+                | ChatPacketFactory.FLAG_SEALED)) == 0;
         return "ChatPacket{" + "type=" + type + ", version=" + version
-                + ", sequence=" + sequence + ", data=" + Arrays.toString(data)
-                + '}';
+                + ", sequence=" + sequence + (plain ? ", text=" + getText()
+                        : ", data=" + Arrays.toString(data)) + '}';
     }
 
     @Override
@@ -122,9 +122,51 @@ public class ChatPacketDispatcher {
      */
     public void dispatch(ChatPacket cp, SocketAddress sa) {
         PacketType type = PacketType.getPacketType(cp.getType());
-        packetTypeMap.get(type).stream()
+        Collection<BiConsumer<ChatPacket, SocketAddress>> handlers
+                = packetTypeMap.get(type);
+        ChatEvents.PacketDispatched e = new ChatEvents.PacketDispatched();
+        e.begin();
+        handlers.stream()
                 .forEach((evh) -> {
                     evh.accept(cp, sa);
                 });
+        e.end();
+        if (e.shouldCommit()) {
+            e.type = type.name();
+            e.sequence = cp.getSequence() & 0xFFFF;
+            e.handlers = handlers.size();
+            e.commit();
+        }
+    }
+
+    /**
+     * Dispatches a packet, marking the end of each handler in a trace.
+     *
+     * @param cp    ChatPacket with the data
+     * @param sa    The destination address
+     * @param trace where to record handler timings; may be null
+     */
+    public void dispatch(ChatPacket cp, SocketAddress sa, PacketTrace trace) {
+        if (trace == null) {
+            dispatch(cp, sa);
+            return;
+        }
+        PacketType type = PacketType.getPacketType(cp.getType());
+        Collection<BiConsumer<ChatPacket, SocketAddress>> handlers
+                = packetTypeMap.get(type);
+        ChatEvents.PacketDispatched e = new ChatEvents.PacketDispatched();
+        e.begin();
+        int i = 0;
+        for (BiConsumer<ChatPacket, SocketAddress> evh : handlers) {
+            evh.accept(cp, sa);
+            trace.mark(type + " handler " + i++);
+        }
+        e.end();
+        if (e.shouldCommit()) {
+            e.type = type.name();
+            e.sequence = cp.getSequence() & 0xFFFF;
+            e.handlers = handlers.size();
+            e.commit();
+        }
     }
 }
@@ -18,6 +18,7 @@ package org.compbox.udpchat;
 
 import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.Arrays;
 
 /**
  * Since creating {@link ChatPacket}s are kind of a pain, this alleviates some
@@ -30,8 +31,36 @@ import java.time.Instant;
  */
 public class ChatPacketFactory {
 
-    private static final ChatPacketFactoryInterface defaultFact = ChatPacket::new;
+    /**
+     * The largest datagram any of the chat sockets will read or write. Anything
+     * bigger than this has to go through {@link ChatPacketFragmenter}.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 2048;
+
+    /**
+     * Bits of the version byte which hold the actual protocol version. The
+     * rest of the byte is used for flags.
+     */
+    public static final byte VERSION_MASK = 0x0F;
+    /**
+     * Version flag marking a payload compressed by {@link PayloadCompressor}
+     */
+    public static final byte FLAG_COMPRESSED = (byte) 0x80;
+    /**
+     * Version flag marking a payload encrypted by {@link PacketSealer}
+     */
+    public static final byte FLAG_SEALED = 0x40;
+    /**
+     * Version flag a host sets on its packets to advertise that it can take
+     * compressed payloads. Peers shouldn't compress until they've seen it.
+     */
+    public static final byte FLAG_ACCEPTS_COMPRESSION = 0x20;
+
     private final ChatPacketFactoryInterface fact;
+    /**
+     * Saved headers for each packet type, for codecs which allow it
+     */
+    private final byte[][] templates;
 
     /**
      * The version of the protocol
@@ -44,20 +73,44 @@ public class ChatPacketFactory {
     private short sequence;
 
     public ChatPacketFactory() {
-        version = 0;
-        fact = ChatPacket::new;
-        sequence = 0;
+        this((byte) 0);
+    }
+
+    /**
+     *
+     * @param version the version byte, including any flags, to stamp on every
+     *                packet created
+     */
+    public ChatPacketFactory(byte version) {
+        this(version, ChatPacket::new);
     }
 
     protected ChatPacketFactory(byte version, ChatPacketFactoryInterface fact) {
         this.version = version;
         this.sequence = 0;
         this.fact = fact;
+        this.templates = new byte[PacketType.values().length][];
+    }
+
+    /**
+     *
+     * @return the sequence number the next packet will get
+     */
+    public short getSequence() {
+        return sequence;
+    }
+
+    /**
+     *
+     * @param sequence the sequence number the next packet gets
+     */
+    public void setSequence(short sequence) {
+        this.sequence = sequence;
     }
 
     public ChatPacket createPacket(PacketType type) {
-        return fact.createInstance(type.ID, version, sequence++, new byte[2048],
-                Instant.now());
+        return fact.createInstance(type.ID, version, sequence++,
+                new byte[MAX_DATAGRAM_SIZE], Instant.now());
     }
 
     public ChatPacket createPacket(PacketType type, ByteBuffer content) {
@@ -67,19 +120,122 @@ public class ChatPacketFactory {
                 .now());
     }
 
+    /**
+     * Creates a packet around an existing array instead of copying it. The
+     * array must not be changed afterwards.
+     *
+     * @param type the type of packet
+     * @param data the payload
+     * @return the packet
+     */
+    public ChatPacket createPacket(PacketType type, byte[] data) {
+        return fact.createInstance(type.ID, version, sequence++, data, Instant
+                .now());
+    }
+
+    /**
+     * Writes a packet straight into an outbound buffer without creating a
+     * {@link ChatPacket}. The header is copied from a saved template where the
+     * codec allows it, with the sequence number patched in, so this is no more
+     * than a couple of bulk copies.
+     *
+     * @param type    the type of packet
+     * @param payload the payload, from its position to its limit; consumed
+     * @param out     where to write the record
+     * @return the sequence number the packet was given
+     */
+    public short encodePacket(PacketType type, ByteBuffer payload,
+            ByteBuffer out) {
+        PacketCodec codec = getCodec(version);
+        short seq = sequence++;
+        int offset = codec.getSequenceOffset();
+        int start;
+        if (offset >= 0) {
+            byte[] header = templates[type.ordinal()];
+            if (header == null) {
+                header = createTemplate(codec, type);
+                templates[type.ordinal()] = header;
+            }
+            start = out.position();
+            out.put(header);
+            out.putShort(start + offset, seq);
+        } else {
+            start = codec.beginRecord(out, type.ID, version, seq, payload
+                    .remaining());
+        }
+        out.put(payload);
+        codec.endRecord(out, start);
+        return seq;
+    }
+
+    private byte[] createTemplate(PacketCodec codec, PacketType type) {
+        ByteBuffer b = ByteBuffer.allocate(codec.getMaxOverhead());
+        codec.beginRecord(b, type.ID, version, (short) 0, 0);
+        return Arrays.copyOf(b.array(), b.position());
+    }
+
     public static ChatPacket parsePacket(ByteBuffer buf) {
         return parsePacket(buf, Instant.now());
     }
 
+    /**
+     * Reads one record from the buffer's position using whichever codec the
+     * record's version byte asks for. The position is left just past the
+     * record, so for codecs with a length field this can be called again to
+     * get at the next record in the same datagram.
+     *
+     * @param buf       the received data
+     * @param timestamp when the packet arrived
+     * @return the packet, or null if it is malformed or uses an unknown version
+     */
     public static ChatPacket parsePacket(ByteBuffer buf, Instant timestamp) {
-        byte bufType = buf.get();
-        byte bufVersion = buf.get();
-        short bufSequence = buf.getShort();
-        byte[] bufData = new byte[buf.remaining()];
-        buf.get(bufData);
+        PacketCodec codec = buf.remaining() < 2 ? null : codecFor(buf.get(buf
+                .position() + 1));
+        if (codec == null) {
+            buf.position(buf.limit());
+            return null;
+        }
+        return codec.decode(buf, new PacketHeader(), timestamp);
+    }
+
+    /**
+     * Decodes the header of the record at the buffer's position without
+     * moving the position or allocating anything.
+     *
+     * @param buf    the received data
+     * @param header filled in with what was found
+     * @return false if the record is malformed or uses an unknown version
+     */
+    public static boolean decodeHeader(ByteBuffer buf, PacketHeader header) {
+        PacketCodec codec = buf.remaining() < 2 ? null : codecFor(buf.get(buf
+                .position() + 1));
+        return codec != null && codec.decodeHeader(buf, header);
+    }
 
-        return defaultFact.createInstance(bufType, bufVersion, bufSequence,
-                bufData, timestamp);
+    /**
+     *
+     * @param version a version byte; flags are ignored
+     * @return the codec for that version
+     * @throws IllegalArgumentException if there is no such version
+     */
+    public static PacketCodec getCodec(byte version) {
+        PacketCodec codec = codecFor(version);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown protocol version: "
+                    + (version & VERSION_MASK));
+        }
+        return codec;
+    }
+
+    private static PacketCodec codecFor(byte version) {
+        switch (version & VERSION_MASK) {
+            case 0:
+                return PacketCodecV0.INSTANCE;
+            case PacketCodecV1.VERSION:
+                return PacketCodecV1.INSTANCE;
+            default:
+                return null;
+        }
     }
 
     @FunctionalInterface
@@ -96,7 +252,36 @@ public class ChatPacketFactory {
 
         MESSAGE((byte) 0x00),
         ACK((byte) 0x01),
-        UNKNOWN((byte) 0x00);
+        /**
+         * A slice of a larger packet. The sequence number of a fragment is the
+         * sequence number of the packet it belongs to.
+         *
+         * @see ChatPacketFragmenter
+         * @see FragmentReassembler
+         */
+        FRAGMENT((byte) 0x02),
+        /**
+         * Membership digest exchanged between cluster nodes
+         *
+         * @see ClusterNode
+         */
+        GOSSIP((byte) 0x03),
+        /**
+         * A MESSAGE one cluster node passes on to another which owns its
+         * sender
+         *
+         * @see ClusterNode
+         */
+        REPLICATE((byte) 0x04),
+        /**
+         * Opens a session: a client's random session id, which the server
+         * echoes back. Per peer state left over from an earlier session at the
+         * same address is thrown away.
+         *
+         * @see ChatServer#getSessionId(SocketAddress)
+         */
+        HELLO((byte) 0x05),
+        UNKNOWN((byte) 0xFF);
 
         public final byte ID;
 
@@ -110,6 +295,14 @@ public class ChatPacketFactory {
                     return MESSAGE;
                 case 0x01:
                     return ACK;
+                case 0x02:
+                    return FRAGMENT;
+                case 0x03:
+                    return GOSSIP;
+                case 0x04:
+                    return REPLICATE;
+                case 0x05:
+                    return HELLO;
                 default:
                     return UNKNOWN;
             }
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.FRAGMENT;
+
+/**
+ * Splits a {@link ChatPacket} which is too big for a single datagram into a
+ * run of {@link ChatPacketFactory.PacketType#FRAGMENT} packets no bigger than
+ * the configured MTU. Keeping datagrams under the path MTU avoids IP
+ * fragmentation, where losing any one IP fragment loses the whole datagram.
+ *
+ * Every fragment is an ordinary record in the original packet's wire format
+ * whose sequence number is that of the original packet, which doubles as the
+ * message id. Its payload is:
+ * <pre>
+ * | inner type (1) | index (2) | count (2) | total length (4) | chunk ... |
+ * </pre>
+ * All fragments except the last carry a full chunk, so the receiver can work
+ * out where each one goes without any extra offset field.
+ *
+ * @author Kevin Raoofi
+ * @see FragmentReassembler
+ */
+public class ChatPacketFragmenter {
+
+    /**
+     * The most any {@link PacketCodec} adds around a payload
+     */
+    public static final int MAX_PACKET_OVERHEAD = Math.max(
+            PacketCodecV0.INSTANCE.getMaxOverhead(),
+            PacketCodecV1.INSTANCE.getMaxOverhead());
+    /**
+     * Size of the fragment header following the regular packet header
+     */
+    public static final int FRAGMENT_HEADER_SIZE = 9;
+    /**
+     * Conservative default which fits in the IPv6 minimum MTU of 1280 with
+     * room to spare for IP and UDP headers.
+     */
+    public static final int DEFAULT_MTU = 1200;
+
+    private final int mtu;
+
+    public ChatPacketFragmenter() {
+        this(DEFAULT_MTU);
+    }
+
+    /**
+     *
+     * @param mtu the largest datagram, in bytes, this will produce
+     */
+    public ChatPacketFragmenter(int mtu) {
+        if (mtu <= MAX_PACKET_OVERHEAD + FRAGMENT_HEADER_SIZE
+                || mtu > ChatPacketFactory.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Unusable MTU: " + mtu);
+        }
+        this.mtu = mtu;
+    }
+
+    public int getMtu() {
+        return mtu;
+    }
+
+    /**
+     *
+     * @return the number of payload bytes that fit in a single fragment
+     */
+    public int getChunkSize() {
+        return mtu - MAX_PACKET_OVERHEAD - FRAGMENT_HEADER_SIZE;
+    }
+
+    /**
+     *
+     * @param cp the packet about to be sent
+     * @return true if the packet does not fit in a single datagram
+     */
+    public boolean needsFragmenting(ChatPacket cp) {
+        return ChatPacketFactory.getCodec(cp.getVersion()).getMaxOverhead()
+                + cp.getData().length > mtu;
+    }
+
+    /**
+     *
+     * @param payloadLength the size of the data to split
+     * @return number of fragments needed for the payload
+     */
+    public int fragmentCount(int payloadLength) {
+        int chunk = getChunkSize();
+        return Math.max(1, (payloadLength + chunk - 1) / chunk);
+    }
+
+    /**
+     * Writes out every fragment of the packet, one at a time, into {@code buf}
+     * and hands it to the sink. The buffer is reused for every fragment so the
+     * sink must be done with it before returning.
+     *
+     * @param cp   the packet to split
+     * @param buf  scratch buffer of at least {@link #getMtu()} bytes
+     * @param sink where to send each fragment
+     * @throws IOException if the sink fails
+     */
+    public void fragment(ChatPacket cp, ByteBuffer buf, FragmentSink sink)
+            throws IOException {
+        PacketCodec codec = ChatPacketFactory.getCodec(cp.getVersion());
+        byte[] data = cp.getData();
+        int chunk = getChunkSize();
+        int count = fragmentCount(data.length);
+        if (count > 0xFFFF) {
+            throw new IllegalArgumentException("Packet too large to fragment: "
+                    + data.length + " bytes");
+        }
+
+        for (int i = 0; i < count; i++) {
+            int offset = i * chunk;
+            int len = Math.min(chunk, data.length - offset);
+            buf.clear();
+            int start = codec.beginRecord(buf, FRAGMENT.ID, cp.getVersion(),
+                    cp.getSequence(), FRAGMENT_HEADER_SIZE + len);
+            buf.put(cp.getType());
+            buf.putShort((short) i);
+            buf.putShort((short) count);
+            buf.putInt(data.length);
+            buf.put(data, offset, len);
+            codec.endRecord(buf, start);
+            buf.flip();
+            sink.send(buf);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Receives each finished fragment from
+     * {@link #fragment(ChatPacket, ByteBuffer, FragmentSink)}
+     */
+    @FunctionalInterface
+    public static interface FragmentSink {
+
+        public void send(ByteBuffer fragment) throws IOException;
+    }
+}
@@ -16,20 +16,34 @@
  */
 package org.compbox.udpchat;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.NavigableSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
 import static org.compbox.udpchat.ChatPacketFactory.PacketType.*;
 
 /**
@@ -50,13 +64,70 @@ public class ChatServer implements Runnable {
     private static final Logger LOG = Logger.getLogger(ChatServer.class
             .getName());
 
-    private final DatagramChannel srvChannel;
+    private final DatagramTransport transport;
+    private final LongSupplier clock;
     private final ChatPacketFactory factory;
     private final ByteBuffer buf;
-    private final NavigableSet<ChatPacket> receivedMsgs;
+    private final ByteBuffer ackBuf;
+    /**
+     * Duplicate filters for each peer which has sent a MESSAGE
+     */
+    private final ConcurrentMap<SocketAddress, ReplayWindow> replayWindows;
+    /**
+     * What each peer has been sent ACKs for
+     */
+    private final ConcurrentMap<SocketAddress, AckTracker> ackTrackers;
+    /**
+     * The session each peer last sent a HELLO for
+     */
+    private final ConcurrentMap<SocketAddress, Long> sessionIds;
+    private int ackEvery;
+    private long ackDelayNanos;
+    /**
+     * Puts each peer's MESSAGEs back in order, if enabled
+     */
+    private final ConcurrentMap<SocketAddress, ReorderBuffer> reorderBuffers;
+    private long reorderHoldNanos;
+    private int reorderMaxBytes;
+    /**
+     * When each peer the server keeps state for was last heard from, by the
+     * server's clock
+     */
+    private final ConcurrentMap<SocketAddress, AtomicLong> lastHeard;
+    private long peerIdleNanos;
+    /**
+     * What the duplicate filters of forgotten peers and sessions had counted,
+     * so the totals across all peers never go backwards
+     */
+    private final LongAdder forgottenDuplicates;
+    private final LongAdder forgottenMissing;
+    private final LongAdder forgottenOutOfWindow;
+    private volatile ScheduledExecutorService timer;
+    /**
+     * One way latency of MESSAGEs which carried a send time
+     */
+    private final LatencyHistogram latency;
+    private final ReceiveBufferMonitor bufferMonitor;
+    private volatile TraceSink traceSink;
+    private ClusterNode cluster;
+    private volatile PacketFilter filter;
+    private HistoryJournal journal;
+    private File snapshotFile;
+    private int snapshotRecent;
+    private long snapshotPeriodNanos;
+    private volatile boolean stopping;
+    /**
+     * Datagrams and bytes read; only the receiving thread writes these
+     */
+    private volatile long receivedCount;
+    private volatile long receivedBytes;
 
     private final SortedSet<ChatPacket> allMsgs;
     private final ChatPacketDispatcher dispatcher;
+    private final FragmentReassembler reassembler;
+    private final PayloadCompressor compressor;
+    private final PacketSealer sealer;
+    private final OutboundScheduler outbound;
 
     public ChatServer(SortedSet<ChatPacket> allMsgs) throws IOException {
         this(allMsgs, new InetSocketAddress(65434));
@@ -65,13 +136,59 @@ public class ChatServer implements Runnable {
 
     public ChatServer(SortedSet<ChatPacket> allMsgs, SocketAddress add)
             throws IOException {
-        this.srvChannel = DatagramChannel.open();
-        this.factory = new ChatPacketFactory();
-        this.add = add;
-        this.srvChannel.bind(add);
-        this.buf = ByteBuffer.allocate(2048);
-        this.receivedMsgs = new TreeSet<>(ChatPacket
-                .getSequenceComparator());
+        this(allMsgs, add, TransportConfig.DEFAULT);
+    }
+
+    /**
+     *
+     * @param allMsgs where received messages are stored
+     * @param add     the address to listen on
+     * @param config  socket options for the server's channel, including
+     *                whether to grow its receive buffer when it overflows
+     * @throws IOException if the channel can't be opened, set up or bound
+     */
+    public ChatServer(SortedSet<ChatPacket> allMsgs, SocketAddress add,
+            TransportConfig config) throws IOException {
+        this(allMsgs, ChannelTransport.open(add, config), System::nanoTime);
+        bufferMonitor.setMaxBuffer(config.getMaxReceiveBuffer());
+    }
+
+    /**
+     *
+     * @param allMsgs   where received messages are stored
+     * @param transport where datagrams come from and go
+     * @param clock     source of {@link System#nanoTime()} style readings for
+     *                  the protocol's timers, such as delayed ACKs and
+     *                  reordering; latency and tracing always use the real
+     *                  clock
+     * @throws IOException if the transport is closed
+     */
+    public ChatServer(SortedSet<ChatPacket> allMsgs,
+            DatagramTransport transport, LongSupplier clock)
+            throws IOException {
+        this.transport = transport;
+        this.clock = clock;
+        this.factory = new ChatPacketFactory(
+                ChatPacketFactory.FLAG_ACCEPTS_COMPRESSION);
+        this.add = transport.getLocalAddress();
+        this.buf = ByteBuffer.allocate(ChatPacketFactory.MAX_DATAGRAM_SIZE);
+        this.ackBuf = ByteBuffer.allocate(ChatPacketFactory.MAX_DATAGRAM_SIZE);
+        this.reassembler = new FragmentReassembler();
+        this.compressor = new PayloadCompressor();
+        this.sealer = new PacketSealer(new SessionKeyCache());
+        this.outbound = new OutboundScheduler(transport::send);
+        this.replayWindows = new ConcurrentHashMap<>();
+        this.ackTrackers = new ConcurrentHashMap<>();
+        this.sessionIds = new ConcurrentHashMap<>();
+        this.ackEvery = 1;
+        this.reorderBuffers = new ConcurrentHashMap<>();
+        this.lastHeard = new ConcurrentHashMap<>();
+        this.peerIdleNanos = TimeUnit.MINUTES.toNanos(5);
+        this.forgottenDuplicates = new LongAdder();
+        this.forgottenMissing = new LongAdder();
+        this.forgottenOutOfWindow = new LongAdder();
+        this.latency = new LatencyHistogram();
+        this.bufferMonitor = new ReceiveBufferMonitor(transport, 0);
 
         this.allMsgs = allMsgs;
 //        this.allMsgs = Collections.synchronizedSortedSet(new TreeSet<>(
@@ -81,61 +198,916 @@ public class ChatServer implements Runnable {
 
         this.dispatcher = ChatPacketDispatcher.constructWithLoggingConsumers();
 
-        dispatcher.register(MESSAGE, (pck, sa) -> receivedMsgs.add(pck));
-        dispatcher.register(MESSAGE, (pck, sa) -> allMsgs.add(pck));
-
         dispatcher.register(MESSAGE, (pck, sa) -> {
-            try {
-                buf.putShort(pck.getSequence());
-                buf.flip();
-                ChatPacket cp = factory.createPacket(
-                        ChatPacketFactory.PacketType.ACK, buf);
+            ChatEvents.StoreAppend e = new ChatEvents.StoreAppend();
+            e.begin();
+            allMsgs.add(pck);
+            e.end();
+            if (e.shouldCommit()) {
+                e.sequence = pck.getSequence() & 0xFFFF;
+                e.size = allMsgs.size();
+                e.commit();
+            }
+        });
+    }
 
-                LOG.log(Level.INFO, "Sending ACK: {0}", cp);
-                buf.clear();
-                cp.toByteBuffer(buf);
-                buf.flip();
-                this.srvChannel.send(buf, sa);
+    /**
+     * Holds back ACKs so several MESSAGEs can be covered by one cumulative
+     * ACK. A peer gets an ACK once every {@code everyPackets} MESSAGEs or
+     * when the oldest unacknowledged one has waited {@code delay}, whichever
+     * comes first. Anything that opens or fills a gap is still ACKed right
+     * away. Must be called before the server is started; by default every
+     * MESSAGE is ACKed as soon as it arrives.
+     *
+     * @param everyPackets most MESSAGEs covered by one ACK
+     * @param delay        longest an ACK is held back
+     * @param unit         unit of {@code delay}
+     */
+    public void setDelayedAcks(int everyPackets, long delay, TimeUnit unit) {
+        if (everyPackets < 1 || delay < 0) {
+            throw new IllegalArgumentException("Bad delayed ACK settings");
+        }
+        this.ackEvery = everyPackets;
+        this.ackDelayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Delivers each peer's MESSAGEs to handlers in sequence order. MESSAGEs
+     * which arrive ahead of a gap are held until it fills or until they have
+     * been held for {@code maxHold}, whichever comes first. Must be called
+     * before the server is started; by default MESSAGEs are handled in the
+     * order they arrive.
+     *
+     * @param maxHold  longest a MESSAGE is held back
+     * @param unit     unit of {@code maxHold}
+     * @param maxBytes most payload bytes held for each peer
+     * @see ReorderBuffer
+     */
+    public void setReordering(long maxHold, TimeUnit unit, int maxBytes) {
+        if (maxHold <= 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Bad reordering settings");
+        }
+        this.reorderHoldNanos = unit.toNanos(maxHold);
+        this.reorderMaxBytes = maxBytes;
+    }
+
+    /**
+     * Forgets peers which haven't been heard from for {@code idle}: their
+     * duplicate filter, ACK state, session id and anything held back for
+     * reordering, which is handed on first. Keeps addresses which send once
+     * and never again, spoofed or not, from piling up. A peer heard from
+     * again after that is treated as new. Must be called before the server
+     * is started; by default peers are forgotten after five minutes.
+     *
+     * @param idle how long a peer can be quiet before it's forgotten
+     * @param unit unit of {@code idle}
+     */
+    public void setPeerIdleTimeout(long idle, TimeUnit unit) {
+        if (idle <= 0) {
+            throw new IllegalArgumentException("Bad peer idle timeout");
+        }
+        this.peerIdleNanos = unit.toNanos(idle);
+    }
+
+    /**
+     * Makes the server one node of a cluster. MESSAGEs are then only handled
+     * here if their sender belongs to this node, and are passed on to the
+     * other nodes it belongs to. Must be called before the server is started.
+     *
+     * @param cluster this server's membership in the cluster
+     * @see ClusterNode
+     */
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+        cluster.attach(outbound, clock, dispatcher::dispatch);
+        dispatcher.register(GOSSIP, cluster::onGossip);
+        dispatcher.register(REPLICATE, cluster::onReplicate);
+    }
+
+    /**
+     *
+     * @return the cluster this server is part of, or null if it's on its own
+     */
+    public ClusterNode getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Appends every MESSAGE handled to a journal, so history outlives the
+     * server. Must be called before the server is started.
+     *
+     * @param journal where MESSAGEs are appended
+     * @see #restore()
+     */
+    public void setJournal(HistoryJournal journal) {
+        this.journal = journal;
+        dispatcher.register(MESSAGE, journal);
+    }
+
+    /**
+     *
+     * @return the journal MESSAGEs are appended to, or null if there isn't one
+     */
+    public HistoryJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Writes a {@link StateSnapshot} every {@code period}, so a restart only
+     * has to replay what the journal got since the last one. Must be called
+     * before the server is started.
+     *
+     * @param file   where snapshots are written
+     * @param recent how many of the latest messages each snapshot keeps
+     * @param period how often to write one
+     * @param unit   unit of {@code period}
+     * @see #restore()
+     */
+    public void setSnapshots(File file, int recent, long period,
+            TimeUnit unit) {
+        if (recent < 0 || period <= 0) {
+            throw new IllegalArgumentException("Bad snapshot settings");
+        }
+        this.snapshotFile = file;
+        this.snapshotRecent = recent;
+        this.snapshotPeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * Loads the last snapshot, if there is one, and replays whatever the
+     * journal has after it; without a snapshot the whole journal is replayed.
+     * Restored messages go straight into the stored messages rather than
+     * through the handlers, and count towards their senders' duplicate
+     * filters. Must be called before the server is started.
+     *
+     * @return how many messages were replayed from the journal
+     * @throws IOException if the snapshot or journal can't be read
+     * @see #restoreSnapshot()
+     */
+    public int restore() throws IOException {
+        StateSnapshot snapshot = restoreSnapshot();
+        int replayed = journal == null ? 0 : journal.replay(snapshot == null ? 0
+                : snapshot.getJournalPosition(), (cp, sa) -> {
+                    allMsgs.add(cp);
+                    if (sa != null) {
+                        markReceived(sa, cp.getSequence());
+                    }
+                });
+        LOG.log(Level.INFO, "Restored {0} messages from the snapshot and {1} "
+                + "from the journal", new Object[]{snapshot == null ? 0
+                    : snapshot.getRecent().size(), replayed});
+        return replayed;
+    }
+
+    /**
+     * The first half of {@link #restore()}: loads the last snapshot, if there
+     * is one, without touching the journal. For servers which share a journal
+     * and a message store, so whoever owns them can replay the journal once
+     * for all of them. Must be called before the server is started.
+     *
+     * @return the snapshot loaded, or null if there wasn't one
+     * @throws IOException if the snapshot can't be read
+     * @see #markReceived(SocketAddress, short)
+     */
+    public StateSnapshot restoreSnapshot() throws IOException {
+        StateSnapshot snapshot = snapshotFile == null ? null : StateSnapshot
+                .read(snapshotFile);
+        if (snapshot != null) {
+            factory.setSequence(snapshot.getNextSequence());
+            snapshot.getPeers().forEach((peer, seq) -> {
+                ReplayWindow window = new ReplayWindow();
+                window.resume(seq);
+                replayWindows.put(peer, window);
+                AckTracker tracker = new AckTracker(ackEvery, ackDelayNanos);
+                tracker.resume(seq);
+                ackTrackers.put(peer, tracker);
+                if (reorderHoldNanos > 0) {
+                    ReorderBuffer rb = new ReorderBuffer(reorderHoldNanos,
+                            reorderMaxBytes);
+                    rb.resume(seq);
+                    reorderBuffers.put(peer, rb);
+                }
+                touch(peer);
+            });
+            allMsgs.addAll(snapshot.getRecent());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Counts a MESSAGE replayed from the journal towards its sender's
+     * duplicate filter. Must be called before the server is started.
+     *
+     * @param peer     who sent it
+     * @param sequence its sequence number
+     */
+    public void markReceived(SocketAddress peer, short sequence) {
+        replayWindows.computeIfAbsent(peer, (k) -> new ReplayWindow()).accept(
+                sequence);
+        touch(peer);
+    }
+
+    /**
+     * Captures the server's state as it is now. The journal position is
+     * taken first, so anything handled while the rest is gathered gets
+     * replayed again on restore rather than missed; the stored messages are a
+     * set, so that does no harm.
+     *
+     * @return the snapshot
+     * @throws IOException if the journal is closed
+     */
+    public StateSnapshot takeSnapshot() throws IOException {
+        long position = journal == null ? 0 : journal.position();
+        Map<InetSocketAddress, Short> peers = new LinkedHashMap<>();
+        replayWindows.forEach((peer, window) -> {
+            if (peer instanceof InetSocketAddress && !((InetSocketAddress) peer)
+                    .isUnresolved() && window.getHighest() >= 0) {
+                // read off the receive thread; at worst a little behind
+                peers.put((InetSocketAddress) peer, (short) window
+                        .getHighest());
+            }
+        });
+        ArrayDeque<ChatPacket> recent = new ArrayDeque<>(snapshotRecent);
+        synchronized (allMsgs) {
+            for (ChatPacket cp : allMsgs) {
+                if (snapshotRecent == 0) {
+                    break;
+                }
+                if (recent.size() == snapshotRecent) {
+                    recent.poll();
+                }
+                recent.add(cp);
+            }
+        }
+        return new StateSnapshot(position, factory.getSequence(), peers,
+                new ArrayList<>(recent));
+    }
+
+    /**
+     * Forces the journal to disk, then writes a snapshot to the file given to
+     * {@link #setSnapshots}.
+     *
+     * @throws IOException if either couldn't be written
+     */
+    public void writeSnapshot() throws IOException {
+        if (snapshotFile == null) {
+            throw new IllegalStateException("No snapshot file set");
+        }
+        if (journal != null) {
+            journal.sync();
+        }
+        takeSnapshot().write(snapshotFile);
+    }
+
+    private void writeSnapshotQuietly() {
+        try {
+            writeSnapshot();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Couldn't write a snapshot", ex);
+        }
+    }
+
+    /**
+     * Runs every datagram past a filter before anything else is done with it.
+     * Rejected datagrams are dropped without being parsed or logged.
+     *
+     * @param filter the filter, or null to let everything through
+     */
+    public void setPacketFilter(PacketFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     *
+     * @return the filter datagrams are checked against, or null if there
+     *         isn't one
+     */
+    public PacketFilter getPacketFilter() {
+        return filter;
+    }
+
+    /**
+     * Packets which arrive with a trace id have their way through the server
+     * timed and handed to the sink once they've been dispatched.
+     *
+     * @param traceSink where traces go, or null to stop tracing
+     */
+    public void setTraceSink(TraceSink traceSink) {
+        this.traceSink = traceSink;
+    }
+
+    /**
+     * Latency from the sender's clock to this server's, for packets which
+     * carried a send time. This includes any skew between the two clocks.
+     *
+     * @return the latency histogram, in microseconds
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * Builds a cumulative ACK for everything received from a peer and puts it
+     * in the control lane, ahead of anything else waiting to go out.
+     */
+    private void sendAck(AckTracker tracker, SocketAddress sa) {
+        // the timer thread sends ACKs too
+        synchronized (ackBuf) {
+            try {
+                if (!tracker.writeAck(ackBuf)) {
+                    return;
+                }
+                ackBuf.flip();
+                ChatEvents.AckSent e = new ChatEvents.AckSent();
+                if (e.isEnabled()) {
+                    e.peer = String.valueOf(sa);
+                    e.sequence = ackBuf.getShort(0) & 0xFFFF;
+                    e.ranges = (ackBuf.remaining() - 2) / 4;
+                    e.sealed = sealer.hasSession(sa);
+                }
+                ByteBuffer out = outbound.acquire();
+                if (sealer.hasSession(sa)) {
+                    ChatPacket cp = factory.createPacket(
+                            ChatPacketFactory.PacketType.ACK, ackBuf);
+                    LOG.log(Level.INFO, "Sending ACK: {0}", cp);
+                    sealer.seal(cp, sa).toByteBuffer(out);
+                } else {
+                    short seq = factory.encodePacket(
+                            ChatPacketFactory.PacketType.ACK, ackBuf, out);
+                    LOG.log(Level.INFO, "Sending ACK {0}", seq);
+                }
+                ackBuf.clear();
+                out.flip();
+                if (outbound.enqueue(OutboundScheduler.Lane.of(ACK), out,
+                        sa)) {
+                    e.commit();
+                } else {
+                    ChatEvents.drop(sa, "outbound lane full");
+                }
                 LOG.log(Level.INFO, "Finished serving {0}",
                         sa);
-                buf.clear();
-            } catch (IOException ex) {
+            } catch (GeneralSecurityException ex) {
+                ackBuf.clear();
                 LOG.log(Level.SEVERE,
                         "Got an error processing event: {0}", ex);
+            } catch (IllegalStateException ex) {
+                // the session is out of nonces; it needs a new key
+                ackBuf.clear();
+                LOG.log(Level.WARNING, "Not sending ACK to " + sa, ex);
+                ChatEvents.drop(sa, "session out of nonces");
+            }
+        }
+    }
+
+    /**
+     * Handles a {@link ChatPacketFactory.PacketType#HELLO}. A session id
+     * other than the one last seen from the peer means a new client has
+     * started at that address, counting its sequence numbers from the start
+     * again, so whatever was kept for the old one is dropped; anything the old
+     * session had held back for reordering is handed on first. Either way the
+     * HELLO is echoed so the client knows it got here.
+     */
+    private void onHello(ChatPacket hello, SocketAddress sa) {
+        byte[] data = hello.getData();
+        if (data.length != Long.BYTES) {
+            ChatEvents.drop(sa, "malformed hello");
+            return;
+        }
+        long id = ByteBuffer.wrap(data).getLong();
+        Long old = sessionIds.put(sa, id);
+        if (old == null || old != id) {
+            LOG.log(Level.INFO, "New session from {0}", sa);
+            ReorderBuffer rb = reorderBuffers.remove(sa);
+            if (rb != null) {
+                rb.flush((cp) -> deliver(cp, sa, null));
+            }
+            forget(replayWindows.remove(sa));
+            reassembler.discard(sa);
+            // sessions count from 0, so everything before it is accounted for
+            AckTracker tracker = new AckTracker(ackEvery, ackDelayNanos);
+            tracker.resume((short) -1);
+            ackTrackers.put(sa, tracker);
+        }
+        try {
+            ChatPacket echo = factory.createPacket(HELLO, data);
+            ByteBuffer out = outbound.acquire();
+            sealer.seal(echo, sa).toByteBuffer(out);
+            out.flip();
+            if (!outbound.enqueue(OutboundScheduler.Lane.of(HELLO), out, sa)) {
+                ChatEvents.drop(sa, "outbound lane full");
+            }
+        } catch (GeneralSecurityException | IllegalStateException ex) {
+            LOG.log(Level.WARNING, "Not answering HELLO from " + sa, ex);
+        }
+    }
+
+    /**
+     * Notes that a peer has just been heard from.
+     */
+    private void touch(SocketAddress peer) {
+        long now = clock.getAsLong();
+        lastHeard.computeIfAbsent(peer, (k) -> new AtomicLong()).set(now);
+    }
+
+    /**
+     * Adds a dropped duplicate filter's counts to the totals kept for
+     * forgotten ones.
+     */
+    private void forget(ReplayWindow window) {
+        if (window != null) {
+            forgottenDuplicates.add(window.getDuplicateCount());
+            forgottenMissing.add(window.getMissingCount());
+            forgottenOutOfWindow.add(window.getOutOfWindowCount());
+        }
+    }
+
+    /**
+     * Drops everything kept for peers which have been quiet for longer than
+     * the idle timeout, first handing on whatever they had held back for
+     * reordering and sending any ACK they're owed. Partly reassembled
+     * packets aren't touched here; the reassembler times those out itself.
+     */
+    private void evictIdlePeers() {
+        long now = clock.getAsLong();
+        lastHeard.forEach((sa, heard) -> {
+            if (now - heard.get() <= peerIdleNanos
+                    || !lastHeard.remove(sa, heard)) {
+                return;
+            }
+            LOG.log(Level.FINE, "Forgetting idle peer {0}", sa);
+            ReorderBuffer rb = reorderBuffers.remove(sa);
+            if (rb != null) {
+                rb.flush((cp) -> deliver(cp, sa, null));
+            }
+            AckTracker tracker = ackTrackers.remove(sa);
+            if (tracker != null && tracker.getPending() > 0) {
+                sendAck(tracker, sa);
+            }
+            sessionIds.remove(sa);
+            forget(replayWindows.remove(sa));
+        });
+    }
+
+    /**
+     * Releases MESSAGEs which have waited too long for a gap to fill.
+     */
+    private void flushExpiredReorders() {
+        long now = clock.getAsLong();
+        reorderBuffers.forEach((sa, rb) -> rb.flushExpired(now,
+                (cp) -> deliver(cp, sa, null)));
+    }
+
+    /**
+     * Checks whether the kernel has been dropping datagrams for want of
+     * buffer space.
+     */
+    private void checkReceiveBuffer() {
+        bufferMonitor.check(clock.getAsLong(), getMissingCount());
+    }
+
+    /**
+     * Sends whichever held back ACKs have waited long enough.
+     */
+    private void flushDueAcks() {
+        long now = clock.getAsLong();
+        ackTrackers.forEach((sa, tracker) -> {
+            if (tracker.isDue(now)) {
+                sendAck(tracker, sa);
             }
         });
     }
 
+    /**
+     * Peers with a session in here have their packets sealed and opened with
+     * {@link PacketSealer}.
+     *
+     * @return the session keys used by this server
+     */
+    public SessionKeyCache getSessions() {
+        return sealer.getSessions();
+    }
+
+    /**
+     *
+     * @param peer a remote address
+     * @return the duplicate filter for the peer, or null if it hasn't sent
+     *         anything yet
+     */
+    public ReplayWindow getReplayWindow(SocketAddress peer) {
+        return replayWindows.get(peer);
+    }
+
+    /**
+     *
+     * @param peer a remote address
+     * @return the reorder stage for the peer, or null if reordering is off or
+     *         it hasn't sent anything yet
+     */
+    public ReorderBuffer getReorderBuffer(SocketAddress peer) {
+        return reorderBuffers.get(peer);
+    }
+
+    /**
+     *
+     * @param peer a remote address
+     * @return what has been ACKed to the peer, or null if it hasn't sent
+     *         anything yet
+     */
+    public AckTracker getAckTracker(SocketAddress peer) {
+        return ackTrackers.get(peer);
+    }
+
+    /**
+     *
+     * @param peer a remote address
+     * @return the session id from the peer's last HELLO, or 0 if it hasn't
+     *         sent one
+     */
+    public long getSessionId(SocketAddress peer) {
+        return sessionIds.getOrDefault(peer, 0L);
+    }
+
+    /**
+     *
+     * @return how many peers have sent MESSAGEs and not yet been forgotten
+     * @see #setPeerIdleTimeout(long, TimeUnit)
+     */
+    public int getPeerCount() {
+        return replayWindows.size();
+    }
+
+    /**
+     *
+     * @return datagrams read from the transport, including any filtered out
+     */
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    /**
+     *
+     * @return bytes read from the transport, including any filtered out
+     */
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    /**
+     *
+     * @return duplicate MESSAGEs dropped across all peers
+     */
+    public long getDuplicateCount() {
+        return forgottenDuplicates.sum() + replayWindows.values().stream()
+                .mapToLong(ReplayWindow::getDuplicateCount).sum();
+    }
+
+    /**
+     *
+     * @return sequence numbers which never arrived, across all peers
+     * @see ReplayWindow#getMissingCount()
+     */
+    public long getMissingCount() {
+        return forgottenMissing.sum() + replayWindows.values().stream()
+                .mapToLong(ReplayWindow::getMissingCount).sum();
+    }
+
+    /**
+     *
+     * @return what has been worked out about the receive buffer
+     */
+    public ReceiveBufferMonitor getReceiveBufferMonitor() {
+        return bufferMonitor;
+    }
+
+    /**
+     *
+     * @return MESSAGEs dropped for being too old to check, across all peers
+     */
+    public long getOutOfWindowCount() {
+        return forgottenOutOfWindow.sum() + replayWindows.values().stream()
+                .mapToLong(ReplayWindow::getOutOfWindowCount).sum();
+    }
+
     public void register(ChatPacketFactory.PacketType type,
             BiConsumer<ChatPacket, SocketAddress>... eventHandlers) {
         this.dispatcher.register(type, eventHandlers);
     }
 
+    /**
+     * The outbound queues. Anything the server sends goes through here.
+     *
+     * @return the outbound scheduler
+     */
+    public OutboundScheduler getOutbound() {
+        return outbound;
+    }
+
     /*
-     * Should be run as daemon thread
+     * Should be run as daemon thread. Needs a blocking transport; otherwise
+     * drive the server with poll() and tick() instead.
      */
     @Override
     public void run() {
+        Thread sender = new Thread(outbound, "ChatServer-outbound " + add);
+        sender.setDaemon(true);
+        sender.start();
+        timer = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread t = new Thread(r, "ChatServer-timer " + add);
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleAtFixedRate(this::checkReceiveBuffer,
+                ReceiveBufferMonitor.PERIOD_NANOS,
+                ReceiveBufferMonitor.PERIOD_NANOS, TimeUnit.NANOSECONDS);
+        if (ackEvery > 1) {
+            long period = Math.max(ackDelayNanos / 4, TimeUnit.MILLISECONDS
+                    .toNanos(1));
+            timer.scheduleAtFixedRate(this::flushDueAcks, period, period,
+                    TimeUnit.NANOSECONDS);
+        }
+        if (reorderHoldNanos > 0) {
+            long period = Math.max(reorderHoldNanos / 4, TimeUnit.MILLISECONDS
+                    .toNanos(1));
+            timer.scheduleAtFixedRate(this::flushExpiredReorders, period,
+                    period, TimeUnit.NANOSECONDS);
+        }
+        long idlePeriod = Math.max(peerIdleNanos / 4, TimeUnit.MILLISECONDS
+                .toNanos(1));
+        timer.scheduleAtFixedRate(this::evictIdlePeers, idlePeriod, idlePeriod,
+                TimeUnit.NANOSECONDS);
+        if (cluster != null) {
+            long period = Math.max(cluster.getGossipIntervalNanos() / 4,
+                    TimeUnit.MILLISECONDS.toNanos(1));
+            timer.scheduleAtFixedRate(() -> cluster.tick(clock.getAsLong()),
+                    period, period, TimeUnit.NANOSECONDS);
+        }
+        if (snapshotFile != null) {
+            timer.scheduleAtFixedRate(this::writeSnapshotQuietly,
+                    snapshotPeriodNanos, snapshotPeriodNanos,
+                    TimeUnit.NANOSECONDS);
+        }
         while (true) {
             try {
                 //DatagramPacket pck = new DatagramPacket(buf, buf.length);
-                SocketAddress clientAddr = this.srvChannel.receive(buf);
-                buf.flip();
-                LOG.log(Level.INFO, "Got a connection from {0}", clientAddr);
-                ChatPacket packet = ChatPacketFactory.parsePacket(buf);
+                SocketAddress clientAddr = this.transport.receive(buf);
+                if (clientAddr != null) {
+                    try {
+                        handleDatagram(clientAddr);
+                    } catch (RuntimeException ex) {
+                        // one bad datagram mustn't take the server down
+                        LOG.log(Level.WARNING, "Failed to handle a datagram "
+                                + "from " + clientAddr, ex);
+                        ChatEvents.drop(clientAddr, "handler failed");
+                        buf.clear();
+                    }
+                }
+            } catch (IOException ex) {
+                if (!stopping) {
+                    LOG.log(Level.SEVERE, "Server error! Crashing....", ex);
+                }
+                timer.shutdown();
+                outbound.close();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handles one waiting datagram, if there is one, and sends whatever that
+     * queues up. Together with {@link #tick()} this runs the server on the
+     * caller's thread instead of {@link #run()}; meant for non-blocking
+     * transports like those from {@link SimulatedNetwork}.
+     *
+     * @return false if nothing was waiting
+     * @throws IOException if the transport is broken
+     */
+    public boolean poll() throws IOException {
+        SocketAddress clientAddr = transport.receive(buf);
+        if (clientAddr == null) {
+            return false;
+        }
+        handleDatagram(clientAddr);
+        outbound.sendQueued();
+        return true;
+    }
+
+    /**
+     * Does the timed work {@link #run()} leaves to its timer thread: sends
+     * delayed ACKs which are due, releases MESSAGEs held too long for
+     * reordering, forgets idle peers, gossips with the rest of the cluster
+     * and checks the receive buffer, as of the server's clock.
+     */
+    public void tick() {
+        flushDueAcks();
+        flushExpiredReorders();
+        evictIdlePeers();
+        if (cluster != null) {
+            cluster.tick(clock.getAsLong());
+        }
+        checkReceiveBuffer();
+        outbound.sendQueued();
+    }
+
+    /**
+     * Stops the server without losing what it's holding on to: releases
+     * MESSAGEs held for reordering, sends any held back ACKs, waits for the
+     * outbound queues to empty, writes a last snapshot if snapshots are on and
+     * then closes the transport. Datagrams which arrive in the meantime are
+     * still handled. The journal, if any, is left open for whoever owns it.
+     *
+     * @param timeout longest to wait for the outbound queues
+     * @param unit    unit of {@code timeout}
+     * @return true if everything queued was sent
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        stopping = true;
+        if (timer != null) {
+            timer.shutdown();
+        }
+        reorderBuffers.forEach((sa, rb) -> rb.flush((cp) -> deliver(cp, sa,
+                null)));
+        ackTrackers.forEach((sa, tracker) -> {
+            if (tracker.getPending() > 0) {
+                sendAck(tracker, sa);
+            }
+        });
+        if (timer == null) {
+            // nothing is running the scheduler
+            outbound.sendQueued();
+        }
+        boolean drained = outbound.drain(timeout, unit);
+        outbound.close();
+        if (snapshotFile != null) {
+            writeSnapshotQuietly();
+        }
+        try {
+            transport.close();
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Couldn't close the transport", ex);
+        }
+        return drained;
+    }
+
+    /**
+     * Handles the datagram just read into {@link #buf}.
+     */
+    private void handleDatagram(SocketAddress clientAddr) {
+        long received = System.nanoTime();
+        buf.flip();
+        receivedCount++;
+        receivedBytes += buf.remaining();
+        bufferMonitor.onReceive(buf.remaining());
+        PacketFilter f = filter;
+        if (f != null) {
+            PacketFilter.Verdict v = f.check(buf, clientAddr, clock
+                    .getAsLong());
+            if (v != PacketFilter.Verdict.ACCEPT) {
+                ChatEvents.drop(clientAddr, v.reason);
                 buf.clear();
-                dispatcher.dispatch(packet, clientAddr);
+                return;
+            }
+        }
+        ChatEvents.PacketReceived event = new ChatEvents.PacketReceived();
+        event.begin();
+        int size = buf.remaining();
+        int records = 0;
+        LOG.log(Level.INFO, "Got a connection from {0}", clientAddr);
+        // v1 datagrams can hold several records back to back
+        while (buf.hasRemaining()) {
+            ChatPacket packet;
+            if (buf.get(buf.position()) == FRAGMENT.ID) {
+                packet = reassembler.offer(buf, clientAddr, Instant.now(),
+                        clock.getAsLong());
+            } else {
+                packet = ChatPacketFactory.parsePacket(buf);
+                if (packet == null) {
+                    ChatEvents.drop(clientAddr, "malformed");
+                }
+            }
+            if (packet != null) {
+                records++;
+                handle(packet, clientAddr, received);
+            }
+        }
+        buf.clear();
+        event.end();
+        if (event.shouldCommit()) {
+            event.peer = String.valueOf(clientAddr);
+            event.bytes = size;
+            event.records = records;
+            event.commit();
+        }
+    }
 
-            } catch (IOException ex) {
-                LOG.log(Level.SEVERE, "Server error! Crashing....", ex);
+    private void handle(ChatPacket packet, SocketAddress clientAddr,
+            long received) {
+        PacketTrace trace = null;
+        if (packet.getTraceId() != 0 && traceSink != null) {
+            trace = new PacketTrace(packet.getTraceId(), clientAddr, received);
+            trace.setSequence(packet.getSequence());
+            trace.mark("parse");
+        }
+        if (packet.getSendTime() != 0) {
+            long micros = MonotonicClock.toMicros(received) - packet
+                    .getSendTime();
+            latency.record(micros);
+            if (trace != null) {
+                trace.setLatencyMicros(micros);
+            }
+        }
+        try {
+            packet = sealer.open(packet, clientAddr);
+            if (trace != null) {
+                trace.mark("open");
+            }
+            // decode before the packet is recorded or ACKed, so one which
+            // can't be decoded is never taken as delivered
+            packet = compressor.decompress(packet);
+            if (trace != null) {
+                trace.mark("decompress");
+            }
+            touch(clientAddr);
+            if (packet.getType() == HELLO.ID) {
+                onHello(packet, clientAddr);
                 return;
             }
+            if (packet.getType() == MESSAGE.ID) {
+                AckTracker tracker = ackTrackers.computeIfAbsent(clientAddr,
+                        (k) -> new AckTracker(ackEvery, ackDelayNanos));
+                if (!replayWindows.computeIfAbsent(clientAddr,
+                        (k) -> new ReplayWindow()).accept(packet
+                                .getSequence())) {
+                    // the sender may have lost our ACK, so repeat it
+                    LOG.log(Level.FINE, "Duplicate {0} from {1}",
+                            new Object[]{packet.getSequence(), clientAddr});
+                    ChatEvents.Retransmit e = new ChatEvents.Retransmit();
+                    if (e.isEnabled()) {
+                        e.peer = String.valueOf(clientAddr);
+                        e.sequence = packet.getSequence() & 0xFFFF;
+                        e.commit();
+                    }
+                    sendAck(tracker, clientAddr);
+                    return;
+                }
+                // ACK before dispatching so slow handlers don't hold it up
+                if (tracker.onReceive(packet.getSequence(), clock
+                        .getAsLong())) {
+                    sendAck(tracker, clientAddr);
+                }
+                if (trace != null) {
+                    trace.mark("ack");
+                }
+            }
+            if (reorderHoldNanos > 0 && packet.getType() == MESSAGE.ID) {
+                // only this packet's handlers belong in its trace; if it's
+                // held the trace just ends here
+                final PacketTrace t = trace;
+                final short seq = packet.getSequence();
+                reorderBuffers.computeIfAbsent(clientAddr,
+                        (k) -> new ReorderBuffer(reorderHoldNanos,
+                                reorderMaxBytes))
+                        .offer(packet, clock.getAsLong(),
+                                (cp) -> deliver(cp, clientAddr, cp
+                                        .getSequence() == seq ? t : null));
+            } else {
+                deliver(packet, clientAddr, trace);
+            }
+            TraceSink sink = traceSink;
+            if (trace != null && sink != null) {
+                sink.record(trace);
+            }
+        } catch (DataFormatException ex) {
+            LOG.log(Level.WARNING, "Dropping undecodable packet", ex);
+            ChatEvents.drop(clientAddr, "undecodable");
+        } catch (GeneralSecurityException ex) {
+            LOG.log(Level.WARNING, "Dropping packet which failed to open", ex);
+            ChatEvents.drop(clientAddr, "failed to open");
+        }
+    }
+
+    /**
+     * Hands a packet to the handlers, unless it's a MESSAGE the cluster says
+     * belongs elsewhere.
+     */
+    private void deliver(ChatPacket cp, SocketAddress sa, PacketTrace trace) {
+        if (cluster != null && cp.getType() == MESSAGE.ID && !cluster.route(
+                cp, sa, getSessionId(sa))) {
+            return;
         }
+        dispatcher.dispatch(cp, sa, trace);
     }
 
     public static void main(String... args) throws IOException,
             InterruptedException {
-        ExecutorService exec = Executors.newCachedThreadPool();
+        // daemon threads, so this exits once the demo is done; the AppCDS
+        // training run in build.xml depends on it
+        ExecutorService exec = Executors.newCachedThreadPool((r) -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
         SortedSet<ChatPacket> allMsgs;
         allMsgs = Collections.synchronizedSortedSet(new TreeSet<>(
                 (ChatPacket o1, ChatPacket o2) -> {
@@ -0,0 +1,708 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.*;
+
+/**
+ * Lets several {@link ChatServer}s share their clients between them. Nodes find
+ * each other by gossip: every round a node bumps its own heartbeat and sends
+ * its membership table to a few members picked at random, and whoever hears of
+ * a higher heartbeat than it knew of takes that as a sign of life. A member
+ * whose heartbeat hasn't gone up within the failure timeout is taken to be
+ * down. Heartbeats are paired with a generation, the wall clock time the node
+ * started at, so a restarted node isn't mistaken for a stale one.
+ *
+ * Live members are placed on a {@link HashRing} and each client belongs to the
+ * first {@code replicas} nodes found at its address. A MESSAGE is ACKed by
+ * whichever node the client sent it to, which hands it to its own handlers
+ * only if it's one of the client's nodes and passes it on as a
+ * {@link ChatPacketFactory.PacketType#REPLICATE} to each of the others. No
+ * other node sees it, so adding nodes spreads the load out rather than copying
+ * it everywhere.
+ *
+ * Replication is as best effort as the rest of UDP: a lost REPLICATE isn't
+ * resent, and while members disagree about who is up a MESSAGE can end up on
+ * more or fewer nodes than it should.
+ *
+ * GOSSIP and REPLICATE share the port clients talk to, so each one ends in a
+ * tag, an HMAC-SHA256 of the packet type and payload under a secret every
+ * node is given, cut down to {@value #TAG_SIZE} bytes. Anything with a bad tag
+ * is dropped, so clients can't pose as nodes. Replayed traffic is harmless:
+ * old heartbeats are ignored and replicas go through a replay window.
+ *
+ * @author Kevin Raoofi
+ */
+public class ClusterNode {
+
+    private static final Logger LOG = Logger.getLogger(ClusterNode.class
+            .getName());
+
+    public static final int DEFAULT_REPLICAS = 2;
+    /**
+     * How many members are sent a digest each round
+     */
+    public static final int FANOUT = 2;
+
+    /**
+     * Largest digest entry: an IPv6 address, port, generation and heartbeat
+     */
+    private static final int ENTRY_SIZE = 1 + 16 + 2 + 8 + 4;
+    /**
+     * Bytes of HMAC at the end of each GOSSIP and REPLICATE
+     */
+    public static final int TAG_SIZE = 16;
+    /**
+     * Shortest secret accepted
+     */
+    public static final int MIN_SECRET_SIZE = 16;
+
+    private final InetSocketAddress self;
+    private final long generation;
+    private final List<InetSocketAddress> seeds;
+    private final int replicas;
+    private final Random random;
+    private final Map<InetSocketAddress, Member> members;
+    /**
+     * Duplicate filters for each client whose MESSAGEs are replicated here,
+     * and which of the client's sessions each one is for
+     */
+    private final Map<SocketAddress, ReplayWindow> replayWindows;
+    private final Map<SocketAddress, Long> clientSessions;
+    /**
+     * When a replica from each of those clients last arrived
+     */
+    private final Map<SocketAddress, Long> clientHeard;
+    private long clientIdleNanos;
+    private final ChatPacketFactory factory;
+    private final ChatPacketFragmenter fragmenter;
+    private final ByteBuffer scratch;
+    private final Mac mac;
+    private volatile HashRing<InetSocketAddress> ring;
+    private long intervalNanos;
+    private long failNanos;
+    private int heartbeat;
+    private long lastRound;
+    private boolean started;
+
+    private OutboundScheduler outbound;
+    private LongSupplier clock;
+    private BiConsumer<ChatPacket, SocketAddress> local;
+
+    private long forwarded;
+    private long replicated;
+    private long duplicates;
+
+    /**
+     *
+     * @param self     the address other nodes reach this one at
+     * @param seeds    nodes to contact until some member has been heard from
+     * @param replicas how many nodes each client's MESSAGEs are kept on
+     * @param secret   the key cluster traffic is authenticated with, shared by
+     *                 every node
+     */
+    public ClusterNode(InetSocketAddress self,
+            Collection<InetSocketAddress> seeds, int replicas, byte[] secret) {
+        this(self, seeds, replicas, secret, new Random());
+    }
+
+    /**
+     *
+     * @param self     the address other nodes reach this one at
+     * @param seeds    nodes to contact until some member has been heard from
+     * @param replicas how many nodes each client's MESSAGEs are kept on
+     * @param secret   the key cluster traffic is authenticated with, shared by
+     *                 every node
+     * @param random   picks who to gossip with
+     */
+    public ClusterNode(InetSocketAddress self,
+            Collection<InetSocketAddress> seeds, int replicas, byte[] secret,
+            Random random) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("Bad replica count: "
+                    + replicas);
+        }
+        if (secret.length < MIN_SECRET_SIZE) {
+            throw new IllegalArgumentException("Cluster secret must be at "
+                    + "least " + MIN_SECRET_SIZE + " bytes");
+        }
+        try {
+            this.mac = Mac.getInstance("HmacSHA256");
+            this.mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("HmacSHA256 is unavailable", ex);
+        }
+        this.self = self;
+        this.generation = System.currentTimeMillis();
+        this.seeds = new ArrayList<>(seeds);
+        this.seeds.remove(self);
+        this.replicas = replicas;
+        this.random = random;
+        this.members = new LinkedHashMap<>();
+        this.replayWindows = new HashMap<>();
+        this.clientSessions = new HashMap<>();
+        this.clientHeard = new HashMap<>();
+        this.factory = new ChatPacketFactory();
+        this.fragmenter = new ChatPacketFragmenter();
+        this.scratch = ByteBuffer.allocate(fragmenter.getMtu());
+        this.ring = new HashRing<>(Collections.singleton(self),
+                HashRing.DEFAULT_POINTS);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(200);
+        this.failNanos = TimeUnit.SECONDS.toNanos(2);
+        this.clientIdleNanos = TimeUnit.MINUTES.toNanos(5);
+    }
+
+    /**
+     * Sets how often to gossip and how long a member can go without being
+     * heard from before it's taken to be down. The failure timeout should be
+     * several rounds long, since news of a heartbeat takes a few rounds to
+     * spread. Must be called before the server is started.
+     *
+     * @param interval  time between gossip rounds
+     * @param failAfter how long before a quiet member is taken to be down
+     * @param unit      unit of both times
+     */
+    public void setTimeouts(long interval, long failAfter, TimeUnit unit) {
+        if (interval <= 0 || failAfter <= interval) {
+            throw new IllegalArgumentException("Bad cluster timeouts");
+        }
+        this.intervalNanos = unit.toNanos(interval);
+        this.failNanos = unit.toNanos(failAfter);
+    }
+
+    /**
+     * Sets how long a client can go without a replica of its MESSAGEs
+     * arriving before its duplicate filter is dropped; one which turns up
+     * again after that is treated as new. Must be called before the server
+     * is started; by default that's five minutes.
+     *
+     * @param idle how long before a quiet client is forgotten
+     * @param unit unit of {@code idle}
+     */
+    public void setClientIdleTimeout(long idle, TimeUnit unit) {
+        if (idle <= 0) {
+            throw new IllegalArgumentException("Bad client idle timeout");
+        }
+        this.clientIdleNanos = unit.toNanos(idle);
+    }
+
+    /**
+     * Called by {@link ChatServer#setCluster(ClusterNode)}.
+     *
+     * @param outbound where to send cluster traffic
+     * @param clock    the server's clock
+     * @param local    hands replicated MESSAGEs to the server's handlers
+     */
+    void attach(OutboundScheduler outbound, LongSupplier clock,
+            BiConsumer<ChatPacket, SocketAddress> local) {
+        this.outbound = outbound;
+        this.clock = clock;
+        this.local = local;
+    }
+
+    public long getGossipIntervalNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * Runs a gossip round if one is due, first marking down any member which
+     * has been quiet for too long and forgetting clients which have.
+     *
+     * @param nowNanos the server's clock
+     */
+    public synchronized void tick(long nowNanos) {
+        if (started && nowNanos - lastRound < intervalNanos) {
+            return;
+        }
+        started = true;
+        lastRound = nowNanos;
+        heartbeat++;
+
+        boolean changed = false;
+        List<InetSocketAddress> up = new ArrayList<>();
+        List<InetSocketAddress> down = new ArrayList<>();
+        for (Member m : members.values()) {
+            if (m.up && nowNanos - m.heard > failNanos) {
+                m.up = false;
+                changed = true;
+                LOG.log(Level.INFO, "{0} is down", m.address);
+            }
+            (m.up ? up : down).add(m.address);
+        }
+        if (changed) {
+            rebuildRing();
+        }
+        clientHeard.values().removeIf((heard) -> nowNanos - heard
+                > clientIdleNanos);
+        replayWindows.keySet().retainAll(clientHeard.keySet());
+        clientSessions.keySet().retainAll(clientHeard.keySet());
+
+        List<InetSocketAddress> targets = new ArrayList<>();
+        if (up.isEmpty()) {
+            targets.addAll(seeds);
+        } else {
+            Collections.shuffle(up, random);
+            targets.addAll(up.subList(0, Math.min(FANOUT, up.size())));
+        }
+        // now and then try someone thought to be down, so a healed
+        // partition gets noticed
+        if (!down.isEmpty() && random.nextInt(up.size() + 1) == 0) {
+            targets.add(down.get(random.nextInt(down.size())));
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        ByteBuffer digest = sign(GOSSIP.ID, writeDigest());
+        for (InetSocketAddress to : targets) {
+            ByteBuffer out = outbound.acquire();
+            factory.encodePacket(GOSSIP, digest.duplicate(), out);
+            out.flip();
+            if (!outbound.enqueue(OutboundScheduler.Lane.of(GOSSIP), out, to)) {
+                ChatEvents.drop(to, "outbound lane full");
+            }
+        }
+    }
+
+    /**
+     * Writes this node followed by as many members as fit in one datagram,
+     * starting from a random one, leaving room for the tag:
+     * <pre>
+     * | count (1) | [ address length (1) | address | port (2) | generation (8) | heartbeat (4) ] ... | tag (16) |
+     * </pre>
+     */
+    private ByteBuffer writeDigest() {
+        int room = (fragmenter.getMtu() - ChatPacketFactory.getCodec(
+                factory.version).getMaxOverhead() - 1 - TAG_SIZE)
+                / ENTRY_SIZE;
+        List<Member> all = new ArrayList<>(members.values());
+        int count = Math.min(all.size(), Math.min(room, 0xFF) - 1);
+        ByteBuffer digest = ByteBuffer.allocate(1 + (count + 1) * ENTRY_SIZE
+                + TAG_SIZE);
+        digest.put((byte) (count + 1));
+        writeEntry(digest, self, generation, heartbeat);
+        int start = all.isEmpty() ? 0 : random.nextInt(all.size());
+        for (int i = 0; i < count; i++) {
+            Member m = all.get((start + i) % all.size());
+            writeEntry(digest, m.address, m.generation, m.heartbeat);
+        }
+        return digest;
+    }
+
+    private static void writeEntry(ByteBuffer buf, InetSocketAddress address,
+            long generation, int heartbeat) {
+        writeAddress(buf, address);
+        buf.putLong(generation);
+        buf.putInt(heartbeat);
+    }
+
+    /**
+     * Appends the tag for the bytes from 0 up to the buffer's position.
+     *
+     * @param type the packet type they're sent as
+     * @param buf  has room for the tag past the position
+     * @return the buffer, flipped
+     */
+    private ByteBuffer sign(byte type, ByteBuffer buf) {
+        mac.update(type);
+        mac.update(buf.array(), buf.arrayOffset(), buf.position());
+        buf.put(mac.doFinal(), 0, TAG_SIZE);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Checks and strips the tag off a GOSSIP or REPLICATE.
+     *
+     * @return the payload without its tag, or null if the tag is wrong
+     */
+    private ByteBuffer verify(ChatPacket cp, SocketAddress from) {
+        byte[] data = cp.getData();
+        int len = data.length - TAG_SIZE;
+        if (len >= 0) {
+            mac.update(cp.getType());
+            mac.update(data, 0, len);
+            byte[] expected = Arrays.copyOf(mac.doFinal(), TAG_SIZE);
+            if (MessageDigest.isEqual(expected, Arrays.copyOfRange(data, len,
+                    data.length))) {
+                return ByteBuffer.wrap(data, 0, len);
+            }
+        }
+        ChatEvents.drop(from, "bad cluster tag");
+        return null;
+    }
+
+    private static int addressSize(InetSocketAddress address) {
+        return 1 + address.getAddress().getAddress().length + 2;
+    }
+
+    private static void writeAddress(ByteBuffer buf, InetSocketAddress address) {
+        byte[] ip = address.getAddress().getAddress();
+        buf.put((byte) ip.length);
+        buf.put(ip);
+        buf.putShort((short) address.getPort());
+    }
+
+    private static InetSocketAddress readAddress(ByteBuffer buf)
+            throws UnknownHostException {
+        byte[] ip = new byte[buf.get() & 0xFF];
+        buf.get(ip);
+        return new InetSocketAddress(InetAddress.getByAddress(ip), buf
+                .getShort() & 0xFFFF);
+    }
+
+    /**
+     * Handler for {@link ChatPacketFactory.PacketType#GOSSIP}. Anything newer
+     * than what's known is taken in, and new members join the ring.
+     *
+     * @param cp   the digest
+     * @param from who sent it
+     */
+    public synchronized void onGossip(ChatPacket cp, SocketAddress from) {
+        ByteBuffer digest = verify(cp, from);
+        if (digest == null) {
+            return;
+        }
+        long now = clock.getAsLong();
+        boolean changed = false;
+        try {
+            int count = digest.get() & 0xFF;
+            for (int i = 0; i < count; i++) {
+                InetSocketAddress address = readAddress(digest);
+                long gen = digest.getLong();
+                int beat = digest.getInt();
+                if (address.equals(self)) {
+                    continue;
+                }
+                Member m = members.get(address);
+                if (m == null) {
+                    m = new Member(address);
+                    members.put(address, m);
+                } else if (gen < m.generation || gen == m.generation
+                        && beat <= m.heartbeat) {
+                    continue;
+                }
+                m.generation = gen;
+                m.heartbeat = beat;
+                m.heard = now;
+                if (!m.up) {
+                    m.up = true;
+                    changed = true;
+                    LOG.log(Level.INFO, "{0} is up", address);
+                }
+            }
+        } catch (BufferUnderflowException | UnknownHostException ex) {
+            LOG.log(Level.WARNING, "Dropping malformed gossip from " + from,
+                    ex);
+            ChatEvents.drop(from, "malformed gossip");
+        }
+        if (changed) {
+            rebuildRing();
+        }
+    }
+
+    private void rebuildRing() {
+        List<InetSocketAddress> up = new ArrayList<>();
+        up.add(self);
+        members.values().stream().filter((m) -> m.up).forEach((m) -> up.add(
+                m.address));
+        ring = new HashRing<>(up, HashRing.DEFAULT_POINTS);
+    }
+
+    /**
+     * Passes a MESSAGE on to whichever other nodes its sender belongs to.
+     *
+     * @param cp      a MESSAGE from a client
+     * @param from    the client
+     * @param session the client's session id, or 0 if it never sent a HELLO
+     * @return true if this node is one of the client's and should handle the
+     *         MESSAGE itself
+     */
+    public synchronized boolean route(ChatPacket cp, SocketAddress from,
+            long session) {
+        boolean mine = false;
+        ChatPacket replica = null;
+        for (InetSocketAddress node : ring.get(from, replicas)) {
+            if (node.equals(self)) {
+                mine = true;
+                continue;
+            }
+            if (replica == null) {
+                replica = createReplica(cp, (InetSocketAddress) from,
+                        session);
+            }
+            send(replica, node);
+            forwarded++;
+        }
+        return mine;
+    }
+
+    /**
+     * A REPLICATE payload is the client's address and session and the
+     * MESSAGE:
+     * <pre>
+     * | address length (1) | address | port (2) | session (8) | sequence (2) | version (1) | seconds (8) | nanos (4) | payload ... | tag (16) |
+     * </pre>
+     * The timestamp is the one given by the node which received it, so every
+     * copy sorts the same way.
+     */
+    private ChatPacket createReplica(ChatPacket cp, InetSocketAddress from,
+            long session) {
+        byte[] data = cp.getData();
+        ByteBuffer b = ByteBuffer.allocate(addressSize(from) + 8 + 2 + 1 + 8
+                + 4 + data.length + TAG_SIZE);
+        writeAddress(b, from);
+        b.putLong(session);
+        b.putShort(cp.getSequence());
+        b.put((byte) (cp.getVersion() & ChatPacketFactory.VERSION_MASK));
+        b.putLong(cp.timestamp.getEpochSecond());
+        b.putInt(cp.timestamp.getNano());
+        b.put(data);
+        return factory.createPacket(REPLICATE, sign(REPLICATE.ID, b).array());
+    }
+
+    private void send(ChatPacket cp, InetSocketAddress to) {
+        try {
+            if (fragmenter.needsFragmenting(cp)) {
+                fragmenter.fragment(cp, scratch, (frag) -> enqueue(frag, to));
+            } else {
+                scratch.clear();
+                cp.toByteBuffer(scratch);
+                scratch.flip();
+                enqueue(scratch, to);
+                scratch.clear();
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to replicate to " + to, ex);
+        }
+    }
+
+    private void enqueue(ByteBuffer datagram, SocketAddress to) {
+        ByteBuffer out = outbound.acquire();
+        out.put(datagram);
+        out.flip();
+        if (!outbound.enqueue(OutboundScheduler.Lane.BULK, out, to)) {
+            ChatEvents.drop(to, "outbound lane full");
+        }
+    }
+
+    /**
+     * Handler for {@link ChatPacketFactory.PacketType#REPLICATE}. Replicas
+     * with a bad tag or from anyone but a live member are dropped, as are
+     * repeats; the rest are
+     * handed to the server's MESSAGE handlers as if the client had sent them
+     * here.
+     *
+     * @param cp   the replica
+     * @param from the node which passed it on
+     */
+    public void onReplicate(ChatPacket cp, SocketAddress from) {
+        ChatPacket msg;
+        InetSocketAddress client;
+        long session;
+        synchronized (this) {
+            ByteBuffer b = verify(cp, from);
+            if (b == null) {
+                return;
+            }
+            Member m = members.get(from);
+            if (m == null || !m.up) {
+                ChatEvents.drop(from, "replica from non-member");
+                return;
+            }
+            try {
+                client = readAddress(b);
+                session = b.getLong();
+                short seq = b.getShort();
+                byte version = b.get();
+                Instant timestamp = Instant.ofEpochSecond(b.getLong(), b
+                        .getInt());
+                byte[] data = new byte[b.remaining()];
+                b.get(data);
+                msg = new ChatPacket(MESSAGE.ID, version, seq, data,
+                        timestamp);
+            } catch (BufferUnderflowException | UnknownHostException ex) {
+                LOG.log(Level.WARNING, "Dropping malformed replica from "
+                        + from, ex);
+                ChatEvents.drop(from, "malformed replica");
+                return;
+            }
+            clientHeard.put(client, clock.getAsLong());
+            Long old = clientSessions.put(client, session);
+            if (old != null && old != session) {
+                // the client started over; its sequence numbers did too
+                replayWindows.remove(client);
+            }
+            if (!replayWindows.computeIfAbsent(client,
+                    (k) -> new ReplayWindow()).accept(msg.getSequence())) {
+                duplicates++;
+                return;
+            }
+            replicated++;
+        }
+        local.accept(msg, client);
+    }
+
+    public InetSocketAddress getSelf() {
+        return self;
+    }
+
+    /**
+     *
+     * @return every node thought to be up, including this one
+     */
+    public synchronized List<InetSocketAddress> getMembers() {
+        List<InetSocketAddress> up = new ArrayList<>();
+        up.add(self);
+        members.values().stream().filter((m) -> m.up).forEach((m) -> up.add(
+                m.address));
+        return up;
+    }
+
+    /**
+     *
+     * @param client a client's address
+     * @return the nodes the client's MESSAGEs are kept on, as things look
+     *         from here
+     */
+    public List<InetSocketAddress> getOwners(SocketAddress client) {
+        return ring.get(client, replicas);
+    }
+
+    /**
+     *
+     * @return replicas sent to other nodes
+     */
+    public synchronized long getForwardedCount() {
+        return forwarded;
+    }
+
+    /**
+     *
+     * @return replicas received and handled
+     */
+    public synchronized long getReplicatedCount() {
+        return replicated;
+    }
+
+    /**
+     *
+     * @return replicas dropped for having been seen already
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     *
+     * @return clients whose replicas are being checked for repeats
+     * @see #setClientIdleTimeout(long, TimeUnit)
+     */
+    public synchronized int getClientCount() {
+        return replayWindows.size();
+    }
+
+    private static InetSocketAddress parseAddress(String s) {
+        int colon = s.lastIndexOf(':');
+        return new InetSocketAddress(s.substring(0, colon), Integer.parseInt(s
+                .substring(colon + 1)));
+    }
+
+    /**
+     * Runs one cluster node, for trying out clusters on a single machine. The
+     * cluster secret is taken from the {@code CHAT_CLUSTER_SECRET} environment
+     * variable.
+     *
+     * @param args the address to advertise as host:port, then any seeds as
+     *             host:port
+     * @throws IOException          if the port can't be bound
+     * @throws InterruptedException if interrupted
+     */
+    public static void main(String... args) throws IOException,
+            InterruptedException {
+        InetSocketAddress self = parseAddress(args.length > 0 ? args[0]
+                : "127.0.0.1:1234");
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            seeds.add(parseAddress(args[i]));
+        }
+        SortedSet<ChatPacket> allMsgs = Collections.synchronizedSortedSet(
+                new TreeSet<>((ChatPacket o1, ChatPacket o2) -> {
+                    return o1.timestamp.compareTo(o2.timestamp);
+                }));
+        ChatServer server = new ChatServer(allMsgs, new InetSocketAddress(self
+                .getPort()));
+        String secret = System.getenv("CHAT_CLUSTER_SECRET");
+        if (secret == null) {
+            throw new IllegalArgumentException(
+                    "CHAT_CLUSTER_SECRET isn't set");
+        }
+        ClusterNode node = new ClusterNode(self, seeds, DEFAULT_REPLICAS,
+                secret.getBytes(StandardCharsets.UTF_8));
+        server.setCluster(node);
+        new Thread(server, "ChatServer " + self).start();
+        while (true) {
+            Thread.sleep(5000);
+            LOG.log(Level.INFO, "Members: {0}; {1} messages stored",
+                    new Object[]{node.getMembers(), allMsgs.size()});
+        }
+    }
+
+    private static final class Member {
+
+        final InetSocketAddress address;
+        long generation;
+        int heartbeat;
+        /**
+         * When the heartbeat last went up, by the server's clock
+         */
+        long heard;
+        boolean up;
+
+        Member(InetSocketAddress address) {
+            this.address = address;
+        }
+    }
+}
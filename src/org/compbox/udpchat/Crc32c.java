@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC-32C (Castagnoli), the same checksum used by iSCSI and SCTP, over a range
+ * of a buffer. The work is done by {@link CRC32C}, which the JVM turns into the
+ * CPU's CRC instructions where there are any; one is kept per thread.
+ *
+ * @author Kevin Raoofi
+ */
+public final class Crc32c {
+
+    private static final ThreadLocal<CRC32C> CRC
+            = ThreadLocal.withInitial(CRC32C::new);
+
+    private Crc32c() {
+    }
+
+    /**
+     * Checksums a range of a buffer without touching its position or limit.
+     *
+     * @param buf  the data
+     * @param from first index to include
+     * @param to   first index to exclude
+     * @return the CRC-32C of the range
+     */
+    public static int compute(ByteBuffer buf, int from, int to) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        if (buf.hasArray()) {
+            crc.update(buf.array(), buf.arrayOffset() + from, to - from);
+        } else {
+            int position = buf.position();
+            int limit = buf.limit();
+            buf.limit(to).position(from);
+            crc.update(buf);
+            buf.limit(limit).position(position);
+        }
+        return (int) crc.getValue();
+    }
+}
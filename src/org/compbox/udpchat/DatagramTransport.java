@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Somewhere datagrams can be sent and received, with the same contract as
+ * {@link java.nio.channels.DatagramChannel}. {@link ChannelTransport} is the
+ * real thing; {@link SimulatedNetwork} hands out in-memory ones for tests.
+ *
+ * @author Kevin Raoofi
+ */
+public interface DatagramTransport extends Closeable {
+
+    /**
+     * Sends the bytes from the buffer's position to its limit as one datagram.
+     *
+     * @param buf the datagram
+     * @param to  where to send it
+     * @throws IOException if it can't be sent
+     */
+    public void send(ByteBuffer buf, SocketAddress to) throws IOException;
+
+    /**
+     * Reads one datagram into the buffer at its position. Anything which
+     * doesn't fit is discarded.
+     *
+     * @param buf where to put the datagram
+     * @return who sent it, or null if nothing was waiting and the transport
+     *         doesn't block
+     * @throws IOException if the transport is broken or closed
+     */
+    public SocketAddress receive(ByteBuffer buf) throws IOException;
+
+    /**
+     *
+     * @return the address this transport is bound to
+     * @throws IOException if the transport is closed
+     */
+    public SocketAddress getLocalAddress() throws IOException;
+
+    /**
+     *
+     * @return the size of the kernel receive buffer, or 0 if the transport
+     *         doesn't have one
+     * @throws IOException if the transport is closed
+     */
+    public default int getReceiveBufferSize() throws IOException {
+        return 0;
+    }
+
+    /**
+     * Asks for a different kernel receive buffer size. Transports without one
+     * ignore this.
+     *
+     * @param bytes the size wanted
+     * @throws IOException if the transport is closed
+     */
+    public default void setReceiveBufferSize(int bytes) throws IOException {
+    }
+}
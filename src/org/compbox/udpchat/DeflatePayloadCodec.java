@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw Deflate with a preset dictionary. Chat messages are usually far too short
+ * for Deflate to find repeats within a single message, so the dictionary is
+ * what does most of the work here.
+ *
+ * The dictionary is fed to zlib again for every packet, so keep it small; a few
+ * KiB is plenty. Both ends have to use the same dictionary.
+ *
+ * @author Kevin Raoofi
+ * @see ChatDictionary
+ */
+public class DeflatePayloadCodec implements PayloadCodec {
+
+    public static final byte ID = 0x01;
+
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final byte[] dictionary;
+
+    public DeflatePayloadCodec() {
+        this(ChatDictionary.getDefault());
+    }
+
+    /**
+     *
+     * @param dictionary the preset dictionary; may be empty
+     */
+    public DeflatePayloadCodec(byte[] dictionary) {
+        this.deflater = new Deflater(Deflater.BEST_SPEED, true);
+        this.inflater = new Inflater(true);
+        this.dictionary = dictionary.clone();
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public int compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+            int dstLen) {
+        deflater.reset();
+        if (dictionary.length > 0) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(src, off, len);
+        deflater.finish();
+        int n = deflater.deflate(dst, dstOff, dstLen);
+        return deflater.finished() ? n : -1;
+    }
+
+    @Override
+    public int decompress(byte[] src, int off, int len, byte[] dst, int dstOff,
+            int dstLen) throws DataFormatException {
+        inflater.reset();
+        if (dictionary.length > 0) {
+            inflater.setDictionary(dictionary);
+        }
+        inflater.setInput(src, off, len);
+        int n = inflater.inflate(dst, dstOff, dstLen);
+        if (inflater.finished()) {
+            return n;
+        }
+        if (n < dstLen) {
+            throw new DataFormatException("Truncated Deflate stream");
+        }
+        // a full buffer may still end the stream, so it has to grow to tell
+        return -1;
+    }
+
+    /**
+     * Frees the native zlib state. The codec can't be used afterwards.
+     */
+    public void end() {
+        deflater.end();
+        inflater.end();
+    }
+}
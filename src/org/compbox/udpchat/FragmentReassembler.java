@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.FRAGMENT;
+
+/**
+ * Receiving side of {@link ChatPacketFragmenter}. Each fragment is copied out
+ * of the receive buffer as it arrives, and the pieces are joined into the
+ * reassembled packet's array once the last missing one shows up. Memory held
+ * follows what has actually been received, never the size a single fragment
+ * claims the message has.
+ *
+ * Every fragment but the last must carry the same chunk size and the last one
+ * must carry exactly what's left of the message, so a complete set of
+ * fragments covers each byte exactly once. A message whose fragments can't add
+ * up to its declared size is dropped.
+ *
+ * Partially assembled messages are thrown away after a timeout, and the total
+ * amount of memory held by partial messages is capped; when the cap is hit the
+ * oldest partial messages get evicted first.
+ *
+ * This class is not thread safe. It's meant to be owned by the thread reading
+ * the socket.
+ *
+ * @author Kevin Raoofi
+ */
+public class FragmentReassembler {
+
+    private static final Logger LOG = Logger.getLogger(FragmentReassembler.class
+            .getName());
+
+    public static final long DEFAULT_TIMEOUT_NANOS = TimeUnit.SECONDS
+            .toNanos(5);
+    public static final int DEFAULT_MEMORY_CAP = 8 << 20;
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 1 << 20;
+
+    /**
+     * Most payload a fragment can carry
+     */
+    private static final int MAX_CHUNK = ChatPacketFactory.MAX_DATAGRAM_SIZE
+            - ChatPacketFragmenter.FRAGMENT_HEADER_SIZE;
+    /**
+     * What keeping a piece costs besides its bytes, counted against the cap
+     */
+    private static final int PIECE_OVERHEAD = 64;
+
+    /**
+     * Partial messages in arrival order; the head is always the oldest
+     */
+    private final LinkedHashMap<Key, Partial> partials;
+    private final PacketHeader header;
+    private final long timeoutNanos;
+    private final int memoryCap;
+    private final int maxMessageSize;
+
+    private long bytesHeld;
+    private long completed;
+    private long expired;
+    private long evicted;
+    private long rejected;
+
+    public FragmentReassembler() {
+        this(DEFAULT_TIMEOUT_NANOS, DEFAULT_MEMORY_CAP,
+                DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    /**
+     *
+     * @param timeoutNanos   how long a partial message may wait for the rest
+     * @param memoryCap      the most bytes held by partial messages at once
+     * @param maxMessageSize largest message that will be accepted
+     */
+    public FragmentReassembler(long timeoutNanos, int memoryCap,
+            int maxMessageSize) {
+        this.partials = new LinkedHashMap<>();
+        this.header = new PacketHeader();
+        this.timeoutNanos = timeoutNanos;
+        this.memoryCap = memoryCap;
+        this.maxMessageSize = Math.min(maxMessageSize, memoryCap);
+    }
+
+    /**
+     * Takes in a fragment. The buffer must be positioned at the start of the
+     * record and is left positioned just past it.
+     *
+     * @param buf       the received datagram
+     * @param sa        who sent it
+     * @param timestamp timestamp to give the reassembled packet
+     * @param nowNanos  the current {@link System#nanoTime()}
+     * @return the reassembled packet if this was the final missing fragment;
+     *         otherwise, null
+     */
+    public ChatPacket offer(ByteBuffer buf, SocketAddress sa, Instant timestamp,
+            long nowNanos) {
+        expire(nowNanos);
+
+        if (!ChatPacketFactory.decodeHeader(buf, header)
+                || header.type != FRAGMENT.ID
+                || header.payloadLength
+                < ChatPacketFragmenter.FRAGMENT_HEADER_SIZE) {
+            return reject(buf, buf.limit(), sa, "malformed fragment");
+        }
+        int at = header.payloadOffset;
+        byte version = header.version;
+        short sequence = header.sequence;
+        byte innerType = buf.get(at);
+        int index = buf.getShort(at + 1) & 0xFFFF;
+        int count = buf.getShort(at + 3) & 0xFFFF;
+        int total = buf.getInt(at + 5);
+        int len = header.payloadLength
+                - ChatPacketFragmenter.FRAGMENT_HEADER_SIZE;
+        buf.position(at + ChatPacketFragmenter.FRAGMENT_HEADER_SIZE);
+
+        if (count == 0 || index >= count || total < 0
+                || total > maxMessageSize || (long) count * MAX_CHUNK < total
+                || count == 1 && len != total
+                || index < count - 1 && ((long) len * (count - 1) >= total
+                || (long) len * count < total)) {
+            return reject(buf, header.end, sa, "bad fragment header");
+        }
+
+        Key key = new Key(sa, sequence);
+        Partial p = partials.get(key);
+        if (p == null) {
+            p = new Partial(version, innerType, count, total,
+                    nowNanos + timeoutNanos);
+            partials.put(key, p);
+        } else if (p.count != count || p.total != total
+                || p.innerType != innerType) {
+            return reject(buf, header.end, sa,
+                    "fragment disagrees with earlier ones");
+        }
+
+        int offset;
+        if (index == count - 1) {
+            if (p.last >= 0 && p.last != len) {
+                return reject(buf, header.end, sa, "bad final fragment size");
+            }
+            p.last = len;
+            offset = total - len;
+        } else {
+            if (p.chunk < 0) {
+                p.chunk = len;
+            } else if (p.chunk != len) {
+                return reject(buf, header.end, sa,
+                        "inconsistent chunk size");
+            }
+            offset = index * len;
+        }
+        if (offset < 0 || offset + len > total) {
+            return reject(buf, header.end, sa, "fragment out of bounds");
+        }
+        if (p.chunk >= 0 && p.last >= 0
+                && (long) p.chunk * (count - 1) + p.last != total) {
+            // the fragments can never tile the message; stop waiting on it
+            partials.remove(key);
+            free(p);
+            return reject(buf, header.end, sa,
+                    "fragments don't add up to the message size");
+        }
+
+        if (p.pieces.containsKey(index)) {
+            buf.position(header.end);
+            return null;
+        }
+        int cost = len + PIECE_OVERHEAD;
+        if (!reserve(cost, p)) {
+            partials.remove(key);
+            free(p);
+            return reject(buf, header.end, sa, "over memory cap");
+        }
+        byte[] piece = new byte[len];
+        buf.get(piece);
+        buf.position(header.end);
+        p.pieces.put(index, piece);
+        p.held += cost;
+        bytesHeld += cost;
+        p.filled += len;
+
+        if (p.pieces.size() < count) {
+            return null;
+        }
+
+        partials.remove(key);
+        free(p);
+        if (p.filled != total) {
+            return reject(buf, header.end, sa, "incomplete message");
+        }
+        byte[] data = new byte[total];
+        for (Map.Entry<Integer, byte[]> e : p.pieces.entrySet()) {
+            int i = e.getKey();
+            byte[] b = e.getValue();
+            System.arraycopy(b, 0, data, i == count - 1 ? total - b.length
+                    : i * p.chunk, b.length);
+        }
+        completed++;
+        return new ChatPacket(p.innerType, p.version, sequence, data,
+                timestamp);
+    }
+
+    /**
+     * Drops any partial message whose deadline has passed.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     */
+    public void expire(long nowNanos) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (it.hasNext()) {
+            Partial p = it.next();
+            if (p.deadline - nowNanos > 0) {
+                break;
+            }
+            it.remove();
+            free(p);
+            expired++;
+        }
+    }
+
+    /**
+     * Drops every partial message from a peer, as when it starts a new
+     * session and its sequence numbers no longer mean the same thing.
+     *
+     * @param sa the peer
+     */
+    public void discard(SocketAddress sa) {
+        Iterator<Map.Entry<Key, Partial>> it = partials.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Partial> e = it.next();
+            if (Objects.equals(e.getKey().sa, sa)) {
+                it.remove();
+                free(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Makes room for {@code bytes} more, evicting the oldest partial messages
+     * other than {@code keep} if need be.
+     */
+    private boolean reserve(int bytes, Partial keep) {
+        Iterator<Partial> it = partials.values().iterator();
+        while (bytesHeld + bytes > memoryCap && it.hasNext()) {
+            Partial p = it.next();
+            if (p == keep) {
+                continue;
+            }
+            it.remove();
+            free(p);
+            evicted++;
+        }
+        return bytesHeld + bytes <= memoryCap;
+    }
+
+    private void free(Partial p) {
+        bytesHeld -= p.held;
+        p.held = 0;
+    }
+
+    private ChatPacket reject(ByteBuffer buf, int skipTo, SocketAddress sa,
+            String reason) {
+        buf.position(skipTo);
+        rejected++;
+        LOG.log(Level.FINE, "Dropping fragment from {0}: {1}", new Object[]{sa,
+            reason});
+        return null;
+    }
+
+    /**
+     *
+     * @return number of messages waiting on more fragments
+     */
+    public int getPendingCount() {
+        return partials.size();
+    }
+
+    public long getBytesHeld() {
+        return bytesHeld;
+    }
+
+    public long getCompletedCount() {
+        return completed;
+    }
+
+    public long getExpiredCount() {
+        return expired;
+    }
+
+    public long getEvictedCount() {
+        return evicted;
+    }
+
+    public long getRejectedCount() {
+        return rejected;
+    }
+
+    private static final class Key {
+
+        private final SocketAddress sa;
+        private final short sequence;
+
+        Key(SocketAddress sa, short sequence) {
+            this.sa = sa;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(sa) + sequence;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return sequence == other.sequence && Objects.equals(sa, other.sa);
+        }
+    }
+
+    private static final class Partial {
+
+        /**
+         * Fragments received so far, by index
+         */
+        final Map<Integer, byte[]> pieces;
+        final byte version;
+        final byte innerType;
+        final int count;
+        final int total;
+        final long deadline;
+        int chunk = -1;
+        int last = -1;
+        long filled;
+        /**
+         * Bytes counted against the memory cap for this message
+         */
+        long held;
+
+        Partial(byte version, byte innerType, int count, int total,
+                long deadline) {
+            this.pieces = new HashMap<>();
+            this.version = version;
+            this.innerType = innerType;
+            this.count = count;
+            this.total = total;
+            this.deadline = deadline;
+        }
+    }
+}
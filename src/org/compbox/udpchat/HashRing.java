@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Consistent hashing over a fixed set of nodes. Each node is placed at a number
+ * of points on a 32 bit ring and a key belongs to whichever node owns the first
+ * point at or after the key's hash, wrapping around. Adding or removing a node
+ * only moves the keys next to its points; everything else stays where it was.
+ * Several points per node keep the share each one gets even.
+ *
+ * Rings are immutable, so a new one is built whenever membership changes and
+ * lookups need no locking. A lookup is a binary search over a sorted array.
+ *
+ * @author Kevin Raoofi
+ * @param <T> the type of node
+ */
+public final class HashRing<T> {
+
+    public static final int DEFAULT_POINTS = 64;
+
+    private final int[] points;
+    private final Object[] owners;
+    private final int nodes;
+
+    /**
+     *
+     * @param nodes         the nodes on the ring; duplicates are ignored
+     * @param pointsPerNode how many points each node gets
+     */
+    public HashRing(Collection<? extends T> nodes, int pointsPerNode) {
+        if (pointsPerNode < 1) {
+            throw new IllegalArgumentException("Bad point count: "
+                    + pointsPerNode);
+        }
+        Set<T> distinct = new LinkedHashSet<>(nodes);
+        long[] sorted = new long[distinct.size() * pointsPerNode];
+        List<T> byIndex = new ArrayList<>(distinct);
+        int n = 0;
+        for (int i = 0; i < byIndex.size(); i++) {
+            String name = String.valueOf(byIndex.get(i));
+            for (int p = 0; p < pointsPerNode; p++) {
+                // hash in the high half, node index in the low half, so
+                // sorting puts the points in ring order with their owners
+                long h = hash(name + '#' + p);
+                sorted[n++] = h << 32 | i;
+            }
+        }
+        Arrays.sort(sorted);
+        this.points = new int[sorted.length];
+        this.owners = new Object[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            points[i] = (int) (sorted[i] >>> 32);
+            owners[i] = byIndex.get((int) sorted[i]);
+        }
+        this.nodes = distinct.size();
+    }
+
+    /**
+     *
+     * @param key anything; its {@code toString()} is hashed
+     * @return the node which owns the key, or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T get(Object key) {
+        if (points.length == 0) {
+            return null;
+        }
+        return (T) owners[find(hash(String.valueOf(key)))];
+    }
+
+    /**
+     * Walks the ring from the key's owner to collect its first {@code count}
+     * distinct nodes, owner first. These are where copies of the key belong.
+     *
+     * @param key   anything; its {@code toString()} is hashed
+     * @param count how many nodes are wanted
+     * @return up to {@code count} nodes; fewer if the ring is smaller
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> get(Object key, int count) {
+        count = Math.min(count, nodes);
+        if (count <= 0) {
+            return Collections.emptyList();
+        }
+        List<T> found = new ArrayList<>(count);
+        int i = find(hash(String.valueOf(key)));
+        while (found.size() < count) {
+            T node = (T) owners[i];
+            if (!found.contains(node)) {
+                found.add(node);
+            }
+            i = i + 1 == owners.length ? 0 : i + 1;
+        }
+        return found;
+    }
+
+    /**
+     *
+     * @return how many distinct nodes are on the ring
+     */
+    public int size() {
+        return nodes;
+    }
+
+    /**
+     * Finds the first point at or after the hash, wrapping to the start.
+     */
+    private int find(int hash) {
+        int lo = 0;
+        int hi = points.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (points[mid] < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == points.length ? 0 : lo;
+    }
+
+    /**
+     * FNV-1a followed by the MurmurHash3 finalizer, which spreads out the
+     * near identical strings used for a node's points.
+     *
+     * @param s what to hash
+     * @return the hash
+     */
+    static int hash(String s) {
+        int h = 0x811C9DC5;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Append only log of MESSAGEs, so history outlives the process. Register it
+ * as a MESSAGE handler and every message handled is appended along with who
+ * sent it:
+ * <pre>
+ * | record length (4) | address length | address | port (2) |
+ * | epoch second (8) | nanos (4) | type | version | sequence (2) |
+ * | payload length (4) | payload |
+ * </pre>
+ * An address length of 0 means the sender wasn't an IP address, and there's
+ * no port.
+ * Appends go to the page cache; {@link #sync()} forces them to disk.
+ *
+ * A crash can leave the last record half written. {@link #replay} stops at
+ * it and cuts it off, so replay before appending anything. A record which
+ * doesn't add up to its own length is treated the same way, wherever it is.
+ *
+ * @author Kevin Raoofi
+ * @see StateSnapshot
+ */
+public class HistoryJournal implements BiConsumer<ChatPacket, SocketAddress>,
+        AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(HistoryJournal.class
+            .getName());
+
+    /**
+     * Bytes in a packet's part of a record besides the payload
+     */
+    static final int RECORD_HEADER = 8 + 4 + 1 + 1 + 2 + 4;
+    /**
+     * Most bytes an address takes in a record
+     */
+    static final int MAX_ADDRESS = 1 + 16 + 2;
+    /**
+     * Largest payload a record may have; anything claiming more is taken to
+     * be garbage
+     */
+    static final int MAX_PAYLOAD = 1 << 24;
+
+    private final File file;
+    private final FileChannel channel;
+    private ByteBuffer buf;
+    private long appended;
+
+    /**
+     *
+     * @param file the journal; created if it doesn't exist
+     * @throws IOException if it can't be opened
+     */
+    public HistoryJournal(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.channel.position(channel.size());
+        this.buf = ByteBuffer.allocate(4 + MAX_ADDRESS + RECORD_HEADER
+                + ChatPacketFactory.MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     *
+     * @param address an address
+     * @return how many bytes {@link #writeAddress} takes for it
+     */
+    static int addressSize(SocketAddress address) {
+        if (!isIp(address)) {
+            return 1;
+        }
+        return 1 + ((InetSocketAddress) address).getAddress().getAddress()
+                .length + 2;
+    }
+
+    private static boolean isIp(SocketAddress address) {
+        return address instanceof InetSocketAddress
+                && !((InetSocketAddress) address).isUnresolved();
+    }
+
+    /**
+     * Writes an IP address and port, or just a 0 length for anything else.
+     */
+    static void writeAddress(SocketAddress address, ByteBuffer out) {
+        if (!isIp(address)) {
+            out.put((byte) 0);
+            return;
+        }
+        InetSocketAddress ip = (InetSocketAddress) address;
+        byte[] bytes = ip.getAddress().getAddress();
+        out.put((byte) bytes.length);
+        out.put(bytes);
+        out.putShort((short) ip.getPort());
+    }
+
+    /**
+     * Reads what {@link #writeAddress} wrote.
+     *
+     * @return the address, or null if none was written
+     */
+    static InetSocketAddress readAddress(ByteBuffer in)
+            throws UnknownHostException {
+        byte[] bytes = new byte[in.get() & 0xFF];
+        if (bytes.length == 0) {
+            return null;
+        }
+        in.get(bytes);
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), in
+                .getShort() & 0xFFFF);
+    }
+
+    /**
+     *
+     * @param cp a packet
+     * @return how many bytes {@link #writeRecord} takes for it
+     */
+    static int recordSize(ChatPacket cp) {
+        return RECORD_HEADER + cp.getData().length;
+    }
+
+    /**
+     * Writes a packet as a record, without the record length.
+     */
+    static void writeRecord(ChatPacket cp, ByteBuffer out) {
+        out.putLong(cp.timestamp.getEpochSecond());
+        out.putInt(cp.timestamp.getNano());
+        out.put(cp.getType());
+        out.put(cp.getVersion());
+        out.putShort(cp.getSequence());
+        out.putInt(cp.getData().length);
+        out.put(cp.getData());
+    }
+
+    /**
+     * Reads what {@link #writeRecord} wrote.
+     */
+    static ChatPacket readRecord(ByteBuffer in) {
+        Instant timestamp = Instant.ofEpochSecond(in.getLong(), in.getInt());
+        byte type = in.get();
+        byte version = in.get();
+        short sequence = in.getShort();
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] data = new byte[length];
+        in.get(data);
+        return new ChatPacket(type, version, sequence, data, timestamp);
+    }
+
+    /**
+     * Appends a MESSAGE. Failures are logged rather than thrown, since this
+     * runs as a handler.
+     */
+    @Override
+    public synchronized void accept(ChatPacket cp, SocketAddress from) {
+        if (cp.getType() != ChatPacketFactory.PacketType.MESSAGE.ID) {
+            return;
+        }
+        int length = addressSize(from) + recordSize(cp);
+        if (buf.capacity() < 4 + length) {
+            buf = ByteBuffer.allocate(4 + length);
+        }
+        buf.clear();
+        buf.putInt(length);
+        writeAddress(from, buf);
+        writeRecord(cp, buf);
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            appended++;
+        } catch (IOException ex) {
+            LOG.log(Level.SEVERE, "Couldn't append to " + file, ex);
+        }
+    }
+
+    /**
+     * Reads back every record from {@code from} on. A record cut short at the
+     * end of the file, or one whose contents don't fill exactly its length, is
+     * dropped along with anything after it.
+     *
+     * @param from a {@link #position()} from earlier, or 0 for everything
+     * @param out  gets each packet and who sent it, oldest first; the sender
+     *             is null if it wasn't an IP address
+     * @return how many packets were read
+     * @throws IOException if the journal can't be read
+     */
+    public synchronized int replay(long from,
+            BiConsumer<ChatPacket, SocketAddress> out) throws IOException {
+        long end = channel.size();
+        ByteBuffer in = ByteBuffer.allocate(1 << 16);
+        in.limit(0);
+        long at = from;
+        long read = from;
+        int count = 0;
+        while (true) {
+            int length = in.remaining() < 4 ? -1 : in.getInt(in.position());
+            if (length >= 0 && (length < 1 + RECORD_HEADER || length
+                    > MAX_ADDRESS + RECORD_HEADER + MAX_PAYLOAD)) {
+                break;
+            }
+            if (length < 0 || in.remaining() < 4 + length) {
+                if (read >= end) {
+                    break;
+                }
+                if (in.capacity() < 4 + length) {
+                    in = ByteBuffer.allocate(4 + length).put(in);
+                } else {
+                    in.compact();
+                }
+                int n = channel.read(in, read);
+                in.flip();
+                if (n <= 0) {
+                    break;
+                }
+                read += n;
+                continue;
+            }
+            in.getInt();
+            int limit = in.limit();
+            in.limit(in.position() + length);
+            SocketAddress sender;
+            ChatPacket cp;
+            try {
+                sender = readAddress(in);
+                cp = readRecord(in);
+            } catch (UnknownHostException | RuntimeException ex) {
+                // a bad length sent us off the end
+                break;
+            }
+            boolean whole = !in.hasRemaining();
+            in.limit(limit);
+            if (!whole) {
+                break;
+            }
+            out.accept(cp, sender);
+            at += 4 + length;
+            count++;
+        }
+        if (at < end) {
+            LOG.log(Level.WARNING, "Cutting off {0} bytes from a torn or "
+                    + "corrupt record in {1}", new Object[]{end - at, file});
+            channel.truncate(at);
+            channel.position(at);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return where the next record will go; everything before it can be
+     *         skipped by {@link #replay}
+     * @throws IOException if the journal is closed
+     */
+    public synchronized long position() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     *
+     * @throws IOException if it couldn't be
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     *
+     * @return records appended since the journal was opened
+     */
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of latencies in microseconds. Buckets are log-linear:
+ * each power of two is split into {@value #SUB_BUCKETS} equal buckets, so
+ * percentiles are accurate to within about 12% from one microsecond up to
+ * hours, in a couple of kilobytes. Recording is lock free and never allocates.
+ *
+ * @author Kevin Raoofi
+ */
+public class LatencyHistogram {
+
+    public static final int SUB_BUCKETS = 8;
+
+    private static final int SUB_BITS = 3;
+    private static final int MAGNITUDES = 40;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+        this.total = new AtomicLong();
+        this.sum = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     *
+     * @param micros a latency; negative values count as 0
+     */
+    public void record(long micros) {
+        long v = Math.max(0, micros);
+        counts.incrementAndGet(bucketOf(v));
+        total.incrementAndGet();
+        sum.addAndGet(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    private static int bucketOf(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS + 1;
+        int bucket = magnitude * SUB_BUCKETS + (int) ((v >>> (magnitude - 1))
+                & (SUB_BUCKETS - 1));
+        return Math.min(bucket, MAGNITUDES * SUB_BUCKETS - 1);
+    }
+
+    /**
+     *
+     * @return the largest value in a bucket
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int magnitude = bucket / SUB_BUCKETS;
+        long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS)
+                << (magnitude - 1);
+        return base + (1L << (magnitude - 1)) - 1;
+    }
+
+    /**
+     *
+     * @param percentile between 0 and 100
+     * @return a value at least as big as that percentage of recorded values,
+     *         or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = total.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{" + "count=" + getCount() + ", p50="
+                + getPercentile(50) + ", p99=" + getPercentile(99) + ", max="
+                + getMax() + '}';
+    }
+}
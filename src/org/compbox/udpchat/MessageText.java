@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The text of a MESSAGE, as a view over its UTF-8 payload. The payload is only
+ * decoded the first time the text is actually needed as characters, and the
+ * result is kept, so drawing the same history over and over decodes each
+ * message once.
+ *
+ * Comparing, hashing and searching work on the bytes and never decode. That
+ * gives the same answers as on the decoded text since UTF-8 sorts in code
+ * point order and a valid UTF-8 string can only ever match another at a
+ * character boundary.
+ *
+ * The payload array is shared with the packet, not copied, and must not be
+ * changed. Safe to share between threads; at worst two threads race to decode
+ * the same bytes.
+ *
+ * @author Kevin Raoofi
+ */
+public final class MessageText implements CharSequence,
+        Comparable<MessageText> {
+
+    private final byte[] utf8;
+    private volatile String decoded;
+
+    /**
+     *
+     * @param utf8 the payload; not copied
+     */
+    public MessageText(byte[] utf8) {
+        this.utf8 = utf8;
+    }
+
+    /**
+     *
+     * @param text some text
+     * @return the text encoded as a payload would be
+     */
+    public static MessageText of(String text) {
+        MessageText t = new MessageText(text.getBytes(StandardCharsets.UTF_8));
+        t.decoded = text;
+        return t;
+    }
+
+    /**
+     *
+     * @return true if the payload has been decoded already
+     */
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    /**
+     *
+     * @return size of the payload in bytes
+     */
+    public int byteLength() {
+        return utf8.length;
+    }
+
+    /**
+     *
+     * @param index a byte offset
+     * @return the payload byte there
+     */
+    public byte byteAt(int index) {
+        return utf8[index];
+    }
+
+    /**
+     * Finds text in the payload without decoding it.
+     *
+     * @param needle UTF-8 encoded text to look for
+     * @param from   byte offset to start looking at
+     * @return the byte offset of the first match, or -1 if there isn't one
+     */
+    public int indexOf(byte[] needle, int from) {
+        int last = utf8.length - needle.length;
+        outer:
+        for (int i = Math.max(0, from); i <= last; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (utf8[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * @param text text to look for
+     * @return true if the text appears anywhere in the message
+     */
+    public boolean contains(String text) {
+        return indexOf(text.getBytes(StandardCharsets.UTF_8), 0) >= 0;
+    }
+
+    /**
+     *
+     * @param prefix UTF-8 encoded text
+     * @return true if the message starts with it
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (prefix.length > utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (utf8[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     *
+     * @return the decoded text; the same instance every time
+     */
+    @Override
+    public String toString() {
+        String s = decoded;
+        if (s == null) {
+            s = new String(utf8, StandardCharsets.UTF_8);
+            decoded = s;
+        }
+        return s;
+    }
+
+    /**
+     * Orders by the payload's unsigned bytes, which for UTF-8 is code point
+     * order.
+     *
+     * @param o another message text
+     * @return the usual
+     */
+    @Override
+    public int compareTo(MessageText o) {
+        int n = Math.min(utf8.length, o.utf8.length);
+        for (int i = 0; i < n; i++) {
+            int c = (utf8[i] & 0xFF) - (o.utf8[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return utf8.length - o.utf8.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(utf8);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof MessageText && Arrays.equals(utf8,
+                ((MessageText) obj).utf8);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+/**
+ * Wall clock time in microseconds which never goes backwards. It's read off
+ * {@link System#nanoTime()} from a fixed starting point, so adjustments to the
+ * system clock don't make it jump. The starting point is the wall clock when
+ * the class loads, which keeps readings from different hosts comparable up to
+ * the skew between their clocks.
+ *
+ * @author Kevin Raoofi
+ */
+public final class MonotonicClock {
+
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
+
+    private MonotonicClock() {
+    }
+
+    /**
+     *
+     * @return microseconds since the epoch
+     */
+    public static long nowMicros() {
+        return toMicros(System.nanoTime());
+    }
+
+    /**
+     *
+     * @param nanoTime an earlier reading of {@link System#nanoTime()}
+     * @return that moment in microseconds since the epoch
+     */
+    public static long toMicros(long nanoTime) {
+        return BASE_MICROS + (nanoTime - BASE_NANOS) / 1000;
+    }
+}
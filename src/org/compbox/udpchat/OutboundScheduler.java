@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType;
+
+/**
+ * Outbound queues split into priority lanes, drained onto the socket by a
+ * single thread. {@link Lane#CONTROL} traffic such as ACKs always goes first,
+ * so ACK latency doesn't depend on how much else is queued up. The other lanes
+ * share what's left by weight: with the default weights four interactive
+ * packets go out for every bulk one while both have something queued.
+ *
+ * Buffers handed to {@link #enqueue} must come from {@link #acquire()}; they
+ * go back to the pool once sent.
+ *
+ * @author Kevin Raoofi
+ */
+public class OutboundScheduler implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(OutboundScheduler.class
+            .getName());
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Which queue a packet goes in
+     */
+    public static enum Lane {
+
+        CONTROL,
+        INTERACTIVE,
+        BULK;
+
+        /**
+         *
+         * @param type a packet type
+         * @return the lane packets of that type belong in
+         */
+        public static Lane of(PacketType type) {
+            switch (type) {
+                case ACK:
+                case GOSSIP:
+                case HELLO:
+                    return CONTROL;
+                case MESSAGE:
+                    return INTERACTIVE;
+                default:
+                    return BULK;
+            }
+        }
+    }
+
+    private final List<ArrayDeque<Outbound>> lanes;
+    private final int[] weights;
+    private final int[] credits;
+    private final int capacity;
+    private final BufferPool pool;
+    private final Sink sink;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition drained;
+    private volatile boolean running;
+    private int sending;
+    private long sent;
+    private long dropped;
+
+    /**
+     * Constructs a scheduler with interactive and bulk weighted 4 to 1.
+     *
+     * @param sink where packets are written
+     */
+    public OutboundScheduler(Sink sink) {
+        this(sink, new BufferPool(), 4, 1, DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param sink              where packets are written
+     * @param pool              where outbound buffers come from
+     * @param interactiveWeight share of {@link Lane#INTERACTIVE}
+     * @param bulkWeight        share of {@link Lane#BULK}
+     * @param capacity          the most packets held in each lane
+     */
+    public OutboundScheduler(Sink sink, BufferPool pool, int interactiveWeight,
+            int bulkWeight, int capacity) {
+        if (interactiveWeight < 1 || bulkWeight < 1) {
+            throw new IllegalArgumentException("Weights must be positive");
+        }
+        Lane[] all = Lane.values();
+        this.lanes = new ArrayList<>(all.length);
+        for (int i = 0; i < all.length; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+        this.weights = new int[all.length];
+        this.weights[Lane.INTERACTIVE.ordinal()] = interactiveWeight;
+        this.weights[Lane.BULK.ordinal()] = bulkWeight;
+        this.credits = weights.clone();
+        this.capacity = capacity;
+        this.pool = pool;
+        this.sink = sink;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.drained = lock.newCondition();
+        this.running = true;
+    }
+
+    /**
+     *
+     * @return a cleared buffer big enough for any datagram
+     */
+    public ByteBuffer acquire() {
+        return pool.acquire(ChatPacketFactory.MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Queues a datagram. If the lane is full the datagram is dropped, as the
+     * kernel would do with a full socket buffer.
+     *
+     * @param lane which lane to use
+     * @param buf  a buffer from {@link #acquire()}, flipped and ready to send
+     * @param to   the destination
+     * @return false if the datagram was dropped
+     */
+    public boolean enqueue(Lane lane, ByteBuffer buf, SocketAddress to) {
+        lock.lock();
+        try {
+            ArrayDeque<Outbound> q = lanes.get(lane.ordinal());
+            if (!running || q.size() >= capacity) {
+                dropped++;
+                pool.release(buf);
+                return false;
+            }
+            q.add(new Outbound(buf, to));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Picks the next datagram to send. Must hold the lock.
+     */
+    private Outbound next() {
+        if (!lanes.get(Lane.CONTROL.ordinal()).isEmpty()) {
+            return lanes.get(Lane.CONTROL.ordinal()).poll();
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = Lane.INTERACTIVE.ordinal(); i < lanes.size(); i++) {
+                if (!lanes.get(i).isEmpty() && credits[i] > 0) {
+                    credits[i]--;
+                    return lanes.get(i).poll();
+                }
+            }
+            // everyone with something queued has used up their turn
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+        return null;
+    }
+
+    /**
+     * Sends queued datagrams until {@link #close()} is called. Meant to have a
+     * thread to itself.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Outbound o;
+            lock.lock();
+            try {
+                while ((o = next()) == null) {
+                    drained.signalAll();
+                    if (!running) {
+                        return;
+                    }
+                    notEmpty.await();
+                }
+                sending++;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+            send(o);
+        }
+    }
+
+    /**
+     * Sends whatever is queued on the calling thread, in the same order
+     * {@link #run()} would, and returns once the queues are empty. For when
+     * nothing is running the scheduler, such as under {@link SimulatedNetwork}.
+     *
+     * @return how many datagrams were sent
+     */
+    public int sendQueued() {
+        int n = 0;
+        while (true) {
+            Outbound o;
+            lock.lock();
+            try {
+                if ((o = next()) == null) {
+                    drained.signalAll();
+                    return n;
+                }
+                sending++;
+            } finally {
+                lock.unlock();
+            }
+            send(o);
+            n++;
+        }
+    }
+
+    private void send(Outbound o) {
+        try {
+            sink.send(o.buf, o.to);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Failed to send to " + o.to, ex);
+        } finally {
+            pool.release(o.buf);
+            lock.lock();
+            try {
+                sending--;
+                sent++;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Waits for everything queued so far to be sent.
+     *
+     * @param timeout how long to wait
+     * @param unit    unit of {@code timeout}
+     * @return true if the queues emptied in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean drain(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (getDepthLocked() > 0 || sending > 0) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = drained.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking new datagrams. The sending thread exits once the queues
+     * are empty.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int getDepthLocked() {
+        int depth = 0;
+        for (ArrayDeque<Outbound> q : lanes) {
+            depth += q.size();
+        }
+        return depth;
+    }
+
+    /**
+     *
+     * @param lane a lane
+     * @return how many datagrams are waiting in the lane
+     */
+    public int getDepth(Lane lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSentCount() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDroppedCount() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Where the scheduler writes datagrams, usually a socket
+     */
+    @FunctionalInterface
+    public static interface Sink {
+
+        public void send(ByteBuffer buf, SocketAddress to) throws IOException;
+    }
+
+    private static final class Outbound {
+
+        final ByteBuffer buf;
+        final SocketAddress to;
+
+        Outbound(ByteBuffer buf, SocketAddress to) {
+            this.buf = buf;
+            this.to = to;
+        }
+    }
+}
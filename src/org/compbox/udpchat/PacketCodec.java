@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+
+/**
+ * A wire format for {@link ChatPacket}s. The low bits of the version byte,
+ * which is always the second byte of a record, pick the codec; see
+ * {@link ChatPacketFactory#getCodec(byte)}.
+ *
+ * Records are written in three steps so the payload can go straight into the
+ * output buffer: {@link #beginRecord}, then exactly {@code payloadLength}
+ * payload bytes, then {@link #endRecord}.
+ *
+ * @author Kevin Raoofi
+ * @see PacketCodecV0
+ * @see PacketCodecV1
+ */
+public interface PacketCodec {
+
+    /**
+     *
+     * @return the protocol version this codec handles
+     */
+    public byte getVersion();
+
+    /**
+     *
+     * @return the most bytes this codec adds on top of the payload
+     */
+    public int getMaxOverhead();
+
+    /**
+     * Whether record headers can be cached. If every header this codec writes
+     * for a given type and version is identical apart from a big endian
+     * sequence number, which doesn't depend on the payload length, this is the
+     * offset of the sequence number from the start of the header; callers can
+     * then copy a saved header and patch the sequence number in place.
+     *
+     * @return the offset of the sequence number, or -1 if headers vary
+     */
+    public default int getSequenceOffset() {
+        return -1;
+    }
+
+    /**
+     * Writes a record header at the buffer's position.
+     *
+     * @param buf           where to write
+     * @param type          packet type
+     * @param version       version byte, flags included
+     * @param sequence      sequence number
+     * @param payloadLength number of payload bytes which will follow
+     * @return the index the record starts at, to pass to {@link #endRecord}
+     */
+    public int beginRecord(ByteBuffer buf, byte type, byte version,
+            short sequence, int payloadLength);
+
+    /**
+     * Finishes off a record once its payload has been written.
+     *
+     * @param buf   the buffer passed to {@link #beginRecord}
+     * @param start what {@link #beginRecord} returned
+     */
+    public void endRecord(ByteBuffer buf, int start);
+
+    /**
+     * Decodes and checks the header of the record at the buffer's position.
+     * Doesn't move the position and doesn't allocate.
+     *
+     * @param buf    the received data
+     * @param header filled in with what was found
+     * @return false if the record is truncated or otherwise malformed
+     */
+    public boolean decodeHeader(ByteBuffer buf, PacketHeader header);
+
+    /**
+     * Writes a whole packet at the buffer's position.
+     *
+     * @param cp  the packet
+     * @param buf where to write
+     */
+    public default void encode(ChatPacket cp, ByteBuffer buf) {
+        byte[] data = cp.getData();
+        int start = beginRecord(buf, cp.getType(), cp.getVersion(), cp
+                .getSequence(), data.length);
+        buf.put(data);
+        endRecord(buf, start);
+    }
+
+    /**
+     * Reads a whole packet from the buffer's position, leaving the position
+     * just past the record.
+     *
+     * @param buf       the received data
+     * @param header    scratch space for the header
+     * @param timestamp when the packet arrived
+     * @return the packet, or null if the record is malformed in which case the
+     *         rest of the buffer is skipped
+     */
+    public default ChatPacket decode(ByteBuffer buf, PacketHeader header,
+            Instant timestamp) {
+        if (!decodeHeader(buf, header)) {
+            buf.position(buf.limit());
+            return null;
+        }
+        byte[] data = new byte[header.payloadLength];
+        buf.position(header.payloadOffset);
+        buf.get(data);
+        buf.position(header.end);
+        return new ChatPacket(header.type, header.version, header.sequence,
+                data, timestamp);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The original wire format:
+ * <pre>
+ * | type (1) | version (1) | sequence (2) | payload ... |
+ * </pre>
+ * There's no length field, so the payload runs to the end of the datagram and
+ * only one record fits in each datagram.
+ *
+ * @author Kevin Raoofi
+ */
+public final class PacketCodecV0 implements PacketCodec {
+
+    public static final int HEADER_SIZE = 4;
+
+    static final PacketCodecV0 INSTANCE = new PacketCodecV0();
+
+    private PacketCodecV0() {
+    }
+
+    @Override
+    public byte getVersion() {
+        return 0;
+    }
+
+    @Override
+    public int getMaxOverhead() {
+        return HEADER_SIZE;
+    }
+
+    @Override
+    public int getSequenceOffset() {
+        return 2;
+    }
+
+    @Override
+    public int beginRecord(ByteBuffer buf, byte type, byte version,
+            short sequence, int payloadLength) {
+        int start = buf.position();
+        buf.put(type);
+        buf.put(version);
+        buf.putShort(sequence);
+        return start;
+    }
+
+    @Override
+    public void endRecord(ByteBuffer buf, int start) {
+    }
+
+    @Override
+    public boolean decodeHeader(ByteBuffer buf, PacketHeader header) {
+        int start = buf.position();
+        if (buf.limit() - start < HEADER_SIZE) {
+            return false;
+        }
+        header.type = buf.get(start);
+        header.version = buf.get(start + 1);
+        header.flags = 0;
+        header.sequence = buf.getShort(start + 2);
+        header.start = start;
+        header.extensionOffset = start + HEADER_SIZE;
+        header.extensionLength = 0;
+        header.payloadOffset = start + HEADER_SIZE;
+        header.payloadLength = buf.limit() - header.payloadOffset;
+        header.end = buf.limit();
+        return true;
+    }
+}
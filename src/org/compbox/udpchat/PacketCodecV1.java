@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import static org.compbox.udpchat.ChatPacketFactory.FLAG_ACCEPTS_COMPRESSION;
+import static org.compbox.udpchat.ChatPacketFactory.FLAG_COMPRESSED;
+import static org.compbox.udpchat.ChatPacketFactory.FLAG_SEALED;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.FRAGMENT;
+
+/**
+ * Compact wire format with an explicit length and a checksum:
+ * <pre>
+ * | type (1) | version (1) | flags (1) | sequence (varint) | length (varint) |
+ * [ extension length (varint) | extensions ... ] | payload ... | CRC32C (4) |
+ * </pre>
+ * The extension block is only there when {@link #EXTENSIONS} is set and is a
+ * run of {@code tag (varint), length (varint), value} entries; decoders skip
+ * tags they don't know. The checksum covers everything before it. Known tags
+ * are {@link #EXT_SEND_TIME} and {@link #EXT_TRACE_ID}, each with an eight byte
+ * value.
+ *
+ * Since each record knows its own length, several can be packed into a single
+ * datagram with {@link #encodeBatch(List, ByteBuffer)}.
+ *
+ * @author Kevin Raoofi
+ */
+public final class PacketCodecV1 implements PacketCodec {
+
+    public static final byte VERSION = 0x01;
+
+    public static final int COMPRESSED = 0x01;
+    public static final int SEALED = 0x02;
+    public static final int FRAGMENTED = 0x04;
+    /**
+     * More records follow this one in the same datagram
+     */
+    public static final int BATCHED = 0x08;
+    public static final int EXTENSIONS = 0x10;
+    public static final int ACCEPTS_COMPRESSION = 0x20;
+
+    /**
+     * Extension tag for {@link ChatPacket#getSendTime()}
+     */
+    public static final int EXT_SEND_TIME = 1;
+    /**
+     * Extension tag for {@link ChatPacket#getTraceId()}
+     */
+    public static final int EXT_TRACE_ID = 2;
+
+    private static final int EXT_ENTRY_SIZE = 1 + 1 + 8;
+    private static final int MAX_EXT_SIZE = 1 + 2 * EXT_ENTRY_SIZE;
+    private static final int FIXED_SIZE = 3;
+    private static final int CRC_SIZE = 4;
+    private static final int MAX_SEQUENCE_SIZE = 3;
+
+    static final PacketCodecV1 INSTANCE = new PacketCodecV1();
+
+    private PacketCodecV1() {
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    @Override
+    public int getMaxOverhead() {
+        return FIXED_SIZE + MAX_SEQUENCE_SIZE + Varint.sizeOf(
+                ChatPacketFactory.MAX_DATAGRAM_SIZE) + MAX_EXT_SIZE + CRC_SIZE;
+    }
+
+    @Override
+    public int beginRecord(ByteBuffer buf, byte type, byte version,
+            short sequence, int payloadLength) {
+        return beginRecord(buf, type, version, sequence, payloadLength, false,
+                0);
+    }
+
+    private int beginRecord(ByteBuffer buf, byte type, byte version,
+            short sequence, int payloadLength, boolean batched,
+            int extLength) {
+        int flags = 0;
+        if ((version & FLAG_COMPRESSED) != 0) {
+            flags |= COMPRESSED;
+        }
+        if ((version & FLAG_SEALED) != 0) {
+            flags |= SEALED;
+        }
+        if ((version & FLAG_ACCEPTS_COMPRESSION) != 0) {
+            flags |= ACCEPTS_COMPRESSION;
+        }
+        if (type == FRAGMENT.ID) {
+            flags |= FRAGMENTED;
+        }
+        if (batched) {
+            flags |= BATCHED;
+        }
+        if (extLength > 0) {
+            flags |= EXTENSIONS;
+        }
+
+        int start = buf.position();
+        buf.put(type);
+        buf.put(VERSION);
+        buf.put((byte) flags);
+        Varint.put(buf, sequence & 0xFFFF);
+        Varint.put(buf, payloadLength);
+        if (extLength > 0) {
+            Varint.put(buf, extLength);
+        }
+        return start;
+    }
+
+    @Override
+    public void endRecord(ByteBuffer buf, int start) {
+        buf.putInt(Crc32c.compute(buf, start, buf.position()));
+    }
+
+    /**
+     * Packs several packets into one buffer, marking all but the last as
+     * {@link #BATCHED}.
+     *
+     * @param packets the packets to write
+     * @param buf     where to write them
+     */
+    public void encodeBatch(List<ChatPacket> packets, ByteBuffer buf) {
+        for (int i = 0; i < packets.size(); i++) {
+            encode(packets.get(i), buf, i < packets.size() - 1);
+        }
+    }
+
+    /**
+     * Writes a whole packet, along with its send time and trace id if it has
+     * them.
+     */
+    @Override
+    public void encode(ChatPacket cp, ByteBuffer buf) {
+        encode(cp, buf, false);
+    }
+
+    private void encode(ChatPacket cp, ByteBuffer buf, boolean batched) {
+        byte[] data = cp.getData();
+        int extLength = (cp.getSendTime() != 0 ? EXT_ENTRY_SIZE : 0)
+                + (cp.getTraceId() != 0 ? EXT_ENTRY_SIZE : 0);
+        int start = beginRecord(buf, cp.getType(), cp.getVersion(), cp
+                .getSequence(), data.length, batched, extLength);
+        if (cp.getSendTime() != 0) {
+            putExtension(buf, EXT_SEND_TIME, cp.getSendTime());
+        }
+        if (cp.getTraceId() != 0) {
+            putExtension(buf, EXT_TRACE_ID, cp.getTraceId());
+        }
+        buf.put(data);
+        endRecord(buf, start);
+    }
+
+    private static void putExtension(ByteBuffer buf, int tag, long value) {
+        Varint.put(buf, tag);
+        Varint.put(buf, 8);
+        buf.putLong(value);
+    }
+
+    /**
+     * Reads a whole packet, picking up its send time and trace id if it has
+     * them.
+     */
+    @Override
+    public ChatPacket decode(ByteBuffer buf, PacketHeader header,
+            Instant timestamp) {
+        if (!decodeHeader(buf, header)) {
+            buf.position(buf.limit());
+            return null;
+        }
+        long sendTime = 0;
+        long traceId = 0;
+        int idx = header.extensionOffset;
+        int extEnd = idx + header.extensionLength;
+        while (idx < extEnd) {
+            long tag = Varint.get(buf, idx, extEnd);
+            if (tag < 0) {
+                break;
+            }
+            idx += (int) (tag >>> 32);
+            long len = Varint.get(buf, idx, extEnd);
+            if (len < 0) {
+                break;
+            }
+            idx += (int) (len >>> 32);
+            int length = (int) len;
+            if (length < 0 || length > extEnd - idx) {
+                break;
+            }
+            if (length == 8 && (int) tag == EXT_SEND_TIME) {
+                sendTime = buf.getLong(idx);
+            } else if (length == 8 && (int) tag == EXT_TRACE_ID) {
+                traceId = buf.getLong(idx);
+            }
+            idx += length;
+        }
+
+        byte[] data = new byte[header.payloadLength];
+        buf.position(header.payloadOffset);
+        buf.get(data);
+        buf.position(header.end);
+        return new ChatPacket(header.type, header.version, header.sequence,
+                data, timestamp, sendTime, traceId);
+    }
+
+    @Override
+    public boolean decodeHeader(ByteBuffer buf, PacketHeader header) {
+        int start = buf.position();
+        int limit = buf.limit();
+        if (limit - start < FIXED_SIZE + 2 + CRC_SIZE
+                || (buf.get(start + 1) & ChatPacketFactory.VERSION_MASK)
+                != VERSION) {
+            return false;
+        }
+        int flags = buf.get(start + 2) & 0xFF;
+        int idx = start + FIXED_SIZE;
+
+        long v = Varint.get(buf, idx, limit);
+        if (v < 0 || (int) v > 0xFFFF) {
+            return false;
+        }
+        header.sequence = (short) v;
+        idx += (int) (v >>> 32);
+
+        v = Varint.get(buf, idx, limit);
+        if (v < 0) {
+            return false;
+        }
+        int payloadLength = (int) v;
+        idx += (int) (v >>> 32);
+
+        int extLength = 0;
+        if ((flags & EXTENSIONS) != 0) {
+            v = Varint.get(buf, idx, limit);
+            if (v < 0) {
+                return false;
+            }
+            extLength = (int) v;
+            idx += (int) (v >>> 32);
+        }
+        header.extensionOffset = idx;
+        header.extensionLength = extLength;
+
+        if (extLength < 0 || payloadLength < 0
+                || (long) idx + extLength + payloadLength + CRC_SIZE > limit) {
+            return false;
+        }
+        int payloadOffset = idx + extLength;
+        int crcOffset = payloadOffset + payloadLength;
+        if (buf.getInt(crcOffset) != Crc32c.compute(buf, start, crcOffset)) {
+            return false;
+        }
+
+        byte version = VERSION;
+        if ((flags & COMPRESSED) != 0) {
+            version |= FLAG_COMPRESSED;
+        }
+        if ((flags & SEALED) != 0) {
+            version |= FLAG_SEALED;
+        }
+        if ((flags & ACCEPTS_COMPRESSION) != 0) {
+            version |= FLAG_ACCEPTS_COMPRESSION;
+        }
+
+        header.type = buf.get(start);
+        header.version = version;
+        header.flags = flags;
+        header.start = start;
+        header.payloadOffset = payloadOffset;
+        header.payloadLength = payloadLength;
+        header.end = crcOffset + CRC_SIZE;
+        return true;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cheap checks run on each raw datagram before {@link ChatServer} spends
+ * anything on it. In order:
+ * <ol>
+ * <li>the sender's address must not match a denied prefix and, if any
+ * prefixes are allowed, must match one of them;</li>
+ * <li>the sender's address must be within its rate limit;</li>
+ * <li>every record in the datagram must have a well formed header of a known
+ * type, checked with {@link ChatPacketFactory#decodeHeader} into a reused
+ * {@link PacketHeader}.</li>
+ * </ol>
+ * Nothing is allocated for a datagram from an IPv4 sender when only the rate
+ * limit is set. Prefix checks and IPv6 senders cost a copy of the address
+ * bytes.
+ *
+ * Rate limits are per IP address, ignoring the port, and work as a token
+ * bucket kept in a single {@code long} per address: the time at which the
+ * bucket would be full again, as in the generic cell rate algorithm. An
+ * address whose bucket is already full needs no entry at all, so the table is
+ * fixed size and open addressed, and when a short probe doesn't find a slot
+ * the entry closest to full is evicted. Updates are lock free.
+ *
+ * Prefix lists are copied on write and meant to be set up front. The header
+ * check keeps one {@link PacketHeader}, so {@link #check} should only be
+ * called by the thread reading the socket.
+ *
+ * @author Kevin Raoofi
+ */
+public class PacketFilter {
+
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final int PROBES = 8;
+
+    /**
+     * What the filter decided about a datagram
+     */
+    public static enum Verdict {
+
+        ACCEPT(null),
+        DENIED("address denied"),
+        RATE_LIMITED("rate limited"),
+        MALFORMED("malformed header");
+
+        /**
+         * Why the datagram was dropped, for logs and events
+         */
+        public final String reason;
+
+        Verdict(String reason) {
+            this.reason = reason;
+        }
+    }
+
+    private volatile Prefix[] allowed;
+    private volatile Prefix[] denied;
+
+    private final AtomicLongArray keys;
+    /**
+     * When each address's bucket will be full again
+     */
+    private final AtomicLongArray full;
+    private final int mask;
+    private long intervalNanos;
+    private long burstNanos;
+
+    private final PacketHeader header;
+    private final LongAdder[] counts;
+
+    /**
+     * Constructs a filter which lets everything through until configured.
+     */
+    public PacketFilter() {
+        this(DEFAULT_TABLE_SIZE);
+    }
+
+    /**
+     *
+     * @param tableSize how many senders can be rate limited at once; a power
+     *                  of two
+     */
+    public PacketFilter(int tableSize) {
+        if (Integer.bitCount(tableSize) != 1 || tableSize < PROBES) {
+            throw new IllegalArgumentException("Bad table size: " + tableSize);
+        }
+        this.allowed = new Prefix[0];
+        this.denied = new Prefix[0];
+        this.keys = new AtomicLongArray(tableSize);
+        this.full = new AtomicLongArray(tableSize);
+        this.mask = tableSize - 1;
+        this.header = new PacketHeader();
+        this.counts = new LongAdder[Verdict.values().length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Only lets through addresses matching one of the allowed prefixes, once
+     * any have been added.
+     *
+     * @param prefix an address with an optional prefix length, such as
+     *               {@code 10.0.0.0/8} or {@code ::1}
+     * @throws UnknownHostException if the address can't be resolved
+     */
+    public synchronized void allow(String prefix) throws UnknownHostException {
+        allowed = add(allowed, Prefix.parse(prefix));
+    }
+
+    /**
+     * Drops everything from addresses matching the prefix, whether allowed or
+     * not.
+     *
+     * @param prefix an address with an optional prefix length, such as
+     *               {@code 10.0.0.0/8} or {@code ::1}
+     * @throws UnknownHostException if the address can't be resolved
+     */
+    public synchronized void deny(String prefix) throws UnknownHostException {
+        denied = add(denied, Prefix.parse(prefix));
+    }
+
+    private static Prefix[] add(Prefix[] list, Prefix p) {
+        Prefix[] copy = Arrays.copyOf(list, list.length + 1);
+        copy[list.length] = p;
+        return copy;
+    }
+
+    /**
+     * Limits each address to {@code perSecond} datagrams a second on average,
+     * with bursts of up to {@code burst} at once. Must be called before the
+     * filter is in use; by default there is no limit.
+     *
+     * @param perSecond average datagrams a second
+     * @param burst     most datagrams allowed back to back
+     */
+    public void setRateLimit(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Bad rate limit");
+        }
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1)
+                / perSecond));
+        this.burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Checks a received datagram.
+     *
+     * @param buf      the datagram, between its position and limit; left as
+     *                 it was
+     * @param from     who sent it
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @return whether to accept it, and if not then why
+     */
+    public Verdict check(ByteBuffer buf, SocketAddress from, long nowNanos) {
+        Verdict v = checkAddress(from, nowNanos);
+        if (v == Verdict.ACCEPT && !checkHeaders(buf)) {
+            v = Verdict.MALFORMED;
+        }
+        counts[v.ordinal()].increment();
+        return v;
+    }
+
+    private Verdict checkAddress(SocketAddress from, long nowNanos) {
+        Prefix[] allow = allowed;
+        Prefix[] deny = denied;
+        if (allow.length == 0 && deny.length == 0 && intervalNanos == 0) {
+            return Verdict.ACCEPT;
+        }
+        if (!(from instanceof InetSocketAddress)) {
+            return Verdict.DENIED;
+        }
+        InetAddress address = ((InetSocketAddress) from).getAddress();
+        if (address == null) {
+            return Verdict.DENIED;
+        }
+        byte[] ip = null;
+        if (allow.length > 0 || deny.length > 0) {
+            ip = address.getAddress();
+        }
+        for (Prefix p : deny) {
+            if (p.matches(ip)) {
+                return Verdict.DENIED;
+            }
+        }
+        if (allow.length > 0) {
+            boolean ok = false;
+            for (Prefix p : allow) {
+                if (p.matches(ip)) {
+                    ok = true;
+                    break;
+                }
+            }
+            if (!ok) {
+                return Verdict.DENIED;
+            }
+        }
+        if (intervalNanos > 0 && !take(key(address, ip), nowNanos)) {
+            return Verdict.RATE_LIMITED;
+        }
+        return Verdict.ACCEPT;
+    }
+
+    /**
+     * Takes a token from the address's bucket.
+     *
+     * @return false if the bucket is empty
+     */
+    private boolean take(long key, long nowNanos) {
+        int slot = slot(key, nowNanos);
+        while (true) {
+            long wasFull = full.get(slot);
+            // a bucket that has been full for a while is just full
+            long fullAt = Math.max(wasFull, nowNanos);
+            long after = fullAt + intervalNanos;
+            if (after - nowNanos > burstNanos) {
+                return false;
+            }
+            if (full.compareAndSet(slot, wasFull, after)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Finds the slot for an address, claiming one if needed. A slot whose
+     * bucket is already full is as good as empty.
+     */
+    private int slot(long key, long nowNanos) {
+        int home = mix(key) & mask;
+        int victim = -1;
+        int nearlyFull = home;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < PROBES; i++) {
+            int s = (home + i) & mask;
+            long k = keys.get(s);
+            if (k == key) {
+                return s;
+            }
+            long f = full.get(s);
+            if (victim < 0 && (k == 0 || f - nowNanos <= 0)) {
+                victim = s;
+            } else if (f < oldest) {
+                oldest = f;
+                nearlyFull = s;
+            }
+        }
+        if (victim < 0) {
+            victim = nearlyFull;
+        }
+        // losing a race here only mixes up two senders' buckets for a bit
+        keys.set(victim, key);
+        full.set(victim, nowNanos);
+        return victim;
+    }
+
+    /**
+     * Folds an address into a nonzero key. IPv4 addresses never collide, and
+     * their hash code is the address itself, so they need no copy.
+     *
+     * @param ip the address bytes if already copied, or null
+     */
+    private static long key(InetAddress address, byte[] ip) {
+        if (address instanceof Inet4Address) {
+            return 1L << 32 | address.hashCode() & 0xFFFFFFFFL;
+        }
+        if (ip == null) {
+            ip = address.getAddress();
+        }
+        long k = 0;
+        for (byte b : ip) {
+            k = k * 0x100000001B3L + (b & 0xFF);
+        }
+        return k == 0 ? 1 : k;
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Walks every record in the datagram without allocating or moving its
+     * position.
+     */
+    private boolean checkHeaders(ByteBuffer buf) {
+        int pos = buf.position();
+        if (!buf.hasRemaining()) {
+            return false;
+        }
+        try {
+            while (buf.hasRemaining()) {
+                if (!ChatPacketFactory.decodeHeader(buf, header)
+                        || ChatPacketFactory.PacketType.getPacketType(
+                                header.type)
+                        == ChatPacketFactory.PacketType.UNKNOWN) {
+                    return false;
+                }
+                buf.position(header.end);
+            }
+            return true;
+        } finally {
+            buf.position(pos);
+        }
+    }
+
+    /**
+     *
+     * @param verdict a verdict
+     * @return how many datagrams have been given it
+     */
+    public long getCount(Verdict verdict) {
+        return counts[verdict.ordinal()].sum();
+    }
+
+    private static final class Prefix {
+
+        final byte[] network;
+        final int bits;
+
+        Prefix(byte[] network, int bits) {
+            this.network = network;
+            this.bits = bits;
+        }
+
+        static Prefix parse(String s) throws UnknownHostException {
+            int slash = s.indexOf('/');
+            byte[] ip = InetAddress.getByName(slash < 0 ? s : s.substring(0,
+                    slash)).getAddress();
+            int bits = slash < 0 ? ip.length * 8 : Integer.parseInt(s
+                    .substring(slash + 1));
+            if (bits < 0 || bits > ip.length * 8) {
+                throw new IllegalArgumentException("Bad prefix: " + s);
+            }
+            return new Prefix(ip, bits);
+        }
+
+        boolean matches(byte[] ip) {
+            if (ip.length != network.length) {
+                return false;
+            }
+            int whole = bits / 8;
+            for (int i = 0; i < whole; i++) {
+                if (ip[i] != network[i]) {
+                    return false;
+                }
+            }
+            int rest = bits % 8;
+            if (rest == 0) {
+                return true;
+            }
+            int m = 0xFF00 >>> rest & 0xFF;
+            return ((ip[whole] ^ network[whole]) & m) == 0;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+/**
+ * A reusable view of one record's header, filled in by
+ * {@link PacketCodec#decodeHeader(java.nio.ByteBuffer, PacketHeader)}. All the
+ * offsets are absolute indexes into the buffer which was decoded. Keeping one
+ * of these around per reading thread means headers can be looked at without
+ * allocating anything.
+ *
+ * @author Kevin Raoofi
+ */
+public final class PacketHeader {
+
+    /**
+     * Packet type
+     */
+    public byte type;
+    /**
+     * Version byte as {@link ChatPacket} sees it, flags included
+     */
+    public byte version;
+    /**
+     * Codec specific wire flags; always 0 for v0
+     */
+    public int flags;
+    /**
+     * Sequence number
+     */
+    public short sequence;
+    /**
+     * Index of the first byte of the record
+     */
+    public int start;
+    /**
+     * Index of the first header extension byte
+     */
+    public int extensionOffset;
+    /**
+     * Number of header extension bytes; 0 if there are none
+     */
+    public int extensionLength;
+    /**
+     * Index of the first payload byte
+     */
+    public int payloadOffset;
+    /**
+     * Number of payload bytes
+     */
+    public int payloadLength;
+    /**
+     * Index just past the end of the record, trailer included
+     */
+    public int end;
+
+    @Override
+    public String toString() {
+        return "PacketHeader{" + "type=" + type + ", version=" + version
+                + ", flags=" + flags + ", sequence=" + sequence
+                + ", payloadLength=" + payloadLength + '}';
+    }
+}
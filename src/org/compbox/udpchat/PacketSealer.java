@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+import java.util.Map;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import static org.compbox.udpchat.ChatPacketFactory.FLAG_SEALED;
+
+/**
+ * Authenticated encryption of {@link ChatPacket} payloads using the per peer
+ * keys in a {@link SessionKeyCache}. A sealed packet has
+ * {@link ChatPacketFactory#FLAG_SEALED} set in its version byte and its data is
+ * <pre>
+ * | counter (8) | ciphertext | tag (16) |
+ * </pre>
+ * The packet header (type, version and sequence) is authenticated as associated
+ * data, so tampering with any of it is caught too.
+ *
+ * The counter is the session's own count of packets sealed, so unlike the 16
+ * bit sequence number it never repeats under one key, with its top bit set by
+ * the end which initiated the session. The two ends share the key and count
+ * from 0 independently, so that bit is what keeps their nonces apart. The nonce
+ * is the session's base IV with the counter XORed into the last eight bytes
+ * and the packet type into the one before, in the style of TLS 1.3. A packet
+ * carrying this end's own bit is refused, so one can't be reflected back to
+ * its sender either.
+ *
+ * Ciphers are cached per thread and per transformation, so nothing is allocated
+ * per packet other than the output array and the parameter spec JCE insists
+ * on.
+ *
+ * @author Kevin Raoofi
+ */
+public class PacketSealer {
+
+    public static final int TAG_SIZE = 16;
+    public static final int COUNTER_SIZE = 8;
+    /**
+     * Bytes sealing adds to a payload
+     */
+    public static final int OVERHEAD = COUNTER_SIZE + TAG_SIZE;
+    /**
+     * Set in the counter of every packet sealed by the initiator of a session
+     */
+    static final long INITIATOR_BIT = 1L << 63;
+
+    private static final ThreadLocal<Scratch> SCRATCH
+            = ThreadLocal.withInitial(Scratch::new);
+
+    private final SessionKeyCache sessions;
+
+    /**
+     *
+     * @param sessions where to look up keys for each peer
+     */
+    public PacketSealer(SessionKeyCache sessions) {
+        this.sessions = sessions;
+    }
+
+    public SessionKeyCache getSessions() {
+        return sessions;
+    }
+
+    /**
+     *
+     * @param peer the remote address
+     * @return true if packets to or from the peer get sealed
+     */
+    public boolean hasSession(SocketAddress peer) {
+        return sessions.get(peer) != null;
+    }
+
+    /**
+     * Encrypts and authenticates a packet.
+     *
+     * @param cp   the packet to seal
+     * @param peer who it's going to
+     * @return the sealed packet, or the same packet if there's no session with
+     *         the peer
+     * @throws GeneralSecurityException if the cipher can't be set up
+     * @throws IllegalStateException    if the session has run out of nonces
+     */
+    public ChatPacket seal(ChatPacket cp, SocketAddress peer)
+            throws GeneralSecurityException {
+        SessionKeyCache.Session s = sessions.get(peer);
+        if (s == null) {
+            return cp;
+        }
+        long counter = s.claim();
+        if (counter < 0) {
+            throw new IllegalStateException("Session for " + peer
+                    + " is out of nonces; a new key is needed");
+        }
+        if (s.initiator) {
+            counter |= INITIATOR_BIT;
+        }
+
+        byte version = (byte) (cp.getVersion() | FLAG_SEALED);
+        Scratch sc = SCRATCH.get();
+        Cipher cipher = sc.init(s, Cipher.ENCRYPT_MODE, cp.getType(), version,
+                cp.getSequence(), counter);
+        byte[] data = cp.getData();
+        byte[] out = new byte[COUNTER_SIZE + data.length + TAG_SIZE];
+        for (int i = 0; i < COUNTER_SIZE; i++) {
+            out[i] = (byte) (counter >>> (56 - 8 * i));
+        }
+        cipher.doFinal(data, 0, data.length, out, COUNTER_SIZE);
+        return cp.withPayload(version, out);
+    }
+
+    /**
+     * Checks and decrypts a packet.
+     *
+     * @param cp   a packet which may or may not be sealed
+     * @param peer who it came from
+     * @return the decrypted packet, or the same packet if it wasn't sealed
+     * @throws AEADBadTagException      if the packet was tampered with
+     * @throws GeneralSecurityException if the packet is sealed but there is no
+     *                                  session for the peer, or it otherwise
+     *                                  can't be opened
+     */
+    public ChatPacket open(ChatPacket cp, SocketAddress peer)
+            throws GeneralSecurityException {
+        if ((cp.getVersion() & FLAG_SEALED) == 0) {
+            return cp;
+        }
+        SessionKeyCache.Session s = sessions.get(peer);
+        if (s == null) {
+            throw new GeneralSecurityException("No session for " + peer);
+        }
+        byte[] data = cp.getData();
+        if (data.length < OVERHEAD) {
+            throw new AEADBadTagException("Truncated tag");
+        }
+        long counter = 0;
+        for (int i = 0; i < COUNTER_SIZE; i++) {
+            counter = counter << 8 | (data[i] & 0xFF);
+        }
+        if ((counter < 0) == s.initiator) {
+            throw new AEADBadTagException("Sealed by this end");
+        }
+
+        Scratch sc = SCRATCH.get();
+        Cipher cipher = sc.init(s, Cipher.DECRYPT_MODE, cp.getType(), cp
+                .getVersion(), cp.getSequence(), counter);
+        byte[] out = new byte[data.length - OVERHEAD];
+        cipher.doFinal(data, COUNTER_SIZE, data.length - COUNTER_SIZE, out, 0);
+        return cp.withPayload((byte) (cp.getVersion() & ~FLAG_SEALED), out);
+    }
+
+    /**
+     * Works out the nonce for a packet.
+     *
+     * @param ivBase  the session's base IV
+     * @param type    the packet type
+     * @param counter the session's count for the packet, with the initiator
+     *                bit if it has one
+     * @param nonce   where to put it
+     */
+    static void nonce(byte[] ivBase, byte type, long counter, byte[] nonce) {
+        System.arraycopy(ivBase, 0, nonce, 0, nonce.length);
+        nonce[nonce.length - COUNTER_SIZE - 1] ^= type;
+        for (int i = 0; i < COUNTER_SIZE; i++) {
+            nonce[nonce.length - 1 - i] ^= (byte) (counter >>> (8 * i));
+        }
+    }
+
+    /**
+     * Per thread state: one {@code Cipher} per transformation plus buffers for
+     * the nonce and associated data
+     */
+    private static final class Scratch {
+
+        final Map<String, Cipher> ciphers = new HashMap<>();
+        final byte[] nonce = new byte[SessionKeyCache.Session.NONCE_SIZE];
+        final byte[] aad = new byte[4];
+
+        Cipher init(SessionKeyCache.Session s, int mode, byte type,
+                byte version, short sequence, long counter)
+                throws GeneralSecurityException {
+            Cipher cipher = ciphers.get(s.transformation);
+            if (cipher == null) {
+                cipher = Cipher.getInstance(s.transformation);
+                ciphers.put(s.transformation, cipher);
+            }
+
+            nonce(s.ivBase, type, counter, nonce);
+
+            AlgorithmParameterSpec spec = SessionKeyCache.AES_GCM.equals(
+                    s.transformation)
+                    ? new GCMParameterSpec(TAG_SIZE * 8, nonce)
+                    : new IvParameterSpec(nonce);
+            cipher.init(mode, s.key, spec);
+
+            aad[0] = type;
+            aad[1] = version;
+            aad[2] = (byte) (sequence >> 8);
+            aad[3] = (byte) sequence;
+            cipher.updateAAD(aad);
+            return cipher;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+/**
+ * Timings of one sampled packet as it goes through a host. Each stage is
+ * marked as it finishes, so the time spent in a stage is the gap since the
+ * mark before it. Finished traces go to a {@link TraceSink}.
+ *
+ * Not thread safe; a trace belongs to whichever thread is handling its packet.
+ *
+ * @author Kevin Raoofi
+ */
+public final class PacketTrace {
+
+    private final long traceId;
+    private final SocketAddress peer;
+    private final long startNanos;
+    private short sequence;
+    private long latencyMicros;
+    private String[] stages;
+    private long[] marks;
+    private int count;
+
+    /**
+     *
+     * @param traceId    the trace id the packet carried
+     * @param peer       who sent it
+     * @param startNanos {@link System#nanoTime()} when it was received
+     */
+    public PacketTrace(long traceId, SocketAddress peer, long startNanos) {
+        this.traceId = traceId;
+        this.peer = peer;
+        this.startNanos = startNanos;
+        this.latencyMicros = -1;
+        this.stages = new String[8];
+        this.marks = new long[8];
+    }
+
+    /**
+     * Marks the end of a stage now.
+     *
+     * @param stage name of the stage
+     */
+    public void mark(String stage) {
+        mark(stage, System.nanoTime());
+    }
+
+    /**
+     *
+     * @param stage    name of the stage
+     * @param endNanos {@link System#nanoTime()} when it ended
+     */
+    public void mark(String stage, long endNanos) {
+        if (count == stages.length) {
+            stages = Arrays.copyOf(stages, count * 2);
+            marks = Arrays.copyOf(marks, count * 2);
+        }
+        stages[count] = stage;
+        marks[count] = endNanos;
+        count++;
+    }
+
+    void setSequence(short sequence) {
+        this.sequence = sequence;
+    }
+
+    void setLatencyMicros(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    public long getTraceId() {
+        return traceId;
+    }
+
+    public SocketAddress getPeer() {
+        return peer;
+    }
+
+    public short getSequence() {
+        return sequence;
+    }
+
+    /**
+     *
+     * @return one way latency from the sender to the start of the trace in
+     *         microseconds, or -1 if the packet had no send time; includes
+     *         clock skew between the hosts
+     */
+    public long getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public int getStageCount() {
+        return count;
+    }
+
+    public String getStage(int i) {
+        return stages[i];
+    }
+
+    /**
+     *
+     * @param i a stage index
+     * @return nanoseconds spent in the stage
+     */
+    public long getStageNanos(int i) {
+        return marks[i] - (i == 0 ? startNanos : marks[i - 1]);
+    }
+
+    /**
+     *
+     * @return nanoseconds from receipt to the last mark
+     */
+    public long getTotalNanos() {
+        return count == 0 ? 0 : marks[count - 1] - startNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PacketTrace{id=")
+                .append(Long.toHexString(traceId)).append(", peer=")
+                .append(peer).append(", sequence=").append(sequence)
+                .append(", latency=").append(latencyMicros).append("us");
+        for (int i = 0; i < count; i++) {
+            sb.append(", ").append(stages[i]).append('=')
+                    .append(getStageNanos(i)).append("ns");
+        }
+        return sb.append('}').toString();
+    }
+}
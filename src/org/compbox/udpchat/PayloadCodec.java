@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * A compression algorithm usable by {@link PayloadCompressor}. Each codec has a
+ * unique id which is written in front of the compressed bytes so the receiver
+ * knows which codec to decompress with. {@link DeflatePayloadCodec} is the only
+ * one shipped, but faster codecs in the style of LZ4 or Zstd can be plugged in
+ * with {@link PayloadCompressor#register(PayloadCodec)}.
+ *
+ * Implementations don't need to be thread safe.
+ *
+ * @author Kevin Raoofi
+ */
+public interface PayloadCodec {
+
+    /**
+     *
+     * @return the id written on the wire for this codec; 0 is reserved
+     */
+    public byte getId();
+
+    /**
+     * Compresses {@code src} into {@code dst}.
+     *
+     * @param src    uncompressed data
+     * @param off    offset into {@code src}
+     * @param len    number of bytes to compress
+     * @param dst    where the compressed data goes
+     * @param dstOff offset into {@code dst}
+     * @param dstLen room available in {@code dst}
+     * @return the compressed size, or -1 if it didn't fit in {@code dstLen}
+     */
+    public int compress(byte[] src, int off, int len, byte[] dst, int dstOff,
+            int dstLen);
+
+    /**
+     * Decompresses {@code src} into {@code dst}.
+     *
+     * @param src    compressed data
+     * @param off    offset into {@code src}
+     * @param len    number of compressed bytes
+     * @param dst    where the decompressed data goes
+     * @param dstOff offset into {@code dst}
+     * @param dstLen room available in {@code dst}
+     * @return the number of bytes written to {@code dst}, or -1 if it didn't
+     *         fit in {@code dstLen}
+     * @throws DataFormatException if the data is corrupt or truncated
+     */
+    public int decompress(byte[] src, int off, int len, byte[] dst, int dstOff,
+            int dstLen) throws DataFormatException;
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import static org.compbox.udpchat.ChatPacketFactory.FLAG_COMPRESSED;
+
+/**
+ * Optional compression stage for {@link ChatPacket} payloads. A compressed
+ * packet has {@link ChatPacketFactory#FLAG_COMPRESSED} set in its version byte
+ * and its data looks like:
+ * <pre>
+ * | codec id (1) | original length (4) | compressed bytes ... |
+ * </pre>
+ * Payloads under the threshold, or ones which don't get any smaller, are left
+ * alone.
+ *
+ * The original length comes from the sender, so it's only trusted as an upper
+ * bound: the output array starts out at a guess based on the compressed size
+ * and grows as decompression needs it, and a payload has to come out at
+ * exactly the length given.
+ *
+ * Not thread safe, since the codecs aren't.
+ *
+ * @author Kevin Raoofi
+ */
+public class PayloadCompressor {
+
+    public static final int DEFAULT_THRESHOLD = 32;
+
+    private static final int HEADER_SIZE = 5;
+    /**
+     * First guess at how much bigger a payload gets when decompressed
+     */
+    private static final int EXPANSION_GUESS = 4;
+    private static final int MIN_OUTPUT = 256;
+
+    private final PayloadCodec[] codecs;
+    private final PayloadCodec preferred;
+    private final int threshold;
+    private final int maxLength;
+    private byte[] scratch;
+
+    /**
+     * Constructs a compressor using Deflate with the default dictionary
+     */
+    public PayloadCompressor() {
+        this(new DeflatePayloadCodec(), DEFAULT_THRESHOLD);
+    }
+
+    /**
+     *
+     * @param preferred the codec used for compressing
+     * @param threshold payloads smaller than this aren't compressed
+     */
+    public PayloadCompressor(PayloadCodec preferred, int threshold) {
+        this.codecs = new PayloadCodec[256];
+        this.preferred = preferred;
+        this.threshold = threshold;
+        this.maxLength = FragmentReassembler.DEFAULT_MAX_MESSAGE_SIZE;
+        this.scratch = new byte[ChatPacketFactory.MAX_DATAGRAM_SIZE];
+        register(preferred);
+    }
+
+    /**
+     * Makes a codec available for decompression.
+     *
+     * @param codec the codec to add; replaces any with the same id
+     */
+    public void register(PayloadCodec codec) {
+        if (codec.getId() == 0) {
+            throw new IllegalArgumentException("Codec id 0 is reserved");
+        }
+        codecs[codec.getId() & 0xFF] = codec;
+    }
+
+    /**
+     *
+     * @param cp an uncompressed packet
+     * @return a compressed copy of the packet, or the same packet if
+     *         compressing it wasn't worth it
+     */
+    public ChatPacket compress(ChatPacket cp) {
+        byte[] data = cp.getData();
+        int room = data.length - HEADER_SIZE;
+        if (data.length < threshold || room <= 0
+                || (cp.getVersion() & FLAG_COMPRESSED) != 0) {
+            return cp;
+        }
+        if (scratch.length < data.length) {
+            scratch = new byte[data.length];
+        }
+        int n = preferred.compress(data, 0, data.length, scratch, 0, room);
+        if (n < 0) {
+            return cp;
+        }
+
+        byte[] out = new byte[HEADER_SIZE + n];
+        ByteBuffer.wrap(out).put(preferred.getId()).putInt(data.length).put(
+                scratch, 0, n);
+        return cp.withPayload((byte) (cp.getVersion() | FLAG_COMPRESSED), out);
+    }
+
+    /**
+     *
+     * @param cp a packet which may or may not be compressed
+     * @return the packet with its payload decompressed
+     * @throws DataFormatException if the payload is corrupt or uses an unknown
+     *                             codec
+     */
+    public ChatPacket decompress(ChatPacket cp) throws DataFormatException {
+        if ((cp.getVersion() & FLAG_COMPRESSED) == 0) {
+            return cp;
+        }
+        byte[] data = cp.getData();
+        if (data.length < HEADER_SIZE) {
+            throw new DataFormatException("Truncated compression header");
+        }
+        ByteBuffer header = ByteBuffer.wrap(data);
+        PayloadCodec codec = codecs[header.get() & 0xFF];
+        int length = header.getInt();
+        if (codec == null) {
+            throw new DataFormatException("Unknown codec " + data[0]);
+        }
+        if (length < 0 || length > maxLength) {
+            throw new DataFormatException("Bad decompressed length " + length);
+        }
+
+        int compressed = data.length - HEADER_SIZE;
+        byte[] out = new byte[(int) Math.min(length, Math.max(MIN_OUTPUT,
+                (long) compressed * EXPANSION_GUESS))];
+        int n;
+        while ((n = codec.decompress(data, HEADER_SIZE, compressed, out, 0,
+                out.length)) < 0) {
+            if (out.length == length) {
+                throw new DataFormatException("Decompresses to more than "
+                        + length + " bytes");
+            }
+            out = new byte[(int) Math.min(length, out.length * 2L)];
+        }
+        if (n != length) {
+            throw new DataFormatException("Expected " + length
+                    + " bytes, got " + n);
+        }
+        return cp.withPayload((byte) (cp.getVersion() & ~FLAG_COMPRESSED),
+                out);
+    }
+
+    /**
+     *
+     * @param cp a packet from a peer
+     * @return true if the peer says it can take compressed payloads
+     */
+    public static boolean acceptsCompression(ChatPacket cp) {
+        return (cp.getVersion() & ChatPacketFactory.FLAG_ACCEPTS_COMPRESSION)
+                != 0;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One term's postings in a {@link SearchIndex}: every message the term
+ * appears in, in increasing id order, each followed by where in the message it
+ * appears. Everything is a {@link Varint} delta, so a common term over a long
+ * history mostly costs a byte or two a message:
+ * <pre>
+ * | id delta | position count | [ position delta ] ... |
+ * </pre>
+ * The first id is a delta from -1, as is the first position of each message.
+ *
+ * Not thread safe; the index guards it.
+ *
+ * @author Kevin Raoofi
+ */
+final class PostingList {
+
+    private ByteBuffer buf;
+    private int lastId;
+
+    PostingList() {
+        this.buf = ByteBuffer.allocate(16);
+        this.lastId = -1;
+    }
+
+    /**
+     *
+     * @param id        the message, greater than any added before
+     * @param positions where the term appears, in increasing order
+     * @param count     how many of {@code positions} to use
+     */
+    void add(int id, int[] positions, int count) {
+        int need = (count + 2) * Varint.MAX_SIZE;
+        if (buf.remaining() < need) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity()
+                    * 2, buf.position() + need));
+            buf.flip();
+            bigger.put(buf);
+            buf = bigger;
+        }
+        Varint.put(buf, id - lastId);
+        Varint.put(buf, count);
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            Varint.put(buf, positions[i] - last);
+            last = positions[i];
+        }
+        lastId = id;
+    }
+
+    /**
+     *
+     * @return how many bytes the postings take up
+     */
+    int size() {
+        return buf.position();
+    }
+
+    /**
+     *
+     * @return the encoded postings, from position 0 to the limit
+     */
+    ByteBuffer view() {
+        ByteBuffer v = buf.duplicate();
+        v.flip();
+        return v;
+    }
+}
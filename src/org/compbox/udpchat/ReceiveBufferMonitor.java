@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Works out whether a server is losing datagrams to a full kernel receive
+ * buffer, and can grow the buffer when it is. Datagrams dropped by the kernel
+ * never reach the application, so the only sign of them is gaps in sequence
+ * numbers. Gaps alone could just as well be loss on the way, though, so they
+ * are only blamed on the buffer when datagrams are also arriving fast enough
+ * that a reader held up for {@link #STALL_NANOS}, by a GC pause or the
+ * scheduler, would have filled at least half of it.
+ *
+ * {@link #onReceive(int)} is called by the thread reading the socket; the rest
+ * by whatever runs the server's timers.
+ *
+ * @author Kevin Raoofi
+ */
+public class ReceiveBufferMonitor {
+
+    private static final Logger LOG = Logger.getLogger(
+            ReceiveBufferMonitor.class.getName());
+
+    /**
+     * How long the reader is assumed to go without reading now and then
+     */
+    public static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    /**
+     * Shortest time gaps and traffic are measured over
+     */
+    public static final long PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DatagramTransport transport;
+    private volatile int maxBuffer;
+    private volatile long bytes;
+
+    private boolean started;
+    private long lastCheck;
+    private long lastBytes;
+    private long lastMissing;
+    private long overflows;
+    private int grown;
+
+    /**
+     *
+     * @param transport the transport being read
+     * @param maxBuffer the largest receive buffer to grow to, or 0 to only
+     *                  watch
+     */
+    public ReceiveBufferMonitor(DatagramTransport transport, int maxBuffer) {
+        this.transport = transport;
+        this.maxBuffer = maxBuffer;
+    }
+
+    /**
+     *
+     * @param maxBuffer the largest receive buffer to grow to, or 0 to only
+     *                  watch
+     */
+    public void setMaxBuffer(int maxBuffer) {
+        this.maxBuffer = maxBuffer;
+    }
+
+    /**
+     * Counts a datagram read from the transport.
+     *
+     * @param size its size in bytes
+     */
+    public void onReceive(int size) {
+        // only the reading thread writes this
+        bytes += size;
+    }
+
+    /**
+     * Compares the gaps and traffic since the last check against the size of
+     * the receive buffer, once a period has gone by.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @param missing  total sequence numbers found missing so far
+     * @return true if the buffer looks to have overflowed
+     */
+    public synchronized boolean check(long nowNanos, long missing) {
+        long total = bytes;
+        if (!started) {
+            started = true;
+            lastCheck = nowNanos;
+            lastBytes = total;
+            lastMissing = missing;
+            return false;
+        }
+        long elapsed = nowNanos - lastCheck;
+        if (elapsed < PERIOD_NANOS) {
+            return false;
+        }
+        long gaps = missing - lastMissing;
+        long received = total - lastBytes;
+        lastCheck = nowNanos;
+        lastBytes = total;
+        lastMissing = missing;
+        if (gaps <= 0) {
+            return false;
+        }
+        try {
+            int buffer = transport.getReceiveBufferSize();
+            long stalled = received * STALL_NANOS / elapsed;
+            if (buffer <= 0 || stalled * 2 < buffer) {
+                return false;
+            }
+            overflows++;
+            LOG.log(Level.WARNING, "{0} sequence numbers missing while "
+                    + "receiving {1} bytes a second; the {2} byte receive "
+                    + "buffer is probably overflowing", new Object[]{gaps,
+                        received * TimeUnit.SECONDS.toNanos(1) / elapsed,
+                        buffer});
+            int max = maxBuffer;
+            if (max > buffer) {
+                int want = (int) Math.min(max, Math.max(2L * buffer, 4
+                        * stalled));
+                transport.setReceiveBufferSize(want);
+                int got = transport.getReceiveBufferSize();
+                if (got > buffer) {
+                    grown++;
+                    LOG.log(Level.INFO, "Grew the receive buffer to {0}",
+                            got);
+                } else {
+                    // the kernel won't give any more; stop asking
+                    maxBuffer = 0;
+                    LOG.log(Level.WARNING, "Couldn''t grow the receive "
+                            + "buffer past {0}", buffer);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, "Couldn't check the receive buffer", ex);
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return how many checks found the receive buffer overflowing
+     */
+    public synchronized long getOverflowCount() {
+        return overflows;
+    }
+
+    /**
+     *
+     * @return how many times the receive buffer was grown
+     */
+    public synchronized int getGrowCount() {
+        return grown;
+    }
+}
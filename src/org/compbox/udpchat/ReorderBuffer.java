@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Puts one peer's packets back in sequence order. Packets which arrive ahead
+ * of a gap are held until the gap fills, or until the oldest of them has been
+ * held for the maximum hold time, at which point the gap is given up on and
+ * everything held is released in order. Holding more than the memory limit
+ * gives up on the gap early.
+ *
+ * Nothing says where a peer's stream starts, so unless the first packet to
+ * arrive has sequence number 0 it is held as if behind a gap, and anything
+ * earlier turning up within the hold time goes in front of it. A packet too
+ * far either side of those held to fit in the buffer with them ends the wait:
+ * one far ahead has everything held released before it, and one far behind is
+ * passed on first.
+ *
+ * A packet from behind a gap which was given up on is passed on straight away
+ * rather than dropped. Released packets have their timestamps bumped where
+ * needed so that timestamps never go backwards, which keeps anything sorting
+ * by timestamp in sequence order too.
+ *
+ * Methods are synchronized and packets are passed on while holding the lock,
+ * so packets from one peer are never delivered concurrently or out of order
+ * even when {@link #flushExpired} runs on a timer thread.
+ *
+ * @author Kevin Raoofi
+ */
+public class ReorderBuffer {
+
+    public static final int CAPACITY = 1024;
+
+    private final SequenceRingBuffer<ChatPacket> held;
+    private final long[] arrivals;
+    private final long maxHoldNanos;
+    private final int maxBytes;
+    private int heldBytes;
+    private int next;
+    /**
+     * Newest sequence number held while the start is being worked out
+     */
+    private int newest;
+    private boolean started;
+    private boolean starting;
+    private Instant lastDelivered;
+
+    private long reordered;
+    private long skipped;
+    private long late;
+
+    /**
+     *
+     * @param maxHoldNanos longest a packet is held waiting for a gap to fill
+     * @param maxBytes     most payload bytes to hold at once
+     */
+    public ReorderBuffer(long maxHoldNanos, int maxBytes) {
+        this.held = new SequenceRingBuffer<>(CAPACITY);
+        this.arrivals = new long[CAPACITY];
+        this.maxHoldNanos = maxHoldNanos;
+        this.maxBytes = maxBytes;
+        this.lastDelivered = Instant.MIN;
+    }
+
+    /**
+     * Takes a packet, passing on whatever is now in order.
+     *
+     * @param cp       the packet
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @param out      where packets are released to
+     */
+    public synchronized void offer(ChatPacket cp, long nowNanos,
+            Consumer<ChatPacket> out) {
+        int seq = cp.getSequence() & 0xFFFF;
+        if (!started) {
+            started = true;
+            starting = seq != 0;
+            next = seq;
+            newest = seq;
+        }
+        int ahead = (short) (seq - next);
+        if (starting) {
+            if (ahead >= CAPACITY) {
+                // too far past the oldest packet held to wait alongside it
+                skipAll(out);
+                starting = false;
+                next = seq;
+                offer(cp, nowNanos, out);
+                return;
+            }
+            if (ahead < 0) {
+                if ((short) (newest - seq) >= CAPACITY) {
+                    // too far before the packets held to go in front of them
+                    late++;
+                    deliver(cp, out);
+                    return;
+                }
+                next = seq;
+            }
+            if ((short) (seq - newest) > 0) {
+                newest = seq;
+            }
+            hold(cp, nowNanos, out);
+            return;
+        }
+        if (ahead < 0) {
+            late++;
+            deliver(cp, out);
+            return;
+        }
+        if (ahead == 0) {
+            deliver(cp, out);
+            next = (next + 1) & 0xFFFF;
+            release(out);
+            return;
+        }
+
+        if (ahead >= CAPACITY) {
+            // the gap is too wide to wait out
+            skipAll(out);
+            next = seq;
+            offer(cp, nowNanos, out);
+            return;
+        }
+        hold(cp, nowNanos, out);
+    }
+
+    /**
+     * Picks up where an earlier buffer left off, so packets after
+     * {@code sequence} are delivered in order straight away instead of being
+     * held until the start of the stream is worked out. Only for a buffer
+     * which hasn't been offered anything yet.
+     *
+     * @param sequence the last sequence number delivered before
+     * @see StateSnapshot
+     */
+    public synchronized void resume(short sequence) {
+        if (started) {
+            throw new IllegalStateException("Buffer already in use");
+        }
+        started = true;
+        next = (sequence + 1) & 0xFFFF;
+    }
+
+    private void hold(ChatPacket cp, long nowNanos, Consumer<ChatPacket> out) {
+        if (held.put(cp.getSequence(), cp)) {
+            reordered++;
+            arrivals[cp.getSequence() & (CAPACITY - 1)] = nowNanos;
+            heldBytes += cp.getData().length;
+        }
+        while (heldBytes > maxBytes && !held.isEmpty()) {
+            skipGap(out);
+        }
+    }
+
+    /**
+     * Gives up on gaps whose packets have been held too long.
+     *
+     * @param nowNanos the current {@link System#nanoTime()}
+     * @param out      where packets are released to
+     */
+    public synchronized void flushExpired(long nowNanos,
+            Consumer<ChatPacket> out) {
+        while (!held.isEmpty() && nowNanos - arrivals[held.getLowest()
+                & (CAPACITY - 1)] >= maxHoldNanos) {
+            skipGap(out);
+        }
+    }
+
+    /**
+     * Releases everything held, gaps and all.
+     *
+     * @param out where packets are released to
+     */
+    public synchronized void flush(Consumer<ChatPacket> out) {
+        skipAll(out);
+    }
+
+    private void skipAll(Consumer<ChatPacket> out) {
+        while (!held.isEmpty()) {
+            skipGap(out);
+        }
+    }
+
+    /**
+     * Moves past the gap before the oldest packet held.
+     */
+    private void skipGap(Consumer<ChatPacket> out) {
+        starting = false;
+        skipped += (short) (held.getLowest() - next);
+        next = held.getLowest();
+        release(out);
+    }
+
+    /**
+     * Passes on held packets for as long as they're in order.
+     */
+    private void release(Consumer<ChatPacket> out) {
+        ChatPacket cp;
+        while ((cp = held.remove((short) next)) != null) {
+            heldBytes -= cp.getData().length;
+            deliver(cp, out);
+            next = (next + 1) & 0xFFFF;
+        }
+    }
+
+    private void deliver(ChatPacket cp, Consumer<ChatPacket> out) {
+        if (cp.timestamp.compareTo(lastDelivered) <= 0) {
+            cp = cp.withTimestamp(lastDelivered.plusNanos(1));
+        }
+        lastDelivered = cp.timestamp;
+        out.accept(cp);
+    }
+
+    /**
+     *
+     * @return packets being held
+     */
+    public synchronized int getHeldCount() {
+        return held.size();
+    }
+
+    /**
+     *
+     * @return packets which had to be held for an earlier one
+     */
+    public synchronized long getReorderedCount() {
+        return reordered;
+    }
+
+    /**
+     *
+     * @return sequence numbers given up on
+     */
+    public synchronized long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     *
+     * @return packets which arrived after their gap was given up on
+     */
+    public synchronized long getLateCount() {
+        return late;
+    }
+}
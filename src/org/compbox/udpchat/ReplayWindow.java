@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window duplicate filter over 16 bit sequence numbers, the same idea
+ * as the IPsec anti-replay window. A bitmap remembers which of the last
+ * {@code size} sequence numbers behind the highest one seen have arrived;
+ * anything older than that is rejected outright. Each check is constant time
+ * and the memory used never grows.
+ *
+ * Sequence numbers wrap, so "newer" means less than half the sequence space
+ * ahead. Not thread safe; each peer gets its own window owned by the thread
+ * reading the socket.
+ *
+ * @author Kevin Raoofi
+ */
+public class ReplayWindow {
+
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final long[] bitmap;
+    private final int mask;
+    private int highest;
+    /**
+     * Oldest sequence number a late arrival can have been counted as skipped
+     * for; nothing before the first one accepted ever was
+     */
+    private int first;
+    private boolean empty;
+
+    private long accepted;
+    private long duplicates;
+    private long outOfWindow;
+    private long skipped;
+    private long filled;
+
+    public ReplayWindow() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     *
+     * @param size how many sequence numbers to remember; a power of two
+     *             between 64 and 32768
+     */
+    public ReplayWindow(int size) {
+        if (Integer.bitCount(size) != 1 || size < 64 || size > 1 << 15) {
+            throw new IllegalArgumentException("Bad window size: " + size);
+        }
+        this.bitmap = new long[size / 64];
+        this.mask = size - 1;
+        this.empty = true;
+    }
+
+    /**
+     * Checks a sequence number and records it if it's new.
+     *
+     * @param sequence the sequence number of a received packet
+     * @return true if the packet should be processed; false if it's a
+     *         duplicate or too old to tell
+     */
+    public boolean accept(short sequence) {
+        int seq = sequence & 0xFFFF;
+        if (empty) {
+            empty = false;
+            highest = seq;
+            first = seq;
+            set(seq);
+            accepted++;
+            return true;
+        }
+
+        int diff = (short) (seq - highest);
+        if (diff > 0) {
+            skipped += diff - 1;
+            if (diff > mask) {
+                Arrays.fill(bitmap, 0);
+            } else {
+                for (int i = 1; i < diff; i++) {
+                    clear(highest + i);
+                }
+            }
+            highest = seq;
+            if ((short) (highest - first) > mask) {
+                // keep it in reach of the window as the numbers wrap
+                first = (highest - mask) & 0xFFFF;
+            }
+            set(seq);
+            accepted++;
+            return true;
+        }
+        if (-diff > mask) {
+            outOfWindow++;
+            return false;
+        }
+        if (isSet(seq)) {
+            duplicates++;
+            return false;
+        }
+        set(seq);
+        if ((short) (seq - first) > 0) {
+            filled++;
+        }
+        accepted++;
+        return true;
+    }
+
+    /**
+     * Picks up where an earlier window left off, as if everything in the
+     * window up to {@code sequence} had already arrived. Only for a window
+     * which hasn't accepted anything yet.
+     *
+     * @param sequence the highest sequence number accepted before
+     * @see StateSnapshot
+     */
+    public void resume(short sequence) {
+        if (!empty) {
+            throw new IllegalStateException("Window already in use");
+        }
+        empty = false;
+        highest = sequence & 0xFFFF;
+        first = highest;
+        Arrays.fill(bitmap, -1L);
+    }
+
+    private boolean isSet(int seq) {
+        int bit = seq & mask;
+        return (bitmap[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    private void set(int seq) {
+        int bit = seq & mask;
+        bitmap[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(int seq) {
+        int bit = seq & mask;
+        bitmap[bit >>> 6] &= ~(1L << bit);
+    }
+
+    /**
+     *
+     * @return the highest sequence number accepted so far, or -1 if none
+     */
+    public int getHighest() {
+        return empty ? -1 : highest;
+    }
+
+    public long getAcceptedCount() {
+        return accepted;
+    }
+
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public long getOutOfWindowCount() {
+        return outOfWindow;
+    }
+
+    /**
+     *
+     * @return sequence numbers jumped over which haven't turned up since;
+     *         lost, or still on their way
+     */
+    public long getMissingCount() {
+        return skipped - filled;
+    }
+}
@@ -0,0 +1,666 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Full text index over MESSAGE text. Register it as a MESSAGE handler next to
+ * whatever stores messages and it indexes everything stored:
+ * <pre>
+ * server.register(MESSAGE, index);
+ * client.register(MESSAGE, index);
+ * </pre>
+ * Handing a packet over only puts it on a queue; a thread of the index's own
+ * does the tokenizing and indexing in batches, so the receive path isn't held
+ * up.
+ *
+ * Text is split into lower cased runs of letters and digits. Each term maps to
+ * a {@link PostingList} of the messages it appears in and where. Queries are
+ * space separated clauses which must all match: a word, a word ending in
+ * {@code *} to match any term it starts, or a phrase in double quotes whose
+ * words must appear one after the other. Results are in timestamp order.
+ *
+ * Postings build up in memory. If a spill directory is set, they are written
+ * out to a segment file there once they pass the size limit and read back
+ * through a memory mapping from then on; only the term dictionary of a
+ * written segment stays on the heap. Segment files only mean anything to the
+ * index which wrote them and are deleted when it's closed.
+ *
+ * @author Kevin Raoofi
+ */
+public class SearchIndex implements BiConsumer<ChatPacket, SocketAddress>,
+        AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(SearchIndex.class
+            .getName());
+
+    /**
+     * Longest term kept; anything longer is cut short
+     */
+    public static final int MAX_TERM_LENGTH = 64;
+
+    private static final int BATCH = 1024;
+
+    private final BlockingQueue<ChatPacket> pending;
+    private final Thread indexer;
+    private final Object progress;
+    private long submitted;
+    private long indexed;
+
+    private final ReadWriteLock lock;
+    private final List<ChatPacket> messages;
+    private final List<Segment> spilled;
+    private LiveSegment live;
+    private File spillDir;
+    private long spillBytes;
+
+    public SearchIndex() {
+        this.pending = new LinkedBlockingQueue<>();
+        this.progress = new Object();
+        this.lock = new ReentrantReadWriteLock();
+        this.messages = new ArrayList<>();
+        this.spilled = new ArrayList<>();
+        this.live = new LiveSegment();
+        this.indexer = new Thread(this::index, "SearchIndex-indexer");
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+    }
+
+    /**
+     * Writes postings out to disk once those in memory take up more than
+     * {@code maxBytes}.
+     *
+     * @param dir      where to put segment files
+     * @param maxBytes most bytes of postings to keep in memory
+     */
+    public void setSpill(File dir, long maxBytes) {
+        if (maxBytes <= 0 || maxBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad spill size: " + maxBytes);
+        }
+        lock.writeLock().lock();
+        try {
+            this.spillDir = dir;
+            this.spillBytes = maxBytes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Queues a packet to be indexed; only MESSAGEs are.
+     *
+     * @param cp a packet
+     */
+    public void add(ChatPacket cp) {
+        if (cp.getType() != ChatPacketFactory.PacketType.MESSAGE.ID) {
+            return;
+        }
+        synchronized (progress) {
+            submitted++;
+        }
+        pending.add(cp);
+    }
+
+    /**
+     * Same as {@link #add(ChatPacket)}, so the index can be registered as a
+     * handler.
+     */
+    @Override
+    public void accept(ChatPacket cp, SocketAddress from) {
+        add(cp);
+    }
+
+    /**
+     * Waits until everything added so far is searchable.
+     *
+     * @param timeout how long to wait
+     * @param unit    unit of {@code timeout}
+     * @return true if it caught up in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitIndexed(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (progress) {
+            while (indexed < submitted) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(progress, left);
+            }
+            return true;
+        }
+    }
+
+    private void index() {
+        List<ChatPacket> batch = new ArrayList<>(BATCH);
+        try {
+            while (true) {
+                batch.add(pending.take());
+                pending.drainTo(batch, BATCH - 1);
+                lock.writeLock().lock();
+                try {
+                    for (ChatPacket cp : batch) {
+                        live.add(messages.size(), tokenize(cp.getText()));
+                        messages.add(cp);
+                    }
+                    if (spillDir != null && live.bytes > spillBytes) {
+                        spill();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                synchronized (progress) {
+                    indexed += batch.size();
+                    progress.notifyAll();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            // closed
+        }
+    }
+
+    /**
+     * Writes the live segment out and maps it back in. Must hold the write
+     * lock.
+     */
+    private void spill() {
+        File file = new File(spillDir, "segment-" + spilled.size() + ".idx");
+        try {
+            spilled.add(live.writeTo(file));
+            live = new LiveSegment();
+        } catch (IOException ex) {
+            // keep it all in memory rather than lose it
+            LOG.log(Level.WARNING, "Couldn't spill the index to " + file, ex);
+            spillDir = null;
+        }
+    }
+
+    /**
+     *
+     * @return how many messages have been indexed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     *
+     * @param query clauses which must all match
+     * @return every match, oldest first
+     */
+    public List<ChatPacket> search(String query) {
+        return search(query, Integer.MAX_VALUE);
+    }
+
+    /**
+     *
+     * @param query clauses which must all match
+     * @param limit most results wanted
+     * @return the latest {@code limit} matches, oldest first
+     */
+    public List<ChatPacket> search(String query, int limit) {
+        List<Clause> clauses = parse(query);
+        if (clauses.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<ChatPacket> found = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            int[] ids = null;
+            for (Clause c : clauses) {
+                int[] match = evaluate(c);
+                ids = ids == null ? match : intersect(ids, match);
+                if (ids.length == 0) {
+                    return Collections.emptyList();
+                }
+            }
+            for (int id : ids) {
+                found.add(messages.get(id));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        found.sort(Comparator.comparing((ChatPacket cp) -> cp.timestamp));
+        return found.size() <= limit ? found : new ArrayList<>(found.subList(
+                found.size() - limit, found.size()));
+    }
+
+    private List<Segment> segments() {
+        List<Segment> all = new ArrayList<>(spilled);
+        all.add(live);
+        return all;
+    }
+
+    private int[] evaluate(Clause c) {
+        if (c.prefix) {
+            return prefix(c.terms[0]);
+        }
+        Postings[] p = new Postings[c.terms.length];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = postings(c.terms[i]);
+        }
+        int[] ids = p[0].ids();
+        for (int i = 1; i < p.length; i++) {
+            ids = intersect(ids, p[i].ids());
+        }
+        if (p.length == 1) {
+            return ids;
+        }
+        int n = 0;
+        for (int id : ids) {
+            if (isPhrase(p, id)) {
+                ids[n++] = id;
+            }
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    /**
+     * Checks whether the terms appear one after the other somewhere in the
+     * message.
+     */
+    private static boolean isPhrase(Postings[] p, int id) {
+        int[] at = new int[p.length];
+        for (int i = 0; i < p.length; i++) {
+            at[i] = Arrays.binarySearch(p[i].ids, 0, p[i].count, id);
+        }
+        Postings first = p[0];
+        for (int k = first.posStart[at[0]]; k < first.posStart[at[0] + 1];
+                k++) {
+            int start = first.positions[k];
+            boolean all = true;
+            for (int i = 1; i < p.length && all; i++) {
+                all = Arrays.binarySearch(p[i].positions, p[i].posStart[at[i]],
+                        p[i].posStart[at[i] + 1], start + i) >= 0;
+            }
+            if (all) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Postings postings(String term) {
+        Postings p = new Postings();
+        for (Segment s : segments()) {
+            ByteBuffer b = s.postings(term);
+            if (b != null) {
+                p.decode(b);
+            }
+        }
+        return p;
+    }
+
+    private int[] prefix(String prefix) {
+        int[] ids = new int[16];
+        int n = 0;
+        for (Segment s : segments()) {
+            for (String term : s.terms().subMap(prefix, true, prefix
+                    + Character.MAX_VALUE, false).keySet()) {
+                Postings p = new Postings();
+                p.decode(s.postings(term));
+                if (n + p.count > ids.length) {
+                    ids = Arrays.copyOf(ids, Math.max(ids.length * 2, n
+                            + p.count));
+                }
+                System.arraycopy(p.ids, 0, ids, n, p.count);
+                n += p.count;
+            }
+        }
+        Arrays.sort(ids, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++) {
+            if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, distinct);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Splits text into lower cased runs of letters and digits.
+     *
+     * @param text some text
+     * @return its terms, in order
+     */
+    static List<String> tokenize(CharSequence text) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        String s = text.toString();
+        for (int i = 0; i < s.length();) {
+            int cp = s.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isLetterOrDigit(cp)) {
+                if (sb.length() < MAX_TERM_LENGTH) {
+                    sb.appendCodePoint(Character.toLowerCase(cp));
+                }
+            } else if (sb.length() > 0) {
+                terms.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) {
+            terms.add(sb.toString());
+        }
+        return terms;
+    }
+
+    private static List<Clause> parse(String query) {
+        List<Clause> clauses = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int end;
+            String text;
+            boolean prefix = false;
+            if (c == '"') {
+                end = query.indexOf('"', i + 1);
+                end = end < 0 ? query.length() : end;
+                text = query.substring(i + 1, end);
+                end++;
+            } else {
+                end = i;
+                while (end < query.length() && !Character.isWhitespace(query
+                        .charAt(end))) {
+                    end++;
+                }
+                text = query.substring(i, end);
+                prefix = text.endsWith("*");
+            }
+            List<String> terms = tokenize(text);
+            if (!terms.isEmpty()) {
+                clauses.add(new Clause(terms.toArray(new String[0]), prefix
+                        && terms.size() == 1));
+            }
+            i = end;
+        }
+        return clauses;
+    }
+
+    /**
+     * Stops indexing and deletes any segment files.
+     */
+    @Override
+    public void close() {
+        indexer.interrupt();
+        try {
+            indexer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            for (Segment s : spilled) {
+                ((DiskSegment) s).delete();
+            }
+            spilled.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static final class Clause {
+
+        final String[] terms;
+        final boolean prefix;
+
+        Clause(String[] terms, boolean prefix) {
+            this.terms = terms;
+            this.prefix = prefix;
+        }
+    }
+
+    /**
+     * Decoded postings of one term, possibly from several segments
+     */
+    private static final class Postings {
+
+        int[] ids = new int[16];
+        int[] posStart = new int[17];
+        int[] positions = new int[16];
+        int count;
+
+        void decode(ByteBuffer b) {
+            int id = -1;
+            while (b.hasRemaining()) {
+                id += Varint.get(b);
+                int n = Varint.get(b);
+                if (count + 2 > ids.length) {
+                    ids = Arrays.copyOf(ids, ids.length * 2);
+                    posStart = Arrays.copyOf(posStart, ids.length + 1);
+                }
+                int p = posStart[count];
+                if (p + n > positions.length) {
+                    positions = Arrays.copyOf(positions, Math.max(positions.length
+                            * 2, p + n));
+                }
+                int pos = -1;
+                for (int i = 0; i < n; i++) {
+                    pos += Varint.get(b);
+                    positions[p + i] = pos;
+                }
+                ids[count++] = id;
+                posStart[count] = p + n;
+            }
+        }
+
+        int[] ids() {
+            return Arrays.copyOf(ids, count);
+        }
+    }
+
+    private abstract static class Segment {
+
+        /**
+         *
+         * @return every term in the segment, mapped to whatever the segment
+         *         uses to find its postings
+         */
+        abstract NavigableMap<String, ?> terms();
+
+        /**
+         *
+         * @return the term's postings, or null if it isn't in the segment
+         */
+        abstract ByteBuffer postings(String term);
+    }
+
+    /**
+     * The segment being added to
+     */
+    private static final class LiveSegment extends Segment {
+
+        final TreeMap<String, PostingList> terms = new TreeMap<>();
+        long bytes;
+
+        void add(int id, List<String> tokens) {
+            Map<String, int[]> at = new HashMap<>();
+            for (int i = 0; i < tokens.size(); i++) {
+                // [count, positions...]
+                int[] p = at.computeIfAbsent(tokens.get(i), (k) -> new int[4]);
+                if (p[0] + 1 == p.length) {
+                    p = Arrays.copyOf(p, p.length * 2);
+                    at.put(tokens.get(i), p);
+                }
+                p[++p[0]] = i;
+            }
+            for (Map.Entry<String, int[]> e : at.entrySet()) {
+                PostingList list = terms.get(e.getKey());
+                if (list == null) {
+                    list = new PostingList();
+                    terms.put(e.getKey(), list);
+                    bytes += e.getKey().length() * 2;
+                }
+                int before = list.size();
+                int[] p = e.getValue();
+                list.add(id, Arrays.copyOfRange(p, 1, p[0] + 1), p[0]);
+                bytes += list.size() - before;
+            }
+        }
+
+        @Override
+        NavigableMap<String, ?> terms() {
+            return terms;
+        }
+
+        @Override
+        ByteBuffer postings(String term) {
+            PostingList list = terms.get(term);
+            return list == null ? null : list.view();
+        }
+
+        /**
+         * Writes every term in order as
+         * <pre>
+         * | term length | term (UTF-8) | postings length | postings |
+         * </pre>
+         * with lengths as {@link Varint}s.
+         */
+        DiskSegment writeTo(File file) throws IOException {
+            TreeMap<String, Long> offsets = new TreeMap<>();
+            ByteBuffer header = ByteBuffer.allocate(MAX_TERM_LENGTH * 4 + 2
+                    * Varint.MAX_SIZE);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                FileChannel ch = raf.getChannel();
+                ch.truncate(0);
+                long offset = 0;
+                for (Map.Entry<String, PostingList> e : terms.entrySet()) {
+                    byte[] term = e.getKey().getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer postings = e.getValue().view();
+                    header.clear();
+                    Varint.put(header, term.length);
+                    header.put(term);
+                    Varint.put(header, postings.remaining());
+                    header.flip();
+                    offset += header.remaining();
+                    offsets.put(e.getKey(), offset << 32 | postings
+                            .remaining());
+                    offset += postings.remaining();
+                    while (header.hasRemaining()) {
+                        ch.write(header);
+                    }
+                    while (postings.hasRemaining()) {
+                        ch.write(postings);
+                    }
+                }
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY,
+                        0, offset);
+                return new DiskSegment(file, offsets, map);
+            }
+        }
+    }
+
+    /**
+     * A segment written out by {@link LiveSegment#writeTo(File)}
+     */
+    private static final class DiskSegment extends Segment {
+
+        final File file;
+        /**
+         * Offset of each term's postings in the high half, length in the low
+         */
+        final TreeMap<String, Long> offsets;
+        final MappedByteBuffer map;
+
+        DiskSegment(File file, TreeMap<String, Long> offsets,
+                MappedByteBuffer map) {
+            this.file = file;
+            this.offsets = offsets;
+            this.map = map;
+        }
+
+        @Override
+        NavigableMap<String, ?> terms() {
+            return offsets;
+        }
+
+        @Override
+        ByteBuffer postings(String term) {
+            Long at = offsets.get(term);
+            if (at == null) {
+                return null;
+            }
+            ByteBuffer b = map.duplicate();
+            int start = (int) (at >>> 32);
+            b.position(start);
+            b.limit(start + (int) (long) at);
+            return b.slice();
+        }
+
+        void delete() {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+}
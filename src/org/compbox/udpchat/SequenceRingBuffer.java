@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.util.Arrays;
+
+/**
+ * Values keyed by 16 bit sequence number in a fixed size ring, with the slot
+ * being the sequence number modulo the capacity. Lookups, inserts and removals
+ * are a couple of array accesses; removing an ACKed range or walking the
+ * entries in sequence order only touches the slots in between. The keys are
+ * kept in an {@code int[]} so nothing is boxed.
+ *
+ * Every entry lies within {@code capacity} sequence numbers of the newest one.
+ * Putting a sequence number further ahead than that pushes the oldest entries
+ * out, which are counted by {@link #getOverwrittenCount()}. Sequence numbers
+ * wrap, so "newer" means less than half the sequence space ahead. Not thread
+ * safe.
+ *
+ * @author Kevin Raoofi
+ * @param <T> the type of value held
+ */
+public class SequenceRingBuffer<T> {
+
+    private static final int EMPTY = -1;
+
+    private final int[] keys;
+    private final Object[] values;
+    private final int mask;
+    private int size;
+    private int lowest;
+    private int highest;
+    private long overwritten;
+
+    /**
+     *
+     * @param capacity how many sequence numbers the ring covers; a power of
+     *                 two no more than 32768
+     */
+    public SequenceRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity > 1 << 15) {
+            throw new IllegalArgumentException("Bad capacity: " + capacity);
+        }
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param sequence the sequence number
+     * @param value    the value; not null
+     * @return false if the sequence number is too far behind the newest entry
+     *         to fit
+     */
+    public boolean put(short sequence, T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int seq = sequence & 0xFFFF;
+        if (size == 0) {
+            lowest = seq;
+            highest = seq;
+        } else if ((short) (seq - highest) > 0) {
+            if ((short) (seq - lowest) > mask) {
+                overwritten += removeUpTo((short) (seq - mask - 1));
+                if (size == 0) {
+                    lowest = seq;
+                }
+            }
+            highest = seq;
+        } else if ((short) (highest - seq) > mask) {
+            return false;
+        } else if ((short) (lowest - seq) > 0) {
+            lowest = seq;
+        }
+
+        int slot = seq & mask;
+        if (keys[slot] == EMPTY) {
+            size++;
+        }
+        keys[slot] = seq;
+        values[slot] = value;
+        return true;
+    }
+
+    /**
+     *
+     * @param sequence a sequence number
+     * @return the value held for it, or null
+     */
+    @SuppressWarnings("unchecked")
+    public T get(short sequence) {
+        int seq = sequence & 0xFFFF;
+        int slot = seq & mask;
+        return keys[slot] == seq ? (T) values[slot] : null;
+    }
+
+    /**
+     *
+     * @param sequence a sequence number
+     * @return the value which was held for it, or null
+     */
+    public T remove(short sequence) {
+        T value = get(sequence);
+        if (value != null) {
+            clear(sequence & 0xFFFF);
+            if (size > 0 && (sequence & 0xFFFF) == lowest) {
+                advanceLowest();
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Removes everything up to and including a sequence number, as for a
+     * cumulative ACK.
+     *
+     * @param sequence the last sequence number to remove
+     * @return how many entries were removed
+     */
+    public int removeUpTo(short sequence) {
+        if (size == 0 || (short) (sequence - lowest) < 0) {
+            return 0;
+        }
+        return removeRange((short) lowest, sequence);
+    }
+
+    /**
+     * Removes everything between two sequence numbers, inclusive.
+     *
+     * @param from the first sequence number to remove
+     * @param to   the last sequence number to remove
+     * @return how many entries were removed
+     */
+    public int removeRange(short from, short to) {
+        if (size == 0 || (short) (to - from) < 0) {
+            return 0;
+        }
+        // only the part overlapping what's held matters
+        int start = (short) (from - lowest) < 0 ? lowest : from & 0xFFFF;
+        int end = (short) (to - highest) > 0 ? highest : to & 0xFFFF;
+        int removed = 0;
+        for (int seq = start; (short) (end - seq) >= 0 && size > 0;
+                seq = (seq + 1) & 0xFFFF) {
+            if (keys[seq & mask] == seq) {
+                clear(seq);
+                removed++;
+            }
+        }
+        if (size > 0 && keys[lowest & mask] != lowest) {
+            advanceLowest();
+        }
+        return removed;
+    }
+
+    /**
+     * Visits every entry from oldest to newest.
+     *
+     * @param action what to do with each entry
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super T> action) {
+        int left = size;
+        for (int seq = lowest; left > 0; seq = (seq + 1) & 0xFFFF) {
+            int slot = seq & mask;
+            if (keys[slot] == seq) {
+                left--;
+                action.visit((short) seq, (T) values[slot]);
+            }
+        }
+    }
+
+    private void clear(int seq) {
+        int slot = seq & mask;
+        keys[slot] = EMPTY;
+        values[slot] = null;
+        size--;
+    }
+
+    private void advanceLowest() {
+        do {
+            lowest = (lowest + 1) & 0xFFFF;
+        } while (keys[lowest & mask] != lowest);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     *
+     * @return the oldest sequence number held, or -1 if empty
+     */
+    public int getLowest() {
+        return size == 0 ? -1 : lowest;
+    }
+
+    /**
+     *
+     * @return entries pushed out by newer ones before they were removed
+     */
+    public long getOverwrittenCount() {
+        return overwritten;
+    }
+
+    /**
+     * Takes each entry of a {@link SequenceRingBuffer} in turn
+     *
+     * @param <T> the type of value held
+     */
+    @FunctionalInterface
+    public static interface Visitor<T> {
+
+        public void visit(short sequence, T value);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per peer session keys for {@link PacketSealer}. How the keys get agreed on is
+ * up to the application; this just remembers them.
+ *
+ * Nonces are derived from a count of packets sealed with the session, which
+ * is good for 2<sup>32</sup> packets; well short of wrapping, and within what
+ * AES-GCM should be asked to do with one key. After that the session refuses
+ * to seal any more and a fresh one has to be put in place.
+ *
+ * Both ends of a session hold the same key and IV base, so one of them has to
+ * be the initiator and the other not; {@link PacketSealer} keeps their nonces
+ * apart that way.
+ *
+ * @author Kevin Raoofi
+ */
+public class SessionKeyCache {
+
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final String CHACHA20_POLY1305 = "ChaCha20-Poly1305";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentMap<SocketAddress, Session> sessions;
+
+    public SessionKeyCache() {
+        this.sessions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     *
+     * @param peer the remote address
+     * @return the session for the peer, or null if there isn't one
+     */
+    public Session get(SocketAddress peer) {
+        return sessions.get(peer);
+    }
+
+    /**
+     * Installs a session for a peer, replacing any existing one.
+     *
+     * @param peer           the remote address
+     * @param transformation {@link #AES_GCM} or {@link #CHACHA20_POLY1305}
+     * @param key            raw key bytes; 16 or 32 bytes for AES, 32 for
+     *                       ChaCha20
+     * @param ivBase         12 bytes mixed into every nonce
+     * @param initiator      whether this is the end which started the
+     *                       session; the peer has to say the opposite
+     * @return the new session
+     */
+    public Session put(SocketAddress peer, String transformation, byte[] key,
+            byte[] ivBase, boolean initiator) {
+        if (ivBase.length != Session.NONCE_SIZE) {
+            throw new IllegalArgumentException("IV base must be "
+                    + Session.NONCE_SIZE + " bytes");
+        }
+        String alg = AES_GCM.equals(transformation) ? "AES" : "ChaCha20";
+        Session s = new Session(transformation, new SecretKeySpec(key, alg),
+                ivBase.clone(), initiator);
+        sessions.put(peer, s);
+        return s;
+    }
+
+    /**
+     * Generates a random AES-256-GCM session for a peer. Handy for testing; in
+     * practice the other end needs to be told the key somehow.
+     *
+     * @param peer      the remote address
+     * @param initiator whether this is the end which started the session
+     * @return the new session
+     * @throws GeneralSecurityException if AES isn't available
+     */
+    public Session generate(SocketAddress peer, boolean initiator)
+            throws GeneralSecurityException {
+        KeyGenerator gen = KeyGenerator.getInstance("AES");
+        gen.init(256, RANDOM);
+        byte[] ivBase = new byte[Session.NONCE_SIZE];
+        RANDOM.nextBytes(ivBase);
+        return put(peer, AES_GCM, gen.generateKey().getEncoded(), ivBase,
+                initiator);
+    }
+
+    /**
+     *
+     * @param peer the remote address
+     * @return the session which was removed, if any
+     */
+    public Session remove(SocketAddress peer) {
+        return sessions.remove(peer);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * A key, the cipher to use it with and the base nonce
+     */
+    public static final class Session {
+
+        static final int NONCE_SIZE = 12;
+        static final long MAX_PACKETS = 1L << 32;
+
+        final String transformation;
+        final SecretKey key;
+        final byte[] ivBase;
+        final boolean initiator;
+        private final AtomicLong sealed;
+
+        Session(String transformation, SecretKey key, byte[] ivBase,
+                boolean initiator) {
+            this.transformation = transformation;
+            this.key = key;
+            this.ivBase = ivBase;
+            this.initiator = initiator;
+            this.sealed = new AtomicLong();
+        }
+
+        /**
+         * Counts off one packet against the nonce budget
+         *
+         * @return the packet's counter, never the same twice, or -1 if the
+         *         session is used up
+         */
+        long claim() {
+            long n = sealed.getAndIncrement();
+            return n < MAX_PACKETS ? n : -1;
+        }
+
+        public String getTransformation() {
+            return transformation;
+        }
+
+        public boolean isInitiator() {
+            return initiator;
+        }
+
+        /**
+         *
+         * @return how many more packets can be sealed with this session
+         */
+        public long getRemaining() {
+            return Math.max(0, MAX_PACKETS - sealed.get());
+        }
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * An in-memory network running on a virtual clock, for testing how the chat
+ * code copes with loss, duplication, reordering, delay and limited bandwidth.
+ * Every random choice comes from one seeded {@link Random} and time only moves
+ * when {@link #step()}, {@link #runFor(long)} or {@link #runUntilIdle()} is
+ * called, so a run with the same seed and the same calls always plays out the
+ * same way, however long it would have taken on a real network.
+ *
+ * Endpoints never block: {@link Endpoint#receive(ByteBuffer)} returns null if
+ * nothing has arrived. Something has to drain them, usually a listener which
+ * calls {@link ChatServer#poll()} or {@link ChatClient#poll()}. Not thread
+ * safe; everything should happen on the thread driving the simulation.
+ *
+ * @author Kevin Raoofi
+ */
+public class SimulatedNetwork {
+
+    private final Random random;
+    private final Map<SocketAddress, Endpoint> endpoints;
+    private final PriorityQueue<InFlight> inFlight;
+    private Link link;
+    private long now;
+    private long order;
+
+    private long sent;
+    private long lost;
+    private long duplicated;
+    private long delivered;
+    private long unroutable;
+
+    /**
+     *
+     * @param seed seed for every random choice the network makes
+     */
+    public SimulatedNetwork(long seed) {
+        this.random = new Random(seed);
+        this.endpoints = new HashMap<>();
+        this.inFlight = new PriorityQueue<>();
+        this.link = Link.PERFECT;
+    }
+
+    /**
+     * Sets how every link in the network behaves from now on.
+     *
+     * @param link the link settings
+     */
+    public void setLink(Link link) {
+        this.link = link;
+    }
+
+    public Link getLink() {
+        return link;
+    }
+
+    /**
+     *
+     * @param address the address to bind
+     * @return a new endpoint
+     * @throws IllegalStateException if the address is taken
+     */
+    public Endpoint bind(SocketAddress address) {
+        if (endpoints.containsKey(address)) {
+            throw new IllegalStateException(address + " is already bound");
+        }
+        Endpoint ep = new Endpoint(address);
+        endpoints.put(address, ep);
+        return ep;
+    }
+
+    /**
+     *
+     * @return the virtual time in nanoseconds; starts at 0
+     */
+    public long nanoTime() {
+        return now;
+    }
+
+    /**
+     * Delivers the next datagram in flight, moving the clock up to when it
+     * arrives.
+     *
+     * @return false if nothing was in flight
+     */
+    public boolean step() {
+        InFlight f = inFlight.poll();
+        if (f == null) {
+            return false;
+        }
+        now = Math.max(now, f.arrival);
+        Endpoint ep = endpoints.get(f.to);
+        if (ep == null || ep.closed) {
+            unroutable++;
+            return true;
+        }
+        delivered++;
+        ep.inbox.add(f);
+        if (ep.listener != null) {
+            ep.listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * Delivers everything due in the next {@code nanos} and leaves the clock
+     * that far ahead.
+     *
+     * @param nanos how far to move the clock
+     */
+    public void runFor(long nanos) {
+        long end = now + nanos;
+        while (!inFlight.isEmpty() && inFlight.peek().arrival <= end) {
+            step();
+        }
+        now = end;
+    }
+
+    /**
+     * Delivers datagrams until nothing is left in flight, including any sent
+     * by listeners along the way.
+     *
+     * @return how many were delivered or found nowhere to go
+     */
+    public int runUntilIdle() {
+        int n = 0;
+        while (step()) {
+            n++;
+        }
+        return n;
+    }
+
+    private void send(Endpoint from, ByteBuffer buf, SocketAddress to) {
+        byte[] data = new byte[buf.remaining()];
+        buf.get(data);
+        sent++;
+
+        // the sender's link is busy until the datagram is on the wire
+        long start = Math.max(now, from.linkFreeAt);
+        long onWire = start + link.transmitNanos(data.length);
+        from.linkFreeAt = onWire;
+
+        if (random.nextDouble() < link.loss) {
+            lost++;
+            return;
+        }
+        int copies = random.nextDouble() < link.duplication ? 2 : 1;
+        duplicated += copies - 1;
+        for (int i = 0; i < copies; i++) {
+            long arrival = onWire + link.delayNanos;
+            if (link.jitterNanos > 0) {
+                arrival += (long) (random.nextDouble() * link.jitterNanos);
+            }
+            if (random.nextDouble() < link.reordering) {
+                arrival += link.reorderNanos;
+            }
+            inFlight.add(new InFlight(from.address, to, data, arrival,
+                    order++));
+        }
+    }
+
+    public long getSentCount() {
+        return sent;
+    }
+
+    public long getLostCount() {
+        return lost;
+    }
+
+    public long getDuplicatedCount() {
+        return duplicated;
+    }
+
+    public long getDeliveredCount() {
+        return delivered;
+    }
+
+    /**
+     *
+     * @return datagrams which arrived at an address nobody was bound to
+     */
+    public long getUnroutableCount() {
+        return unroutable;
+    }
+
+    /**
+     * How a link behaves. Immutable; the {@code with} methods return changed
+     * copies.
+     */
+    public static final class Link {
+
+        /**
+         * No loss, no delay and unlimited bandwidth
+         */
+        public static final Link PERFECT = new Link(0, 0, 0, 0, 0, 0, 0);
+
+        private final double loss;
+        private final double duplication;
+        private final double reordering;
+        private final long reorderNanos;
+        private final long delayNanos;
+        private final long jitterNanos;
+        private final long bytesPerSecond;
+
+        private Link(double loss, double duplication, double reordering,
+                long reorderNanos, long delayNanos, long jitterNanos,
+                long bytesPerSecond) {
+            this.loss = loss;
+            this.duplication = duplication;
+            this.reordering = reordering;
+            this.reorderNanos = reorderNanos;
+            this.delayNanos = delayNanos;
+            this.jitterNanos = jitterNanos;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        /**
+         *
+         * @param loss chance each datagram is lost, between 0 and 1
+         * @return the changed link
+         */
+        public Link withLoss(double loss) {
+            return new Link(loss, duplication, reordering, reorderNanos,
+                    delayNanos, jitterNanos, bytesPerSecond);
+        }
+
+        /**
+         *
+         * @param duplication chance each datagram arrives twice
+         * @return the changed link
+         */
+        public Link withDuplication(double duplication) {
+            return new Link(loss, duplication, reordering, reorderNanos,
+                    delayNanos, jitterNanos, bytesPerSecond);
+        }
+
+        /**
+         *
+         * @param reordering   chance each datagram is held back
+         * @param reorderNanos how long a held back datagram is held
+         * @return the changed link
+         */
+        public Link withReordering(double reordering, long reorderNanos) {
+            return new Link(loss, duplication, reordering, reorderNanos,
+                    delayNanos, jitterNanos, bytesPerSecond);
+        }
+
+        /**
+         *
+         * @param delayNanos  fixed one way delay
+         * @param jitterNanos up to this much random extra delay
+         * @return the changed link
+         */
+        public Link withDelay(long delayNanos, long jitterNanos) {
+            return new Link(loss, duplication, reordering, reorderNanos,
+                    delayNanos, jitterNanos, bytesPerSecond);
+        }
+
+        /**
+         *
+         * @param bytesPerSecond how fast each sender can put bytes on the
+         *                       wire, or 0 for no limit
+         * @return the changed link
+         */
+        public Link withBandwidth(long bytesPerSecond) {
+            return new Link(loss, duplication, reordering, reorderNanos,
+                    delayNanos, jitterNanos, bytesPerSecond);
+        }
+
+        long transmitNanos(int bytes) {
+            return bytesPerSecond == 0 ? 0 : bytes * 1000000000L
+                    / bytesPerSecond;
+        }
+    }
+
+    /**
+     * One address on a {@link SimulatedNetwork}
+     */
+    public final class Endpoint implements DatagramTransport {
+
+        private final SocketAddress address;
+        private final ArrayDeque<InFlight> inbox;
+        private Runnable listener;
+        private long linkFreeAt;
+        private boolean closed;
+
+        private Endpoint(SocketAddress address) {
+            this.address = address;
+            this.inbox = new ArrayDeque<>();
+        }
+
+        /**
+         *
+         * @param listener called each time a datagram arrives, or null
+         */
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void send(ByteBuffer buf, SocketAddress to) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            SimulatedNetwork.this.send(this, buf, to);
+        }
+
+        @Override
+        public SocketAddress receive(ByteBuffer buf) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            InFlight f = inbox.poll();
+            if (f == null) {
+                return null;
+            }
+            buf.put(f.data, 0, Math.min(f.data.length, buf.remaining()));
+            return f.from;
+        }
+
+        @Override
+        public SocketAddress getLocalAddress() {
+            return address;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            inbox.clear();
+            endpoints.remove(address);
+        }
+    }
+
+    private static final class InFlight implements Comparable<InFlight> {
+
+        final SocketAddress from;
+        final SocketAddress to;
+        final byte[] data;
+        final long arrival;
+        final long order;
+
+        InFlight(SocketAddress from, SocketAddress to, byte[] data,
+                long arrival, long order) {
+            this.from = from;
+            this.to = to;
+            this.data = data;
+            this.arrival = arrival;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(InFlight o) {
+            int c = Long.compare(arrival, o.arrival);
+            return c != 0 ? c : Long.compare(order, o.order);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * What a server needs to pick up where it left off without replaying all of
+ * its {@link HistoryJournal}: the last sequence number taken from each peer,
+ * the next one it'll use itself, the most recent messages, and how far into
+ * the journal all that goes. On restart the snapshot is loaded and only the
+ * journal after it is replayed.
+ * <pre>
+ * | magic (4) | format | CRC-32 of the rest (4) | journal position (8) |
+ * | next sequence (2) | peer count (4) | [ address | last sequence (2) ] ... |
+ * | message count (4) | [ record length (4) | record ] ... |
+ * </pre>
+ * with addresses and records as in the journal, though records here don't
+ * have the sender. Session keys are left out on purpose; they
+ * don't belong on disk, so peers have to set up sessions again.
+ *
+ * @author Kevin Raoofi
+ * @see ChatServer#restore()
+ */
+public final class StateSnapshot {
+
+    public static final int DEFAULT_RECENT = 1024;
+
+    private static final int MAGIC = 0x44435353;
+    private static final byte FORMAT = 1;
+
+    private final long journalPosition;
+    private final short nextSequence;
+    private final Map<InetSocketAddress, Short> peers;
+    private final List<ChatPacket> recent;
+
+    /**
+     *
+     * @param journalPosition how much of the journal the snapshot covers
+     * @param nextSequence    the sequence number the server uses next
+     * @param peers           the last sequence number taken from each peer
+     * @param recent          the latest messages, oldest first
+     */
+    public StateSnapshot(long journalPosition, short nextSequence,
+            Map<InetSocketAddress, Short> peers, List<ChatPacket> recent) {
+        this.journalPosition = journalPosition;
+        this.nextSequence = nextSequence;
+        this.peers = Collections.unmodifiableMap(new LinkedHashMap<>(peers));
+        this.recent = Collections.unmodifiableList(new ArrayList<>(recent));
+    }
+
+    public long getJournalPosition() {
+        return journalPosition;
+    }
+
+    public short getNextSequence() {
+        return nextSequence;
+    }
+
+    public Map<InetSocketAddress, Short> getPeers() {
+        return peers;
+    }
+
+    public List<ChatPacket> getRecent() {
+        return recent;
+    }
+
+    /**
+     * Writes the snapshot to a temporary file next to {@code file}, forces it
+     * to disk and moves it over {@code file}, so a crash part way leaves the
+     * old snapshot intact.
+     *
+     * @param file where to write it
+     * @throws IOException if it couldn't be written
+     */
+    public void write(File file) throws IOException {
+        int size = 4 + 1 + 4 + 8 + 2 + 4 + 4;
+        for (InetSocketAddress peer : peers.keySet()) {
+            size += HistoryJournal.addressSize(peer) + 2;
+        }
+        for (ChatPacket cp : recent) {
+            size += 4 + HistoryJournal.recordSize(cp);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MAGIC);
+        buf.put(FORMAT);
+        buf.putInt(0);
+        buf.putLong(journalPosition);
+        buf.putShort(nextSequence);
+        buf.putInt(peers.size());
+        for (Map.Entry<InetSocketAddress, Short> e : peers.entrySet()) {
+            HistoryJournal.writeAddress(e.getKey(), buf);
+            buf.putShort(e.getValue());
+        }
+        buf.putInt(recent.size());
+        for (ChatPacket cp : recent) {
+            buf.putInt(HistoryJournal.recordSize(cp));
+            HistoryJournal.writeRecord(cp, buf);
+        }
+        buf.putInt(5, checksum(buf, 9, buf.position()));
+        buf.flip();
+
+        Path target = file.toPath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     *
+     * @param file a file written by {@link #write(File)}
+     * @return the snapshot, or null if there's no such file
+     * @throws IOException if it can't be read or isn't a snapshot
+     */
+    public static StateSnapshot read(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (buf.getInt() != MAGIC || buf.get() != FORMAT) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            if (buf.getInt() != checksum(buf, 9, buf.limit())) {
+                throw new IOException("Corrupt snapshot: " + file);
+            }
+            long journalPosition = buf.getLong();
+            short nextSequence = buf.getShort();
+            int count = buf.getInt();
+            Map<InetSocketAddress, Short> peers = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                InetSocketAddress peer = HistoryJournal.readAddress(buf);
+                if (peer == null) {
+                    throw new IOException("Corrupt snapshot: " + file);
+                }
+                peers.put(peer, buf.getShort());
+            }
+            count = buf.getInt();
+            List<ChatPacket> recent = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                buf.getInt();
+                recent.add(HistoryJournal.readRecord(buf));
+            }
+            return new StateSnapshot(journalPosition, nextSequence, peers,
+                    recent);
+        } catch (RuntimeException ex) {
+            // a bad length sent us off the end
+            throw new IOException("Corrupt snapshot: " + file, ex);
+        }
+    }
+
+    private static int checksum(ByteBuffer buf, int from, int to) {
+        CRC32 crc = new CRC32();
+        ByteBuffer rest = buf.duplicate();
+        rest.limit(to);
+        rest.position(from);
+        crc.update(rest);
+        return (int) crc.getValue();
+    }
+}
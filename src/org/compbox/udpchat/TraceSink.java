@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Where finished {@link PacketTrace}s go. Called on the thread which handled
+ * the packet, so implementations should be quick.
+ *
+ * @author Kevin Raoofi
+ */
+@FunctionalInterface
+public interface TraceSink {
+
+    public void record(PacketTrace trace);
+
+    /**
+     *
+     * @param log where to log
+     * @return a sink which logs each trace at {@code INFO}
+     */
+    public static TraceSink logging(Logger log) {
+        return (trace) -> log.log(Level.INFO, "{0}", trace);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Socket options for the channels {@link ChatServer} and {@link ChatClient}
+ * open. Anything left unset keeps the system default. Immutable; the
+ * {@code with} methods return changed copies, starting from {@link #DEFAULT}.
+ *
+ * Kernels are free to round or cap buffer sizes, Linux for one doubles what's
+ * asked for and caps it at {@code net.core.rmem_max}, so what was actually
+ * granted is logged when it falls short.
+ *
+ * @author Kevin Raoofi
+ */
+public final class TransportConfig {
+
+    private static final Logger LOG = Logger.getLogger(TransportConfig.class
+            .getName());
+
+    public static final TransportConfig DEFAULT = new TransportConfig(0, 0,
+            -1, false, false, -1, null, 0);
+
+    private final int receiveBuffer;
+    private final int sendBuffer;
+    private final int trafficClass;
+    private final boolean reuseAddress;
+    private final boolean reusePort;
+    private final int multicastTtl;
+    private final Boolean multicastLoop;
+    private final int maxReceiveBuffer;
+
+    private TransportConfig(int receiveBuffer, int sendBuffer,
+            int trafficClass, boolean reuseAddress, boolean reusePort,
+            int multicastTtl, Boolean multicastLoop, int maxReceiveBuffer) {
+        this.receiveBuffer = receiveBuffer;
+        this.sendBuffer = sendBuffer;
+        this.trafficClass = trafficClass;
+        this.reuseAddress = reuseAddress;
+        this.reusePort = reusePort;
+        this.multicastTtl = multicastTtl;
+        this.multicastLoop = multicastLoop;
+        this.maxReceiveBuffer = maxReceiveBuffer;
+    }
+
+    /**
+     *
+     * @param bytes SO_RCVBUF, or 0 for the default
+     * @return a copy with the receive buffer size changed
+     */
+    public TransportConfig withReceiveBuffer(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Bad buffer size: " + bytes);
+        }
+        return new TransportConfig(bytes, sendBuffer, trafficClass,
+                reuseAddress, reusePort, multicastTtl, multicastLoop,
+                maxReceiveBuffer);
+    }
+
+    /**
+     *
+     * @param bytes SO_SNDBUF, or 0 for the default
+     * @return a copy with the send buffer size changed
+     */
+    public TransportConfig withSendBuffer(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Bad buffer size: " + bytes);
+        }
+        return new TransportConfig(receiveBuffer, bytes, trafficClass,
+                reuseAddress, reusePort, multicastTtl, multicastLoop,
+                maxReceiveBuffer);
+    }
+
+    /**
+     *
+     * @param tos the IP_TOS byte, or -1 for the default
+     * @return a copy with the traffic class changed
+     */
+    public TransportConfig withTrafficClass(int tos) {
+        if (tos < -1 || tos > 0xFF) {
+            throw new IllegalArgumentException("Bad traffic class: " + tos);
+        }
+        return new TransportConfig(receiveBuffer, sendBuffer, tos,
+                reuseAddress, reusePort, multicastTtl, multicastLoop,
+                maxReceiveBuffer);
+    }
+
+    /**
+     * Sets the traffic class from a DiffServ code point, such as 46 for
+     * expedited forwarding.
+     *
+     * @param dscp the code point, 0 to 63
+     * @return a copy with the traffic class changed
+     */
+    public TransportConfig withDscp(int dscp) {
+        if (dscp < 0 || dscp > 63) {
+            throw new IllegalArgumentException("Bad DSCP: " + dscp);
+        }
+        return withTrafficClass(dscp << 2);
+    }
+
+    /**
+     *
+     * @param reuseAddress SO_REUSEADDR
+     * @param reusePort    SO_REUSEPORT, where the platform has it
+     * @return a copy with the reuse options changed
+     */
+    public TransportConfig withReuse(boolean reuseAddress, boolean reusePort) {
+        return new TransportConfig(receiveBuffer, sendBuffer, trafficClass,
+                reuseAddress, reusePort, multicastTtl, multicastLoop,
+                maxReceiveBuffer);
+    }
+
+    /**
+     *
+     * @param ttl  IP_MULTICAST_TTL, 0 to 255
+     * @param loop IP_MULTICAST_LOOP
+     * @return a copy with the multicast options changed
+     */
+    public TransportConfig withMulticast(int ttl, boolean loop) {
+        if (ttl < 0 || ttl > 0xFF) {
+            throw new IllegalArgumentException("Bad TTL: " + ttl);
+        }
+        return new TransportConfig(receiveBuffer, sendBuffer, trafficClass,
+                reuseAddress, reusePort, ttl, loop, maxReceiveBuffer);
+    }
+
+    /**
+     * Lets a server grow its receive buffer when it looks like it's
+     * overflowing, up to the given size.
+     *
+     * @param maxBytes largest receive buffer to ask for, or 0 to never grow it
+     * @return a copy with autotuning changed
+     * @see ReceiveBufferMonitor
+     */
+    public TransportConfig withAutotune(int maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Bad buffer size: " + maxBytes);
+        }
+        return new TransportConfig(receiveBuffer, sendBuffer, trafficClass,
+                reuseAddress, reusePort, multicastTtl, multicastLoop, maxBytes);
+    }
+
+    public int getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    public int getSendBuffer() {
+        return sendBuffer;
+    }
+
+    public int getTrafficClass() {
+        return trafficClass;
+    }
+
+    public boolean isReuseAddress() {
+        return reuseAddress;
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     *
+     * @return the largest receive buffer autotuning may ask for; 0 if it's
+     *         off
+     */
+    public int getMaxReceiveBuffer() {
+        return maxReceiveBuffer;
+    }
+
+    /**
+     * Sets the options on a channel. Must be called before the channel is
+     * bound for the reuse options to take.
+     *
+     * @param channel an open channel
+     * @throws IOException if an option can't be set
+     */
+    public void configure(DatagramChannel channel) throws IOException {
+        if (reuseAddress) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        }
+        if (reusePort) {
+            if (channel.supportedOptions().contains(
+                    StandardSocketOptions.SO_REUSEPORT)) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                LOG.log(Level.WARNING, "SO_REUSEPORT isn't supported here");
+            }
+        }
+        if (receiveBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            int got = channel.getOption(StandardSocketOptions.SO_RCVBUF);
+            if (got < receiveBuffer) {
+                LOG.log(Level.WARNING,
+                        "Asked for a {0} byte receive buffer but got {1}",
+                        new Object[]{receiveBuffer, got});
+            }
+        }
+        if (sendBuffer > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+            int got = channel.getOption(StandardSocketOptions.SO_SNDBUF);
+            if (got < sendBuffer) {
+                LOG.log(Level.WARNING,
+                        "Asked for a {0} byte send buffer but got {1}",
+                        new Object[]{sendBuffer, got});
+            }
+        }
+        if (trafficClass >= 0) {
+            channel.setOption(StandardSocketOptions.IP_TOS, trafficClass);
+        }
+        if (multicastTtl >= 0) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL,
+                    multicastTtl);
+        }
+        if (multicastLoop != null) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP,
+                    multicastLoop);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TransportConfig{" + "receiveBuffer=" + receiveBuffer
+                + ", sendBuffer=" + sendBuffer + ", trafficClass="
+                + trafficClass + ", reuseAddress=" + reuseAddress
+                + ", reusePort=" + reusePort + ", multicastTtl="
+                + multicastTtl + ", multicastLoop=" + multicastLoop
+                + ", maxReceiveBuffer=" + maxReceiveBuffer + '}';
+    }
+}
@@ -22,6 +22,7 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.UnknownHostException;
 import java.util.Collections;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.concurrent.ExecutorService;
@@ -45,6 +46,7 @@ public class UDPChatUI extends javax.swing.JFrame {
     private ChatServer cs;
     private ChatClient cc;
     private final SortedSet<ChatPacket> allMsgs;
+    private final SearchIndex index;
     private final ExecutorService exec;
     private InetSocketAddress listeningAddress;
 
@@ -61,6 +63,7 @@ public class UDPChatUI extends javax.swing.JFrame {
      */
     public UDPChatUI() {
         exec = Executors.newCachedThreadPool();
+        index = new SearchIndex();
         initComponents();
         initServerAndClient();
         initTimer();
@@ -87,6 +90,8 @@ public class UDPChatUI extends javax.swing.JFrame {
         jMenuBar1 = new javax.swing.JMenuBar();
         jMenu1 = new javax.swing.JMenu();
         menuItemOpenConnection = new javax.swing.JMenuItem();
+        jMenu2 = new javax.swing.JMenu();
+        menuItemFind = new javax.swing.JMenuItem();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.DISPOSE_ON_CLOSE);
         setTitle("Chat UI");
@@ -150,6 +155,18 @@ public class UDPChatUI extends javax.swing.JFrame {
 
         jMenuBar1.add(jMenu1);
 
+        jMenu2.setText("Search");
+
+        menuItemFind.setText("Find...");
+        menuItemFind.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                menuItemFindActionPerformed(evt);
+            }
+        });
+        jMenu2.add(menuItemFind);
+
+        jMenuBar1.add(jMenu2);
+
         setJMenuBar(jMenuBar1);
 
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
@@ -214,8 +231,26 @@ public class UDPChatUI extends javax.swing.JFrame {
         useNewClientConnection(clientAddress);
     }//GEN-LAST:event_menuItemOpenConnectionActionPerformed
 
+    private void menuItemFindActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_menuItemFindActionPerformed
+        String query = JOptionPane.showInputDialog(this,
+                "Words, prefix*, or \"a phrase\"");
+        if (query == null) {
+            return;
+        }
+        List<ChatPacket> found = index.search(query, 100);
+        StringBuilder sb = new StringBuilder();
+        for (ChatPacket s : found) {
+            sb.append(s.timestamp).append(": ").append(s.getText().toString())
+                    .append('\n');
+        }
+        JOptionPane.showMessageDialog(this, found.isEmpty() ? "No matches"
+                : sb.toString(), "Search: " + query,
+                JOptionPane.PLAIN_MESSAGE);
+    }//GEN-LAST:event_menuItemFindActionPerformed
+
     public void useNewClientConnection(SocketAddress addr) {
         cc = new ChatClient(allMsgs, addr);
+        cc.register(ChatPacketFactory.PacketType.MESSAGE, index);
         cc.resetChannel(this.listeningAddress);
         lblConnectedtoAddress.setText(addr.toString());
         btnSend.setEnabled(true);
@@ -268,12 +303,14 @@ public class UDPChatUI extends javax.swing.JFrame {
     private javax.swing.JTextArea chatLog;
     private javax.swing.JLabel jLabel2;
     private javax.swing.JMenu jMenu1;
+    private javax.swing.JMenu jMenu2;
     private javax.swing.JMenuBar jMenuBar1;
     private javax.swing.JPanel jPanel1;
     private javax.swing.JScrollPane jScrollPane1;
     private javax.swing.JScrollPane jScrollPane2;
     private javax.swing.JLabel lblConnectedtoAddress;
     private javax.swing.JLabel lblListenAddr;
+    private javax.swing.JMenuItem menuItemFind;
     private javax.swing.JMenuItem menuItemOpenConnection;
     // End of variables declaration//GEN-END:variables
 
@@ -281,14 +318,16 @@ public class UDPChatUI extends javax.swing.JFrame {
         this.timer = new Timer(250, (e) -> {
             synchronized (lock) {
                 if (this.msgSize != allMsgs.size()) {
-                    this.msgSize = allMsgs.size();
-
-                    chatLog.setText("");
-                    for (ChatPacket s : allMsgs) {
-                        chatLog.append(s.timestamp.toString() + ": "
-                                + new String(s
-                                        .getData()) + "\n");
+                    // each packet's text is only decoded the first time
+                    StringBuilder sb = new StringBuilder();
+                    synchronized (allMsgs) {
+                        this.msgSize = allMsgs.size();
+                        for (ChatPacket s : allMsgs) {
+                            sb.append(s.timestamp).append(": ").append(s
+                                    .getText().toString()).append('\n');
+                        }
                     }
+                    chatLog.setText(sb.toString());
                 }
             }
         });
@@ -299,6 +338,7 @@ public class UDPChatUI extends javax.swing.JFrame {
     public void dispose() {
         super.dispose();
         exec.shutdownNow();
+        index.close();
         if (this.timer != null) {
             this.timer.stop();
         }
@@ -310,6 +350,7 @@ public class UDPChatUI extends javax.swing.JFrame {
                     .getLocalHost(), Integer.parseInt(JOptionPane
                             .showInputDialog("Enter server port number")));
             cs = new ChatServer(allMsgs, listenAddr);
+            cs.register(ChatPacketFactory.PacketType.MESSAGE, index);
 //            cs.register(ChatPacketFactory.PacketType.MESSAGE, (cp,addr) -> {
 //                LOG.log(Level.INFO, "Switching client client to {0}", addr);
 //                useNewClientConnection(addr);
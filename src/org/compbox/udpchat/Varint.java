@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 variable length integers: seven bits per byte, low bits
+ * first, with the top bit set on every byte except the last.
+ *
+ * @author Kevin Raoofi
+ */
+public final class Varint {
+
+    /**
+     * The longest encoding of a 32 bit value
+     */
+    public static final int MAX_SIZE = 5;
+
+    private Varint() {
+    }
+
+    /**
+     *
+     * @param value an unsigned value
+     * @return how many bytes {@code value} takes up
+     */
+    public static int sizeOf(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a value at the buffer's position.
+     *
+     * @param buf   where to write
+     * @param value an unsigned value
+     */
+    public static void put(ByteBuffer buf, int value) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Reads a value from an absolute index without moving the position.
+     *
+     * @param buf   where to read from
+     * @param index where the value starts
+     * @param limit the first index which may not be read
+     * @return the value in the low 32 bits and its encoded size in the high 32
+     *         bits, or -1 if it runs past {@code limit} or is too long
+     */
+    public static long get(ByteBuffer buf, int index, int limit) {
+        int value = 0;
+        for (int i = 0; i < MAX_SIZE && index + i < limit; i++) {
+            int b = buf.get(index + i);
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                return ((long) (i + 1) << 32) | (value & 0xFFFFFFFFL);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a value at the buffer's position and moves past it.
+     *
+     * @param buf where to read from
+     * @return the value, or -1 if the buffer ends first or it is malformed
+     */
+    public static int get(ByteBuffer buf) {
+        long v = get(buf, buf.position(), buf.limit());
+        if (v < 0) {
+            return -1;
+        }
+        buf.position(buf.position() + (int) (v >>> 32));
+        return (int) v;
+    }
+}
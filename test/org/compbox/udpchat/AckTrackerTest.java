@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests all logic in {@link AckTracker}
+ *
+ * @author Kevin Raoofi
+ */
+public class AckTrackerTest {
+
+    /**
+     * Test that in order packets are coalesced every N or after the delay
+     */
+    @Test
+    public void testCoalescing() {
+        System.out.println("coalescing");
+        AckTracker instance = new AckTracker(3, 100);
+        instance.resume((short) 9);
+        assertFalse(instance.onReceive((short) 10, 0));
+        assertFalse(instance.onReceive((short) 11, 10));
+        assertFalse(instance.isDue(50));
+        assertTrue(instance.onReceive((short) 12, 60));
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        assertTrue(instance.writeAck(buf));
+        buf.flip();
+        assertThat(buf.remaining(), is(2));
+        assertThat(buf.getShort(), is((short) 12));
+        assertThat(instance.getPending(), is(0));
+
+        assertFalse(instance.onReceive((short) 13, 200));
+        assertFalse(instance.isDue(250));
+        assertTrue(instance.isDue(300));
+    }
+
+    /**
+     * Test that gaps are ACKed right away and reported as ranges
+     */
+    @Test
+    public void testGaps() {
+        System.out.println("gaps");
+        AckTracker instance = new AckTracker(8, 1000);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        assertFalse(instance.writeAck(buf));
+
+        instance.resume((short) 0);
+        instance.onReceive((short) 1, 0);
+        assertTrue(instance.onReceive((short) 3, 0));
+        assertTrue(instance.onReceive((short) 4, 0));
+        assertTrue(instance.onReceive((short) 7, 0));
+        instance.writeAck(buf);
+        buf.flip();
+        assertThat(buf.getShort(), is((short) 1));
+        assertThat(buf.getShort(), is((short) 3));
+        assertThat(buf.getShort(), is((short) 4));
+        assertThat(buf.getShort(), is((short) 7));
+        assertThat(buf.getShort(), is((short) 7));
+        assertFalse(buf.hasRemaining());
+
+        // filling the first hole moves the cumulative ACK along
+        assertTrue(instance.onReceive((short) 2, 0));
+        buf.clear();
+        instance.writeAck(buf);
+        buf.flip();
+        assertThat(buf.getShort(), is((short) 4));
+        assertThat(buf.getShort(), is((short) 7));
+        assertThat(buf.getShort(), is((short) 7));
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Test that the cumulative ACK follows the sequence number when it wraps
+     */
+    @Test
+    public void testWrapAround() {
+        System.out.println("wrapAround");
+        AckTracker instance = new AckTracker(4, 1000);
+        instance.resume((short) 0xFFFD);
+        instance.onReceive((short) 0xFFFE, 0);
+        instance.onReceive((short) 0xFFFF, 0);
+        instance.onReceive((short) 0, 0);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        instance.writeAck(buf);
+        buf.flip();
+        assertThat(buf.getShort(), is((short) 0));
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Test that a fresh tracker doesn't vouch for anything before the first
+     * packet it sees, and still takes in packets which were overtaken
+     */
+    @Test
+    public void testFirstPacketClaimsNothing() {
+        System.out.println("firstPacketClaimsNothing");
+        AckTracker instance = new AckTracker(1, 1000);
+        instance.onReceive((short) 5, 0);
+        instance.onReceive((short) 6, 0);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        instance.writeAck(buf);
+        buf.flip();
+        assertFalse(AckTracker.isCumulative(buf));
+        assertThat(buf.getShort(), is((short) 5));
+        assertThat(buf.getShort(), is((short) 5));
+        assertThat(buf.getShort(), is((short) 6));
+        assertFalse(buf.hasRemaining());
+
+        assertTrue(instance.onReceive((short) 3, 0));
+        buf.clear();
+        instance.writeAck(buf);
+        buf.flip();
+        assertFalse(AckTracker.isCumulative(buf));
+        assertThat(buf.getShort(), is((short) 3));
+        assertThat(buf.getShort(), is((short) 3));
+        assertThat(buf.getShort(), is((short) 3));
+        assertThat(buf.getShort(), is((short) 5));
+        assertThat(buf.getShort(), is((short) 6));
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Test that a packet too far ahead to track doesn't carry the cumulative
+     * ACK over the packets missing before it
+     */
+    @Test
+    public void testJumpKeepsGap() {
+        System.out.println("jumpKeepsGap");
+        AckTracker instance = new AckTracker(1, 1000);
+        instance.resume((short) 10);
+        instance.onReceive((short) 11, 0);
+        assertTrue(instance.onReceive((short) 3000, 0));
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        instance.writeAck(buf);
+        buf.flip();
+        assertFalse(AckTracker.isCumulative(buf));
+        assertThat(buf.getShort(), is((short) 3000));
+        assertThat(buf.getShort(), is((short) 3000));
+        assertThat(buf.getShort(), is((short) 3000));
+        assertFalse(buf.hasRemaining());
+
+        instance.onReceive((short) 3001, 0);
+        buf.clear();
+        instance.writeAck(buf);
+        buf.flip();
+        assertThat(buf.getShort(), is((short) 3000));
+        assertThat(buf.getShort(), is((short) 3000));
+        assertThat(buf.getShort(), is((short) 3001));
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Test that with more ranges than fit, the newest are the ones reported
+     */
+    @Test
+    public void testNewestRanges() {
+        System.out.println("newestRanges");
+        for (boolean resumed : new boolean[]{true, false}) {
+            AckTracker instance = new AckTracker(1, 1000);
+            if (resumed) {
+                instance.resume((short) -1);
+            }
+            for (int i = 0; i < 500; i++) {
+                if (i % 20 != 10) {
+                    instance.onReceive((short) i, 0);
+                }
+            }
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            instance.writeAck(buf);
+            buf.flip();
+            assertThat(buf.remaining(), is(2 + AckTracker.MAX_RANGES * 4));
+            assertThat(AckTracker.isCumulative(buf), is(resumed));
+            assertThat(buf.getShort(), is(resumed ? (short) 9 : (short) 191));
+            assertThat(buf.getShort(), is((short) 191));
+            assertThat(buf.getShort(buf.limit() - 4), is((short) 491));
+            assertThat(buf.getShort(buf.limit() - 2), is((short) 499));
+        }
+    }
+}
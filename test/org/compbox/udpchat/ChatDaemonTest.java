@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Tests all logic in {@link ChatDaemon}
+ *
+ * @author Kevin Raoofi
+ */
+public class ChatDaemonTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("daemon").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test that the command line wins over the config file
+     */
+    @Test
+    public void testParseArgs() throws Exception {
+        System.out.println("parseArgs");
+        File file = new File(dir, "chat.properties");
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("bind=127.0.0.1:5000\nworkers=2\n".getBytes(
+                    StandardCharsets.ISO_8859_1));
+        }
+        Properties p = ChatDaemon.parseArgs("--workers=3", "--config=" + file);
+        assertThat(p.getProperty("bind"), is("127.0.0.1:5000"));
+        assertThat(p.getProperty("workers"), is("3"));
+        try {
+            ChatDaemon.parseArgs("workers=3");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that mistyped or bad settings are caught before anything starts
+     */
+    @Test
+    public void testBadSettings() throws Exception {
+        System.out.println("badSettings");
+        for (String[] bad : new String[][]{{"bnid", "127.0.0.1:0"},
+        {"workers", "0"}, {"bind", "127.0.0.1"}}) {
+            Properties p = new Properties();
+            p.setProperty(bad[0], bad[1]);
+            try {
+                new ChatDaemon(p).close();
+                fail(bad[0]);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+        assertThat(ChatDaemon.parseAddress("[::1]:80"), is(
+                new InetSocketAddress("::1", 80)));
+        assertThat(ChatDaemon.parseAddress(":80").getPort(), is(80));
+    }
+
+    /**
+     * Test serving, the admin endpoint, and that history survives a graceful
+     * restart
+     */
+    @Test
+    public void testServeAndRestart() throws Exception {
+        System.out.println("serveAndRestart");
+        Properties p = new Properties();
+        p.setProperty("bind", "127.0.0.1:0");
+        p.setProperty("admin", "127.0.0.1:0");
+        p.setProperty("dataDir", dir.getPath());
+        ChatDaemon instance = new ChatDaemon(p);
+        instance.start();
+        ChatClient client = new ChatClient(new TreeSet<>(
+                ChatPacket.getSequenceComparator()), instance.getAddresses()
+                .get(0));
+        for (int i = 0; i < 3; i++) {
+            client.sendMsg("message " + i);
+        }
+        for (int i = 0; i < 100 && instance.getAllMsgs().size() < 3; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(instance.getAllMsgs().size(), is(3));
+
+        String base = "http://127.0.0.1:" + instance.getAdminAddress()
+                .getPort();
+        assertThat(get(base + "/health"), is("ok\n"));
+        String stats = get(base + "/stats");
+        assertThat(stats, containsString("\"stored\": 3"));
+        assertThat(stats, containsString("\"peers\": 1"));
+        assertThat(stats, containsString("\"journalAppended\": 3"));
+        assertThat(stats, containsString("\"p99\": "));
+
+        instance.close();
+        instance.close();
+        assertTrue(new File(dir, "state-0.snapshot").exists());
+
+        instance = new ChatDaemon(p);
+        assertThat(instance.getAllMsgs().size(), is(3));
+        assertThat(instance.getAllMsgs().first().getText().toString(), is(
+                "message 0"));
+        instance.close();
+    }
+
+    /**
+     * Test that restarting two workers from snapshots taken before the last
+     * messages replays the journal once: nothing stored twice or lost, and
+     * each sender's window only back in the worker that had it
+     */
+    @Test
+    public void testRestartWorkers() throws Exception {
+        System.out.println("restartWorkers");
+        Properties p = new Properties();
+        p.setProperty("bind", "127.0.0.1:" + freePort());
+        p.setProperty("workers", "2");
+        p.setProperty("dataDir", dir.getPath());
+        ChatDaemon instance = new ChatDaemon(p);
+        instance.start();
+        ChatClient[] clients = new ChatClient[4];
+        InetSocketAddress[] addresses = new InetSocketAddress[clients.length];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new ChatClient(new TreeSet<>(ChatPacket
+                    .getSequenceComparator()), instance.getAddresses().get(0));
+            addresses[c] = new InetSocketAddress("127.0.0.1", freePort());
+            clients[c].resetChannel(addresses[c]);
+        }
+        send(instance, clients, 0, 3);
+        for (int i = 0; i < 2; i++) {
+            instance.getServers().get(i).writeSnapshot();
+            Files.copy(new File(dir, "state-" + i + ".snapshot").toPath(),
+                    new File(dir, "early-" + i).toPath());
+        }
+        send(instance, clients, 3, 5);
+        instance.close();
+        // as if the daemon crashed after the early snapshots
+        for (int i = 0; i < 2; i++) {
+            Files.move(new File(dir, "early-" + i).toPath(), new File(dir,
+                    "state-" + i + ".snapshot").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        instance = new ChatDaemon(p);
+        assertThat(instance.getAllMsgs().size(), is(20));
+        Set<String> texts = new HashSet<>();
+        for (ChatPacket cp : instance.getAllMsgs()) {
+            texts.add(cp.getText().toString());
+        }
+        assertThat(texts.size(), is(20));
+        for (InetSocketAddress address : addresses) {
+            int owners = 0;
+            for (ChatServer server : instance.getServers()) {
+                ReplayWindow window = server.getReplayWindow(address);
+                if (window != null) {
+                    assertThat(window.getHighest(), is(4));
+                    owners++;
+                }
+            }
+            assertThat(owners, is(1));
+        }
+        instance.start();
+        send(instance, clients, 5, 6);
+        instance.close();
+    }
+
+    private static void send(ChatDaemon instance, ChatClient[] clients,
+            int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            for (int c = 0; c < clients.length; c++) {
+                clients[c].sendMsg("client " + c + " message " + i);
+            }
+        }
+        int expected = clients.length * to;
+        for (int i = 0; i < 100 && instance.getAllMsgs().size() < expected;
+                i++) {
+            Thread.sleep(20);
+        }
+        assertThat(instance.getAllMsgs().size(), is(expected));
+    }
+
+    private static int freePort() throws Exception {
+        try (DatagramChannel channel = DatagramChannel.open()) {
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+    }
+
+    private static String get(String url) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url)
+                .openConnection();
+        try (InputStream in = conn.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.nio.ByteBuffer;
+import static org.compbox.udpchat.ChatPacketFactory.PacketType.*;
+
+/**
+ * Tests all logic in {@link ChatPacketFactory}
+ *
+ * @author Kevin Raoofi
+ */
+public class ChatPacketFactoryTest {
+
+    /**
+     * Test that encodePacket writes the same bytes as going through a
+     * ChatPacket, for both the templated and the varint codec
+     */
+    @Test
+    public void testEncodePacket() {
+        System.out.println("encodePacket");
+        for (byte version : new byte[]{0, ChatPacketFactory.FLAG_SEALED,
+            PacketCodecV1.VERSION}) {
+            ChatPacketFactory direct = new ChatPacketFactory(version);
+            ChatPacketFactory viaPacket = new ChatPacketFactory(version);
+            ByteBuffer out = ByteBuffer.allocate(64);
+            ByteBuffer expected = ByteBuffer.allocate(64);
+            for (int i = 0; i < 3; i++) {
+                byte[] payload = {1, 2, (byte) i};
+                out.clear();
+                short seq = direct.encodePacket(ACK, ByteBuffer.wrap(payload),
+                        out);
+                out.flip();
+                expected.clear();
+                viaPacket.createPacket(ACK, payload).toByteBuffer(expected);
+                expected.flip();
+
+                assertThat(seq, is((short) i));
+                assertThat(out, is(expected));
+                ChatPacket cp = ChatPacketFactory.parsePacket(out);
+                assertThat(cp.getSequence(), is((short) i));
+                assertThat(cp.getVersion(), is(version));
+                assertThat(cp.getData(), is(payload));
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests all logic in {@link ClusterNode}, with whole servers running on a
+ * {@link SimulatedNetwork}
+ *
+ * @author Kevin Raoofi
+ */
+public class ClusterNodeTest {
+
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final byte[] SECRET = "not a very good secret"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private SimulatedNetwork net;
+    private List<ChatServer> servers;
+    private List<SortedSet<ChatPacket>> stores;
+    private List<SimulatedNetwork.Endpoint> endpoints;
+
+    @Before
+    public void setUp() throws Exception {
+        net = new SimulatedNetwork(3);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withDelay(
+                TimeUnit.MILLISECONDS.toNanos(1), 0));
+        servers = new ArrayList<>();
+        stores = new ArrayList<>();
+        endpoints = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            addNode(i, SECRET);
+        }
+    }
+
+    private void addNode(int i, byte[] secret) throws Exception {
+        SortedSet<ChatPacket> store = Collections.synchronizedSortedSet(
+                new TreeSet<>((o1, o2) -> o1.timestamp.compareTo(
+                        o2.timestamp)));
+        SimulatedNetwork.Endpoint ep = net.bind(node(i));
+        ChatServer server = new ChatServer(store, ep, net::nanoTime);
+        ClusterNode cluster = new ClusterNode(node(i), Collections
+                .singleton(node(0)), 2, secret, new Random(i));
+        cluster.setTimeouts(50, 500, TimeUnit.MILLISECONDS);
+        server.setCluster(cluster);
+        ep.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        servers.add(server);
+        stores.add(store);
+        endpoints.add(ep);
+    }
+
+    private static InetSocketAddress node(int i) {
+        return new InetSocketAddress("10.0.1." + (i + 1), 1234);
+    }
+
+    private ChatClient client(InetSocketAddress addr, InetSocketAddress server)
+            throws Exception {
+        SimulatedNetwork.Endpoint ep = net.bind(addr);
+        ChatClient client = new ChatClient(new TreeSet<>(ChatPacket
+                .getSequenceComparator()), ep, server,
+                ChatPacketFragmenter.DEFAULT_MTU, (byte) 0);
+        ep.setListener(() -> {
+            try {
+                client.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        return client;
+    }
+
+    private int stored(int node, InetSocketAddress client) {
+        int count = 0;
+        synchronized (stores.get(node)) {
+            for (ChatPacket cp : stores.get(node)) {
+                if (new String(cp.getData()).startsWith(client.toString())) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void run(long millis, int nodes) {
+        for (long t = 0; t < TimeUnit.MILLISECONDS.toNanos(millis); t += TICK) {
+            for (int i = 0; i < nodes; i++) {
+                servers.get(i).tick();
+            }
+            net.runFor(TICK);
+        }
+    }
+
+    /**
+     * Test that nodes find each other through a seed and agree on owners
+     */
+    @Test
+    public void testMembership() {
+        System.out.println("membership");
+        run(1000, 3);
+        for (ChatServer s : servers) {
+            assertThat(new HashSet<>(s.getCluster().getMembers()), is(
+                    new HashSet<>(servers.get(0).getCluster().getMembers())));
+            assertThat(s.getCluster().getMembers().size(), is(3));
+        }
+        InetSocketAddress client = new InetSocketAddress("10.0.2.1", 5000);
+        assertThat(servers.get(1).getCluster().getOwners(client), is(servers
+                .get(2).getCluster().getOwners(client)));
+    }
+
+    /**
+     * Test that each client's MESSAGEs end up on exactly its two owners, no
+     * matter which node they were sent to
+     */
+    @Test
+    public void testReplication() throws Exception {
+        System.out.println("replication");
+        run(1000, 3);
+        List<InetSocketAddress> clients = new ArrayList<>();
+        for (int c = 0; c < 6; c++) {
+            InetSocketAddress addr = new InetSocketAddress("10.0.2." + (c + 1),
+                    5000);
+            ChatClient client = client(addr, node(c % 3));
+            for (int m = 0; m < 5; m++) {
+                client.sendMsg(addr + " " + m);
+            }
+            clients.add(addr);
+        }
+        run(200, 3);
+
+        int total = 0;
+        for (InetSocketAddress client : clients) {
+            List<InetSocketAddress> owners = servers.get(0).getCluster()
+                    .getOwners(client);
+            for (int i = 0; i < 3; i++) {
+                int count = stored(i, client);
+                assertThat(count, is(owners.contains(node(i)) ? 5 : 0));
+                total += count;
+            }
+        }
+        assertThat(total, is(60));
+        long forwarded = 0;
+        for (ChatServer s : servers) {
+            forwarded += s.getCluster().getForwardedCount();
+        }
+        assertThat(forwarded, is(30L));
+    }
+
+    /**
+     * Test that nodes forget clients which have gone quiet
+     */
+    @Test
+    public void testIdleClients() throws Exception {
+        System.out.println("idleClients");
+        for (ChatServer s : servers) {
+            s.setPeerIdleTimeout(1, TimeUnit.SECONDS);
+            s.getCluster().setClientIdleTimeout(1, TimeUnit.SECONDS);
+        }
+        run(1000, 3);
+        for (int c = 0; c < 6; c++) {
+            InetSocketAddress addr = new InetSocketAddress("10.0.2." + (c + 1),
+                    5000);
+            client(addr, node(c % 3)).sendMsg(addr + " 0");
+        }
+        run(200, 3);
+        int clients = 0;
+        int peers = 0;
+        for (ChatServer s : servers) {
+            clients += s.getCluster().getClientCount();
+            peers += s.getPeerCount();
+        }
+        assertThat(clients, is(not(0)));
+        assertThat(peers, is(6));
+
+        run(1500, 3);
+        for (ChatServer s : servers) {
+            assertThat(s.getCluster().getClientCount(), is(0));
+            assertThat(s.getPeerCount(), is(0));
+        }
+    }
+
+    /**
+     * Test that a node which goes quiet is dropped from the ring
+     */
+    @Test
+    public void testFailure() {
+        System.out.println("failure");
+        run(1000, 3);
+        endpoints.get(2).close();
+        run(1000, 2);
+        assertThat(servers.get(0).getCluster().getMembers().size(), is(2));
+        assertThat(servers.get(1).getCluster().getMembers().size(), is(2));
+        InetSocketAddress client = new InetSocketAddress("10.0.2.1", 5000);
+        assertThat(servers.get(0).getCluster().getOwners(client).size(),
+                is(2));
+    }
+
+    /**
+     * Test that MESSAGEs from an IPv6 client, whose address makes for the
+     * longest replica header, are replicated
+     */
+    @Test
+    public void testReplicateIpv6() throws Exception {
+        System.out.println("replicateIpv6");
+        run(1000, 3);
+        InetSocketAddress addr = new InetSocketAddress("fd00::1", 5000);
+        List<InetSocketAddress> owners = servers.get(0).getCluster()
+                .getOwners(addr);
+        int via = owners.contains(node(0)) ? owners.contains(node(1)) ? 2 : 1
+                : 0;
+        ChatClient client = client(addr, node(via));
+        for (int m = 0; m < 5; m++) {
+            client.sendMsg(addr + " " + m);
+        }
+        run(200, 3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(stored(i, addr), is(owners.contains(node(i)) ? 5 : 0));
+        }
+        assertThat(servers.get(via).getCluster().getForwardedCount(), is(10L));
+    }
+
+    /**
+     * Test that a node without the cluster secret can't join or pass on
+     * replicas
+     */
+    @Test
+    public void testWrongSecret() throws Exception {
+        System.out.println("wrongSecret");
+        addNode(3, "a different secret entirely"
+                .getBytes(StandardCharsets.US_ASCII));
+        run(1000, 4);
+        for (int i = 0; i < 3; i++) {
+            assertThat(servers.get(i).getCluster().getMembers().size(), is(3));
+            assertFalse(servers.get(i).getCluster().getMembers().contains(
+                    node(3)));
+        }
+        assertThat(servers.get(3).getCluster().getMembers().size(), is(1));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests {@link ChatPacketFragmenter} and {@link FragmentReassembler} together
+ *
+ * @author Kevin Raoofi
+ */
+public class FragmentReassemblerTest {
+
+    private static final SocketAddress PEER = new InetSocketAddress(
+            "127.0.0.1", 1234);
+
+    private ChatPacket packet;
+    private List<ByteBuffer> fragments;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] data = new byte[5000];
+        new Random(42).nextBytes(data);
+        packet = new ChatPacket((byte) 0, (byte) 0, (short) 7, data,
+                Instant.MIN);
+
+        fragments = new ArrayList<>();
+        ChatPacketFragmenter fragmenter = new ChatPacketFragmenter(512);
+        fragmenter.fragment(packet, ByteBuffer.allocate(512), (frag) -> {
+            ByteBuffer copy = ByteBuffer.allocate(frag.remaining());
+            copy.put(frag);
+            copy.flip();
+            fragments.add(copy);
+        });
+    }
+
+    /**
+     * Test that fragments delivered out of order reassemble to the original
+     */
+    @Test
+    public void testReassembleOutOfOrder() {
+        System.out.println("reassembleOutOfOrder");
+        assertThat(fragments.size(), is(11));
+        Collections.shuffle(fragments, new Random(1));
+
+        FragmentReassembler instance = new FragmentReassembler();
+        ChatPacket result = null;
+        for (int i = 0; i < fragments.size(); i++) {
+            result = instance.offer(fragments.get(i), PEER, Instant.MIN, 0);
+            if (i < fragments.size() - 1) {
+                assertThat(result, is(nullValue()));
+            }
+        }
+        assertThat(result, is(packet));
+        assertThat(instance.getPendingCount(), is(0));
+        assertThat(instance.getBytesHeld(), is(0L));
+    }
+
+    /**
+     * Test that incomplete messages are dropped once they time out
+     */
+    @Test
+    public void testExpire() {
+        System.out.println("expire");
+        FragmentReassembler instance = new FragmentReassembler(100, 1 << 20,
+                1 << 20);
+        instance.offer(fragments.get(0), PEER, Instant.MIN, 0);
+        assertThat(instance.getPendingCount(), is(1));
+        instance.expire(100);
+        assertThat(instance.getPendingCount(), is(0));
+        assertThat(instance.getExpiredCount(), is(1L));
+    }
+
+    /**
+     * Test that a message bigger than the memory cap is rejected outright
+     */
+    @Test
+    public void testMemoryCap() {
+        System.out.println("memoryCap");
+        FragmentReassembler instance = new FragmentReassembler(100, 4096,
+                1 << 20);
+        assertThat(instance.offer(fragments.get(0), PEER, Instant.MIN, 0),
+                is(nullValue()));
+        assertThat(instance.getPendingCount(), is(0));
+        assertThat(instance.getRejectedCount(), is(1L));
+    }
+
+    /**
+     * Test that a lone fragment shorter than the size it claims doesn't pass
+     * for a whole message
+     */
+    @Test
+    public void testShortSingleFragment() {
+        System.out.println("shortSingleFragment");
+        ByteBuffer frag = forge(fragments.get(fragments.size() - 1), 0, 1, 100);
+
+        FragmentReassembler instance = new FragmentReassembler();
+        assertThat(instance.offer(frag, PEER, Instant.MIN, 0), is(nullValue()));
+        assertThat(instance.getPendingCount(), is(0));
+        assertThat(instance.getBytesHeld(), is(0L));
+        assertThat(instance.getRejectedCount(), is(1L));
+    }
+
+    /**
+     * Test that fragments which can't cover the declared size are dropped
+     * instead of completing with a gap
+     */
+    @Test
+    public void testFragmentsShortOfTotal() {
+        System.out.println("fragmentsShortOfTotal");
+        FragmentReassembler instance = new FragmentReassembler();
+        for (int i = 0; i < fragments.size(); i++) {
+            ByteBuffer frag = forge(fragments.get(i), i, fragments.size(),
+                    packet.getData().length + 1);
+            assertThat(instance.offer(frag, PEER, Instant.MIN, 0),
+                    is(nullValue()));
+        }
+        assertThat(instance.getCompletedCount(), is(0L));
+        assertThat(instance.getPendingCount(), is(0));
+        assertThat(instance.getBytesHeld(), is(0L));
+    }
+
+    /**
+     * Test that a fragment claiming a huge message only costs what it carries,
+     * and one claiming more than its count of fragments could carry is
+     * rejected
+     */
+    @Test
+    public void testClaimedSizeNotAllocated() {
+        System.out.println("claimedSizeNotAllocated");
+        FragmentReassembler instance = new FragmentReassembler();
+        PacketHeader header = new PacketHeader();
+        assertTrue(ChatPacketFactory.decodeHeader(fragments.get(0).duplicate(),
+                header));
+        int chunk = header.payloadLength
+                - ChatPacketFragmenter.FRAGMENT_HEADER_SIZE;
+        int total = 1 << 20;
+        ByteBuffer frag = forge(fragments.get(0), 0, total / chunk + 1, total);
+        assertThat(instance.offer(frag, PEER, Instant.MIN, 0), is(nullValue()));
+        assertThat(instance.getPendingCount(), is(1));
+        assertTrue(instance.getBytesHeld() < 2 * chunk);
+
+        frag = forge(fragments.get(fragments.size() - 1), 1, 2, total);
+        assertThat(instance.offer(frag, PEER, Instant.MIN, 0), is(nullValue()));
+        assertThat(instance.getRejectedCount(), is(1L));
+        assertThat(instance.getPendingCount(), is(1));
+    }
+
+    /**
+     * Rewrites the fragment header of a fragment record
+     */
+    private static ByteBuffer forge(ByteBuffer frag, int index, int count,
+            int total) {
+        PacketHeader header = new PacketHeader();
+        assertTrue(ChatPacketFactory.decodeHeader(frag.duplicate(), header));
+        ByteBuffer copy = ByteBuffer.allocate(frag.remaining());
+        copy.put(frag.duplicate()).flip();
+        int at = header.payloadOffset - frag.position();
+        copy.putShort(at + 1, (short) index);
+        copy.putShort(at + 3, (short) count);
+        copy.putInt(at + 5, total);
+        return copy;
+    }
+}
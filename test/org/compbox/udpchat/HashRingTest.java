@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests all logic in {@link HashRing}
+ *
+ * @author Kevin Raoofi
+ */
+public class HashRingTest {
+
+    /**
+     * Test that keys are spread fairly evenly
+     */
+    @Test
+    public void testBalance() {
+        System.out.println("balance");
+        HashRing<String> instance = new HashRing<>(Arrays.asList("a", "b",
+                "c", "d"), HashRing.DEFAULT_POINTS);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            counts.merge(instance.get("key" + i), 1, Integer::sum);
+        }
+        assertThat(counts.size(), is(4));
+        for (int n : counts.values()) {
+            assertTrue("Unbalanced: " + counts, n > 1500 && n < 3500);
+        }
+    }
+
+    /**
+     * Test that adding a node only takes keys from others, never moving keys
+     * between the old nodes
+     */
+    @Test
+    public void testAddingMovesLittle() {
+        System.out.println("addingMovesLittle");
+        HashRing<String> before = new HashRing<>(Arrays.asList("a", "b", "c"),
+                HashRing.DEFAULT_POINTS);
+        HashRing<String> after = new HashRing<>(Arrays.asList("a", "b", "c",
+                "d"), HashRing.DEFAULT_POINTS);
+        int moved = 0;
+        for (int i = 0; i < 10000; i++) {
+            String was = before.get("key" + i);
+            String is = after.get("key" + i);
+            if (!was.equals(is)) {
+                assertThat(is, is("d"));
+                moved++;
+            }
+        }
+        assertTrue("Moved " + moved, moved > 1500 && moved < 3500);
+    }
+
+    /**
+     * Test that replicas are distinct and start with the owner
+     */
+    @Test
+    public void testReplicas() {
+        System.out.println("replicas");
+        HashRing<String> instance = new HashRing<>(Arrays.asList("a", "b",
+                "c"), 8);
+        for (int i = 0; i < 100; i++) {
+            List<String> owners = instance.get("key" + i, 2);
+            assertThat(owners.size(), is(2));
+            assertThat(owners.get(0), is(instance.get("key" + i)));
+            assertThat(new HashSet<>(owners).size(), is(2));
+        }
+        assertThat(instance.get("x", 5).size(), is(3));
+        assertNull(new HashRing<String>(Arrays.asList(), 8).get("x"));
+    }
+}
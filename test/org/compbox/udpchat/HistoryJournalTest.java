@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests all logic in {@link HistoryJournal}
+ *
+ * @author Kevin Raoofi
+ */
+public class HistoryJournalTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress(
+            "10.0.0.2", 2000);
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("journal", ".log");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static ChatPacket message(int i) {
+        return new ChatPacket(ChatPacketFactory.PacketType.MESSAGE.ID,
+                (byte) 0, (short) i, ("message " + i).getBytes(
+                        StandardCharsets.UTF_8), Instant.ofEpochSecond(1000
+                        + i, i));
+    }
+
+    /**
+     * Test that packets come back as they went in, from wherever replay
+     * starts, and survive reopening
+     */
+    @Test
+    public void testReplay() throws Exception {
+        System.out.println("replay");
+        long middle = 0;
+        try (HistoryJournal instance = new HistoryJournal(file)) {
+            for (int i = 0; i < 10; i++) {
+                if (i == 6) {
+                    middle = instance.position();
+                }
+                instance.accept(message(i), null);
+            }
+            // not a MESSAGE
+            instance.accept(new ChatPacket(
+                    ChatPacketFactory.PacketType.ACK.ID, (byte) 0, (short) 0,
+                    new byte[2], Instant.now()), null);
+            assertThat(instance.getAppendedCount(), is(10L));
+        }
+        try (HistoryJournal instance = new HistoryJournal(file)) {
+            List<ChatPacket> all = new ArrayList<>();
+            assertThat(instance.replay(0, (cp, sa) -> all.add(cp)), is(10));
+            assertThat(all.get(3), is(message(3)));
+            assertThat(all.get(3).timestamp, is(message(3).timestamp));
+            assertThat(all.get(3).getText().toString(), is("message 3"));
+
+            instance.accept(message(10), PEER);
+            List<ChatPacket> tail = new ArrayList<>();
+            List<SocketAddress> senders = new ArrayList<>();
+            assertThat(instance.replay(middle, (cp, sa) -> {
+                tail.add(cp);
+                senders.add(sa);
+            }), is(5));
+            assertThat(tail.get(0), is(message(6)));
+            assertThat(senders.get(3), is(nullValue()));
+            assertThat(senders.get(4), is((SocketAddress) PEER));
+        }
+    }
+
+    /**
+     * Test that a half written record at the end is cut off, and appends
+     * carry on from there
+     */
+    @Test
+    public void testTornTail() throws Exception {
+        System.out.println("tornTail");
+        try (HistoryJournal instance = new HistoryJournal(file)) {
+            instance.accept(message(0), null);
+            instance.accept(message(1), null);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        try (HistoryJournal instance = new HistoryJournal(file)) {
+            List<ChatPacket> all = new ArrayList<>();
+            assertThat(instance.replay(0, (cp, sa) -> all.add(cp)), is(1));
+            instance.accept(message(2), null);
+            all.clear();
+            assertThat(instance.replay(0, (cp, sa) -> all.add(cp)), is(2));
+            assertThat(all.get(1), is(message(2)));
+        }
+    }
+
+    /**
+     * Test that a record in the middle whose lengths don't add up stops replay
+     * there rather than throwing, whichever length was hit
+     */
+    @Test
+    public void testCorruptRecord() throws Exception {
+        System.out.println("corruptRecord");
+        // a negative address length, a huge payload length, and an address
+        // which isn't there
+        int[][] corruptions = {{4, 0xF0}, {4 + 1 + 16, 0x7F}, {4, 4}};
+        for (int[] corruption : corruptions) {
+            long bad = 0;
+            try (HistoryJournal instance = new HistoryJournal(file)) {
+                for (int i = 0; i < 5; i++) {
+                    if (i == 2) {
+                        bad = instance.position();
+                    }
+                    instance.accept(message(i), null);
+                }
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(bad + corruption[0]);
+                raf.write(corruption[1]);
+            }
+            try (HistoryJournal instance = new HistoryJournal(file)) {
+                List<ChatPacket> all = new ArrayList<>();
+                assertThat(instance.replay(0, (cp, sa) -> all.add(cp)), is(2));
+                assertThat(instance.position(), is(bad));
+                instance.accept(message(5), null);
+                all.clear();
+                assertThat(instance.replay(0, (cp, sa) -> all.add(cp)), is(3));
+                assertThat(all.get(2), is(message(5)));
+            }
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+/**
+ * Tests all logic in {@link LatencyHistogram}
+ *
+ * @author Kevin Raoofi
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * Test that percentiles land within a bucket's width of the truth
+     */
+    @Test
+    public void testPercentiles() {
+        System.out.println("percentiles");
+        LatencyHistogram instance = new LatencyHistogram();
+        assertThat(instance.getPercentile(99), is(0L));
+        for (int i = 1; i <= 1000; i++) {
+            instance.record(i);
+        }
+        instance.record(-5);
+        assertThat(instance.getCount(), is(1001L));
+        assertThat(instance.getMax(), is(1000L));
+        long p50 = instance.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 < 500 * 1.13);
+        long p99 = instance.getPercentile(99);
+        assertTrue(p99 >= 990 && p99 <= 1000);
+        assertThat(instance.getPercentile(100), is(1000L));
+        assertThat(instance.getPercentile(0), is(0L));
+    }
+
+    /**
+     * Test that small values are recorded exactly
+     */
+    @Test
+    public void testSmallValues() {
+        System.out.println("smallValues");
+        LatencyHistogram instance = new LatencyHistogram();
+        for (int i = 0; i < 8; i++) {
+            instance.record(i);
+        }
+        assertThat(instance.getPercentile(50), is(3L));
+        assertThat(instance.getMean(), is(3.5));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Tests all logic in {@link MessageText}
+ *
+ * @author Kevin Raoofi
+ */
+public class MessageTextTest {
+
+    private static MessageText text(String s) {
+        return new MessageText(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test that decoding happens once, and only when characters are needed
+     */
+    @Test
+    public void testLazy() {
+        System.out.println("lazy");
+        MessageText instance = text("h\u00e9llo \u4e16\u754c");
+        assertTrue(instance.contains("\u4e16"));
+        assertThat(instance.hashCode(), is(text("h\u00e9llo \u4e16\u754c")
+                .hashCode()));
+        assertFalse(instance.isDecoded());
+
+        assertThat(instance.length(), is(8));
+        assertTrue(instance.isDecoded());
+        assertThat(instance.charAt(1), is('\u00e9'));
+        assertThat(instance.subSequence(6, 8).toString(), is("\u4e16\u754c"));
+        assertSame(instance.toString(), instance.toString());
+    }
+
+    /**
+     * Test that searching bytes finds what searching text would
+     */
+    @Test
+    public void testSearch() {
+        System.out.println("search");
+        MessageText instance = text("caf\u00e9 au lait, caf\u00e9 noir");
+        byte[] needle = "caf\u00e9".getBytes(StandardCharsets.UTF_8);
+        assertThat(instance.indexOf(needle, 0), is(0));
+        assertThat(instance.indexOf(needle, 1), is(15));
+        assertThat(instance.indexOf(needle, 16), is(-1));
+        assertTrue(instance.startsWith(needle));
+        assertFalse(instance.contains("cafe"));
+        assertFalse(text("ab").startsWith("abc".getBytes(
+                StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Test that byte order matches code point order
+     */
+    @Test
+    public void testCompare() {
+        System.out.println("compare");
+        String[] words = {"a", "ab", "b", "\u00e9", "\u4e16", "\ud83d\ude00"};
+        for (int i = 0; i + 1 < words.length; i++) {
+            assertTrue(text(words[i]).compareTo(text(words[i + 1])) < 0);
+            assertTrue(text(words[i + 1]).compareTo(text(words[i])) > 0);
+        }
+        assertThat(text("x").compareTo(text("x")), is(0));
+        assertThat(text("x"), is(MessageText.of("x")));
+        assertFalse(text("x").isDecoded());
+    }
+
+    /**
+     * Test that packets hand out one text view each
+     */
+    @Test
+    public void testPacket() {
+        System.out.println("packet");
+        ChatPacket cp = new ChatPacket((byte) 0, (byte) 0, (short) 1,
+                "hi".getBytes(StandardCharsets.UTF_8), Instant.MIN);
+        assertSame(cp.getText(), cp.getText());
+        assertThat(cp.getText().toString(), is("hi"));
+        assertTrue(cp.toString().contains("text=hi"));
+    }
+}
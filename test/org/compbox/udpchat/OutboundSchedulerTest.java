@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import static org.compbox.udpchat.OutboundScheduler.Lane.*;
+
+/**
+ * Tests all logic in {@link OutboundScheduler}
+ *
+ * @author Kevin Raoofi
+ */
+public class OutboundSchedulerTest {
+
+    /**
+     * Test that control goes first and the rest are shared by weight
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        System.out.println("ordering");
+        List<Byte> order = new ArrayList<>();
+        OutboundScheduler instance = new OutboundScheduler((buf, to) -> order
+                .add(buf.get(0)), new BufferPool(), 2, 1, 16);
+        InetSocketAddress to = new InetSocketAddress("127.0.0.1", 1234);
+
+        for (int i = 0; i < 3; i++) {
+            enqueue(instance, BULK, (byte) 'b', to);
+            enqueue(instance, INTERACTIVE, (byte) 'i', to);
+        }
+        enqueue(instance, CONTROL, (byte) 'c', to);
+        instance.close();
+        instance.run();
+
+        StringBuilder sb = new StringBuilder();
+        order.forEach((b) -> sb.append((char) b.byteValue()));
+        assertThat(sb.toString(), is("ciibibb"));
+        assertThat(instance.getSentCount(), is(7L));
+    }
+
+    /**
+     * Test that a full lane drops instead of growing
+     */
+    @Test
+    public void testCapacity() {
+        System.out.println("capacity");
+        OutboundScheduler instance = new OutboundScheduler((buf, to) -> {
+        }, new BufferPool(), 4, 1, 1);
+        InetSocketAddress to = new InetSocketAddress("127.0.0.1", 1234);
+        assertTrue(enqueue(instance, BULK, (byte) 0, to));
+        assertFalse(enqueue(instance, BULK, (byte) 0, to));
+        assertTrue(enqueue(instance, CONTROL, (byte) 0, to));
+        assertThat(instance.getDroppedCount(), is(1L));
+        assertThat(instance.getDepth(BULK), is(1));
+    }
+
+    /**
+     * Test that session setup goes with the rest of the control traffic
+     */
+    @Test
+    public void testLanes() {
+        System.out.println("lanes");
+        assertThat(OutboundScheduler.Lane.of(
+                ChatPacketFactory.PacketType.HELLO), is(CONTROL));
+        assertThat(OutboundScheduler.Lane.of(
+                ChatPacketFactory.PacketType.ACK), is(CONTROL));
+        assertThat(OutboundScheduler.Lane.of(
+                ChatPacketFactory.PacketType.MESSAGE), is(INTERACTIVE));
+        assertThat(OutboundScheduler.Lane.of(
+                ChatPacketFactory.PacketType.REPLICATE), is(BULK));
+    }
+
+    private static boolean enqueue(OutboundScheduler s,
+            OutboundScheduler.Lane lane, byte b, InetSocketAddress to) {
+        ByteBuffer buf = s.acquire();
+        buf.put(b);
+        buf.flip();
+        return s.enqueue(lane, buf, to);
+    }
+}
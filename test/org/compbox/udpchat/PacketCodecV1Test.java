@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * Tests all logic in {@link PacketCodecV1}
+ *
+ * @author Kevin Raoofi
+ */
+public class PacketCodecV1Test {
+
+    private ByteBuffer buf;
+
+    @Before
+    public void setUp() throws Exception {
+        buf = ByteBuffer.allocate(2048);
+    }
+
+    /**
+     * Test that a packet, flags and all, survives a round trip
+     */
+    @Test
+    public void testRoundTrip() {
+        System.out.println("roundTrip");
+        ChatPacket instance = new ChatPacket((byte) 0,
+                (byte) (PacketCodecV1.VERSION
+                | ChatPacketFactory.FLAG_COMPRESSED), (short) 300,
+                new byte[]{1, 2, 10, 30, 32}, Instant.MIN);
+        instance.toByteBuffer(buf);
+        buf.flip();
+        ChatPacket result = ChatPacketFactory.parsePacket(buf, Instant.MIN);
+        assertThat(result, is(instance));
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Test that several records can share a datagram
+     */
+    @Test
+    public void testBatch() {
+        System.out.println("batch");
+        ChatPacket first = new ChatPacket((byte) 0, PacketCodecV1.VERSION,
+                (short) 1, new byte[]{1}, Instant.MIN);
+        ChatPacket second = new ChatPacket((byte) 1, PacketCodecV1.VERSION,
+                (short) 2, new byte[]{2, 3}, Instant.MIN);
+        PacketCodecV1.INSTANCE.encodeBatch(Arrays.asList(first, second), buf);
+        buf.flip();
+
+        PacketHeader header = new PacketHeader();
+        assertTrue(ChatPacketFactory.decodeHeader(buf, header));
+        assertThat(header.flags & PacketCodecV1.BATCHED,
+                is(PacketCodecV1.BATCHED));
+        assertThat(ChatPacketFactory.parsePacket(buf, Instant.MIN), is(first));
+        assertThat(ChatPacketFactory.parsePacket(buf, Instant.MIN),
+                is(second));
+        assertFalse(buf.hasRemaining());
+    }
+
+    /**
+     * Test that the send time and trace id survive a round trip, and that
+     * unknown extensions are skipped
+     */
+    @Test
+    public void testExtensions() {
+        System.out.println("extensions");
+        ChatPacket instance = new ChatPacket((byte) 0, PacketCodecV1.VERSION,
+                (short) 3, new byte[]{4, 5}, Instant.MIN).withSendTime(
+                        1234567890123L, -42);
+        instance.toByteBuffer(buf);
+        buf.flip();
+        PacketHeader header = new PacketHeader();
+        assertTrue(ChatPacketFactory.decodeHeader(buf, header));
+        assertThat(header.flags & PacketCodecV1.EXTENSIONS,
+                is(PacketCodecV1.EXTENSIONS));
+        ChatPacket result = ChatPacketFactory.parsePacket(buf, Instant.MIN);
+        assertThat(result, is(instance));
+        assertThat(result.getSendTime(), is(1234567890123L));
+        assertThat(result.getTraceId(), is(-42L));
+
+        // swap the trace id's tag for one nobody knows
+        buf.put(header.extensionOffset + 10, (byte) 99);
+        int crc = header.payloadOffset + header.payloadLength;
+        buf.putInt(crc, Crc32c.compute(buf, 0, crc));
+        buf.position(0);
+        result = ChatPacketFactory.parsePacket(buf, Instant.MIN);
+        assertThat(result.getSendTime(), is(1234567890123L));
+        assertThat(result.getTraceId(), is(0L));
+        assertThat(result.getData(), is(new byte[]{4, 5}));
+    }
+
+    /**
+     * Test that corrupt and truncated records are rejected
+     */
+    @Test
+    public void testRejectsDamage() {
+        System.out.println("rejectsDamage");
+        new ChatPacket((byte) 0, PacketCodecV1.VERSION, (short) 7,
+                new byte[]{1, 2, 3}, Instant.MIN).toByteBuffer(buf);
+        buf.flip();
+        PacketHeader header = new PacketHeader();
+        assertTrue(ChatPacketFactory.decodeHeader(buf, header));
+
+        buf.put(header.payloadOffset, (byte) 9);
+        assertFalse(ChatPacketFactory.decodeHeader(buf, header));
+
+        buf.put(header.payloadOffset, (byte) 1);
+        buf.limit(buf.limit() - 1);
+        assertFalse(ChatPacketFactory.decodeHeader(buf, header));
+        assertThat(ChatPacketFactory.parsePacket(buf, Instant.MIN),
+                is(nullValue()));
+    }
+
+    /**
+     * Test that UNKNOWN no longer collides with MESSAGE
+     */
+    @Test
+    public void testPacketTypeIds() {
+        System.out.println("packetTypeIds");
+        assertThat(ChatPacketFactory.PacketType.getPacketType((byte) 0),
+                is(ChatPacketFactory.PacketType.MESSAGE));
+        assertThat(ChatPacketFactory.PacketType.getPacketType((byte) 0x7E),
+                is(ChatPacketFactory.PacketType.UNKNOWN));
+        assertFalse(ChatPacketFactory.PacketType.UNKNOWN.ID
+                == ChatPacketFactory.PacketType.MESSAGE.ID);
+    }
+}
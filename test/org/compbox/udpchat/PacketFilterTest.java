@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import static org.compbox.udpchat.PacketFilter.Verdict.*;
+
+/**
+ * Tests all logic in {@link PacketFilter}
+ *
+ * @author Kevin Raoofi
+ */
+public class PacketFilterTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private ByteBuffer good;
+
+    @Before
+    public void setUp() throws Exception {
+        good = ByteBuffer.allocate(64);
+        new ChatPacket((byte) 0, PacketCodecV1.VERSION, (short) 1,
+                new byte[]{1, 2, 3}, Instant.MIN).toByteBuffer(good);
+        good.flip();
+    }
+
+    private static InetSocketAddress from(String ip) {
+        return new InetSocketAddress(ip, 4000);
+    }
+
+    /**
+     * Test that denied prefixes win and allowed prefixes shut out the rest
+     */
+    @Test
+    public void testPrefixes() throws Exception {
+        System.out.println("prefixes");
+        PacketFilter instance = new PacketFilter();
+        assertThat(instance.check(good, from("192.168.1.1"), 0), is(ACCEPT));
+
+        instance.allow("10.0.0.0/8");
+        instance.allow("172.16.0.0/12");
+        instance.deny("10.6.6.0/24");
+        assertThat(instance.check(good, from("10.1.2.3"), 0), is(ACCEPT));
+        assertThat(instance.check(good, from("172.31.0.1"), 0), is(ACCEPT));
+        assertThat(instance.check(good, from("172.32.0.1"), 0), is(DENIED));
+        assertThat(instance.check(good, from("10.6.6.6"), 0), is(DENIED));
+        assertThat(instance.check(good, from("192.168.1.1"), 0), is(DENIED));
+        assertThat(instance.check(good, from("::1"), 0), is(DENIED));
+        assertThat(instance.getCount(DENIED), is(4L));
+        assertThat(good.position(), is(0));
+    }
+
+    /**
+     * Test that each address gets its burst and then its rate, separately
+     */
+    @Test
+    public void testRateLimit() {
+        System.out.println("rateLimit");
+        PacketFilter instance = new PacketFilter();
+        instance.setRateLimit(10, 3);
+        for (int i = 0; i < 3; i++) {
+            assertThat(instance.check(good, from("10.0.0.1"), 0), is(ACCEPT));
+        }
+        assertThat(instance.check(good, from("10.0.0.1"), 0),
+                is(RATE_LIMITED));
+        // another port on the same host shares the bucket
+        assertThat(instance.check(good, new InetSocketAddress("10.0.0.1", 1),
+                0), is(RATE_LIMITED));
+        assertThat(instance.check(good, from("10.0.0.2"), 0), is(ACCEPT));
+
+        assertThat(instance.check(good, from("10.0.0.1"), SECOND / 10),
+                is(ACCEPT));
+        assertThat(instance.check(good, from("10.0.0.1"), SECOND / 10),
+                is(RATE_LIMITED));
+        assertThat(instance.check(good, from("10.0.0.1"), 10 * SECOND),
+                is(ACCEPT));
+
+        // IPv6 senders are keyed off their bytes rather than the hash code
+        for (int i = 0; i < 3; i++) {
+            assertThat(instance.check(good, from("fd00::1"), 0), is(ACCEPT));
+        }
+        assertThat(instance.check(good, from("fd00::1"), 0), is(RATE_LIMITED));
+        assertThat(instance.check(good, from("fd00::100"), 0), is(ACCEPT));
+    }
+
+    /**
+     * Test that a small table still limits a sender among many others
+     */
+    @Test
+    public void testCrowdedTable() {
+        System.out.println("crowdedTable");
+        PacketFilter instance = new PacketFilter(16);
+        instance.setRateLimit(1, 2);
+        int accepted = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertThat(instance.check(good, from("10.1." + (i >> 8) + "."
+                    + (i & 0xFF)), 0), is(ACCEPT));
+            if (instance.check(good, from("10.0.0.1"), 0) == ACCEPT) {
+                accepted++;
+            }
+        }
+        assertThat(accepted, is(2));
+    }
+
+    /**
+     * Test that bad headers are caught without moving the buffer
+     */
+    @Test
+    public void testMalformed() {
+        System.out.println("malformed");
+        PacketFilter instance = new PacketFilter();
+        assertThat(instance.check(ByteBuffer.allocate(0), from("10.0.0.1"), 0),
+                is(MALFORMED));
+        assertThat(instance.check(ByteBuffer.wrap(new byte[]{0}),
+                from("10.0.0.1"), 0), is(MALFORMED));
+        assertThat(instance.check(ByteBuffer.wrap(new byte[]{0, 9, 0, 0}),
+                from("10.0.0.1"), 0), is(MALFORMED));
+        assertThat(instance.check(ByteBuffer.wrap(new byte[]{0x42, 0, 0, 0}),
+                from("10.0.0.1"), 0), is(MALFORMED));
+        assertThat(instance.check(ByteBuffer.wrap(new byte[]{0, 0, 0, 0, 7}),
+                from("10.0.0.1"), 0), is(ACCEPT));
+
+        good.put(good.limit() - 1, (byte) (good.get(good.limit() - 1) + 1));
+        assertThat(instance.check(good, from("10.0.0.1"), 0), is(MALFORMED));
+        assertThat(good.position(), is(0));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Random;
+
+/**
+ * Rough throughput numbers for sealing and opening packets compared to plain
+ * encoding. Run it directly; it isn't a unit test.
+ *
+ * @author Kevin Raoofi
+ */
+public class PacketSealerBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int PACKETS = 50000;
+
+    public static void main(String... args) throws Exception {
+        SocketAddress peer = new InetSocketAddress("127.0.0.1", 1234);
+        int[] sizes = {64, 512, 1180};
+
+        for (int size : sizes) {
+            byte[] data = new byte[size];
+            new Random(size).nextBytes(data);
+            ByteBuffer buf = ByteBuffer.allocate(
+                    ChatPacketFactory.MAX_DATAGRAM_SIZE);
+
+            for (int round = 0; round < ROUNDS; round++) {
+                PacketSealer sealer = new PacketSealer(new SessionKeyCache());
+                SessionKeyCache.Session s = sealer.getSessions().generate(
+                        peer, true);
+                PacketSealer opener = new PacketSealer(new SessionKeyCache());
+                opener.getSessions().put(peer, s.getTransformation(), s.key
+                        .getEncoded(), s.ivBase, false);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < PACKETS; i++) {
+                    ChatPacket cp = new ChatPacket((byte) 0, (byte) 0,
+                            (short) i, data, Instant.MIN);
+                    buf.clear();
+                    cp.toByteBuffer(buf);
+                }
+                long plain = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                for (int i = 0; i < PACKETS; i++) {
+                    ChatPacket cp = new ChatPacket((byte) 0, (byte) 0,
+                            (short) i, data, Instant.MIN);
+                    ChatPacket sealed = sealer.seal(cp, peer);
+                    buf.clear();
+                    sealed.toByteBuffer(buf);
+                    opener.open(sealed, peer);
+                }
+                long aead = System.nanoTime() - start;
+
+                System.out.printf("%5d bytes: plain %8.0f pkt/s, "
+                        + "seal+open %8.0f pkt/s (%5.1f MB/s)%n", size,
+                        PACKETS * 1e9 / plain, PACKETS * 1e9 / aead,
+                        (double) PACKETS * size * 1e3 / aead);
+            }
+        }
+    }
+}
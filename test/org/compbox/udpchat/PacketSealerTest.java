@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Tests all logic in {@link PacketSealer}
+ *
+ * @author Kevin Raoofi
+ */
+public class PacketSealerTest {
+
+    private static final SocketAddress PEER = new InetSocketAddress(
+            "127.0.0.1", 1234);
+
+    private PacketSealer instance;
+    /**
+     * The other end of {@link #instance}'s session
+     */
+    private PacketSealer peer;
+    private ChatPacket packet;
+
+    @Before
+    public void setUp() throws Exception {
+        instance = new PacketSealer(new SessionKeyCache());
+        SessionKeyCache.Session s = instance.getSessions().generate(PEER,
+                true);
+        peer = new PacketSealer(new SessionKeyCache());
+        peer.getSessions().put(PEER, s.getTransformation(), s.key
+                .getEncoded(), s.ivBase, false);
+        packet = new ChatPacket((byte) 0, (byte) 0, (short) 9,
+                new byte[]{1, 2, 10, 30, 32}, Instant.MIN);
+    }
+
+    /**
+     * Test that a sealed packet opens back up to the original
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        ChatPacket sealed = instance.seal(packet, PEER);
+        assertThat(sealed.getData().length, is(5 + PacketSealer.OVERHEAD));
+        assertThat(sealed.getVersion(), is(ChatPacketFactory.FLAG_SEALED));
+        assertThat(peer.open(sealed, PEER), is(packet));
+        assertThat(instance.open(peer.seal(packet, PEER), PEER), is(packet));
+    }
+
+    /**
+     * Test that tampering with the header is detected
+     */
+    @Test(expected = AEADBadTagException.class)
+    public void testTamperedHeader() throws Exception {
+        System.out.println("tamperedHeader");
+        ChatPacket sealed = instance.seal(packet, PEER);
+        ChatPacket forged = new ChatPacket(sealed.getType(), sealed
+                .getVersion(), (short) 10, sealed.getData(), Instant.MIN);
+        peer.open(forged, PEER);
+    }
+
+    /**
+     * Test that nonces don't repeat once the 16 bit sequence number wraps
+     */
+    @Test
+    public void testNoncesNeverRepeat() throws Exception {
+        System.out.println("noncesNeverRepeat");
+        SessionKeyCache.Session s = instance.getSessions().get(PEER);
+        ChatPacketFactory factory = new ChatPacketFactory();
+        Set<ByteBuffer> nonces = new HashSet<>();
+        int count = (1 << 16) + 100;
+        for (int i = 0; i < count; i++) {
+            ChatPacket cp = factory.createPacket(
+                    ChatPacketFactory.PacketType.ACK, new byte[2]);
+            ChatPacket sealed = instance.seal(cp, PEER);
+            long counter = ByteBuffer.wrap(sealed.getData()).getLong();
+            byte[] nonce = new byte[SessionKeyCache.Session.NONCE_SIZE];
+            PacketSealer.nonce(s.ivBase, sealed.getType(), counter, nonce);
+            assertTrue(nonces.add(ByteBuffer.wrap(nonce)));
+            if (i > count - 3) {
+                assertThat(peer.open(sealed, PEER).getSequence(), is(cp
+                        .getSequence()));
+            }
+        }
+        assertThat(nonces.size(), is(count));
+        assertThat(s.getRemaining(), is((1L << 32) - count));
+    }
+
+    /**
+     * Test that the two ends of a session never use the same nonce for the
+     * same type and count, and that a packet sent back to its sealer is refused
+     */
+    @Test
+    public void testDirections() throws Exception {
+        System.out.println("directions");
+        ChatPacket hello = new ChatPacket(
+                ChatPacketFactory.PacketType.HELLO.ID, (byte) 0, (short) 0,
+                new byte[8], Instant.MIN);
+        ChatPacket mine = instance.seal(hello, PEER);
+        ChatPacket theirs = peer.seal(hello, PEER);
+        byte[][] nonces = new byte[2][SessionKeyCache.Session.NONCE_SIZE];
+        long[] counters = new long[2];
+        int i = 0;
+        for (ChatPacket sealed : new ChatPacket[]{mine, theirs}) {
+            counters[i] = ByteBuffer.wrap(sealed.getData()).getLong();
+            PacketSealer.nonce(instance.getSessions().get(PEER).ivBase,
+                    sealed.getType(), counters[i], nonces[i]);
+            i++;
+        }
+        assertThat(counters[0] & ~PacketSealer.INITIATOR_BIT, is(0L));
+        assertThat(counters[1], is(0L));
+        assertFalse(ByteBuffer.wrap(nonces[0]).equals(ByteBuffer.wrap(
+                nonces[1])));
+
+        for (PacketSealer sealer : new PacketSealer[]{instance, peer}) {
+            try {
+                sealer.open(sealer == instance ? mine : theirs, PEER);
+                fail();
+            } catch (AEADBadTagException ex) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Test that packets to peers without a session go out as is
+     */
+    @Test
+    public void testNoSession() throws Exception {
+        System.out.println("noSession");
+        assertTrue(instance.seal(packet, new InetSocketAddress("127.0.0.1",
+                4321)) == packet);
+    }
+}
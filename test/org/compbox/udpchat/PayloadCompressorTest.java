@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+/**
+ * Tests all logic in {@link PayloadCompressor}
+ *
+ * @author Kevin Raoofi
+ */
+public class PayloadCompressorTest {
+
+    /**
+     * Test that a compressed packet decompresses back to the original
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        PayloadCompressor instance = new PayloadCompressor();
+        ChatPacket cp = new ChatPacket((byte) 0, (byte) 0, (short) 3,
+                "hello, how are you doing? let me know if you have any questions"
+                .getBytes(StandardCharsets.UTF_8), Instant.MIN);
+
+        ChatPacket compressed = instance.compress(cp);
+        assertTrue(compressed.getData().length < cp.getData().length);
+        assertThat(compressed.getVersion(),
+                is(ChatPacketFactory.FLAG_COMPRESSED));
+        assertThat(instance.decompress(compressed), is(cp));
+    }
+
+    /**
+     * Test that short payloads are passed through untouched
+     */
+    @Test
+    public void testBelowThreshold() throws Exception {
+        System.out.println("belowThreshold");
+        PayloadCompressor instance = new PayloadCompressor();
+        ChatPacket cp = new ChatPacket((byte) 0, (byte) 0, (short) 3,
+                "hi".getBytes(StandardCharsets.UTF_8), Instant.MIN);
+        assertTrue(instance.compress(cp) == cp);
+        assertTrue(instance.decompress(cp) == cp);
+    }
+
+    /**
+     * Test that a payload which grows far more than the first guess still
+     * decompresses
+     */
+    @Test
+    public void testLargeRoundTrip() throws Exception {
+        System.out.println("largeRoundTrip");
+        PayloadCompressor instance = new PayloadCompressor();
+        byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 'a');
+        ChatPacket cp = new ChatPacket((byte) 0, (byte) 0, (short) 3, data,
+                Instant.MIN);
+        ChatPacket compressed = instance.compress(cp);
+        assertTrue(compressed.getData().length * 100 < data.length);
+        assertThat(instance.decompress(compressed), is(cp));
+    }
+
+    /**
+     * Test that payloads of every length round trip, including those where a
+     * long match ends the stream just past a guessed buffer
+     */
+    @Test
+    public void testManyLengths() throws Exception {
+        System.out.println("manyLengths");
+        PayloadCompressor instance = new PayloadCompressor();
+        Random random = new Random(1);
+        for (int length = 1; length <= 4096; length++) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length;) {
+                int run = Math.min(length - i, 1 + random.nextInt(300));
+                Arrays.fill(data, i, i + run, (byte) random.nextInt(256));
+                i += run;
+            }
+            ChatPacket cp = new ChatPacket((byte) 0, (byte) 0, (short) 3,
+                    data, Instant.MIN);
+            assertThat(instance.decompress(instance.compress(cp)), is(cp));
+        }
+    }
+
+    /**
+     * Test that an original length which doesn't match the payload is
+     * rejected either way
+     */
+    @Test
+    public void testWrongLength() throws Exception {
+        System.out.println("wrongLength");
+        PayloadCompressor instance = new PayloadCompressor();
+        ChatPacket cp = new ChatPacket((byte) 0, (byte) 0, (short) 3,
+                "hello, how are you doing? let me know if you have any questions"
+                .getBytes(StandardCharsets.UTF_8), Instant.MIN);
+        byte[] data = instance.compress(cp).getData();
+
+        for (int length : new int[]{1 << 20, cp.getData().length - 1}) {
+            ByteBuffer.wrap(data).putInt(1, length);
+            try {
+                instance.decompress(cp.withPayload(
+                        ChatPacketFactory.FLAG_COMPRESSED, data));
+                fail();
+            } catch (DataFormatException ex) {
+            }
+        }
+    }
+
+    /**
+     * Test that training keeps the most frequent phrases
+     */
+    @Test
+    public void testTrain() {
+        System.out.println("train");
+        byte[] dict = ChatDictionary.train(Arrays.asList("see you soon",
+                "see you later", "see you tomorrow", "brb"), 64);
+        String text = new String(dict, StandardCharsets.UTF_8);
+        assertTrue(text.endsWith("see you "));
+        assertFalse(text.contains("brb"));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests all logic in {@link ReceiveBufferMonitor}
+ *
+ * @author Kevin Raoofi
+ */
+public class ReceiveBufferMonitorTest {
+
+    private static final long SECOND = 1000000000L;
+
+    private int buffer;
+    private int cap;
+    private DatagramTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        buffer = 64 * 1024;
+        cap = Integer.MAX_VALUE;
+        transport = new DatagramTransport() {
+
+            @Override
+            public void send(ByteBuffer buf, SocketAddress to) {
+            }
+
+            @Override
+            public SocketAddress receive(ByteBuffer buf) {
+                return null;
+            }
+
+            @Override
+            public SocketAddress getLocalAddress() {
+                return null;
+            }
+
+            @Override
+            public int getReceiveBufferSize() {
+                return buffer;
+            }
+
+            @Override
+            public void setReceiveBufferSize(int bytes) {
+                buffer = Math.min(bytes, cap);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Test that gaps at low rates are put down to loss on the way
+     */
+    @Test
+    public void testSlowGaps() {
+        System.out.println("slowGaps");
+        ReceiveBufferMonitor instance = new ReceiveBufferMonitor(transport,
+                1 << 24);
+        instance.check(0, 0);
+        instance.onReceive(100 * 1024);
+        assertFalse(instance.check(SECOND, 50));
+        assertThat(buffer, is(64 * 1024));
+    }
+
+    /**
+     * Test that gaps at high rates grow the buffer, up to the limit
+     */
+    @Test
+    public void testAutotune() {
+        System.out.println("autotune");
+        ReceiveBufferMonitor instance = new ReceiveBufferMonitor(transport,
+                1 << 20);
+        instance.check(0, 0);
+        instance.onReceive(1024 * 1024);
+        assertFalse(instance.check(SECOND / 2, 10));
+        assertTrue(instance.check(SECOND, 10));
+        int grownTo = buffer;
+        assertTrue(grownTo > 2 * 64 * 1024);
+        assertThat(instance.getGrowCount(), is(1));
+
+        // the same rate fits now
+        instance.onReceive(1024 * 1024);
+        assertFalse(instance.check(2 * SECOND, 20));
+        assertThat(buffer, is(grownTo));
+
+        instance.onReceive(10 * 1024 * 1024);
+        assertTrue(instance.check(3 * SECOND, 30));
+        assertThat(buffer, is(1 << 20));
+
+        instance.onReceive(10 * 1024 * 1024);
+        assertTrue(instance.check(4 * SECOND, 40));
+        assertThat(buffer, is(1 << 20));
+        assertThat(instance.getOverflowCount(), is(3L));
+        assertThat(instance.getGrowCount(), is(2));
+    }
+
+    /**
+     * Test that watching only never touches the buffer, and that a kernel
+     * which won't grant more stops being asked
+     */
+    @Test
+    public void testCapped() {
+        System.out.println("capped");
+        ReceiveBufferMonitor instance = new ReceiveBufferMonitor(transport, 0);
+        instance.check(0, 0);
+        instance.onReceive(10 * 1024 * 1024);
+        assertTrue(instance.check(SECOND, 10));
+        assertThat(buffer, is(64 * 1024));
+
+        cap = buffer;
+        instance.setMaxBuffer(1 << 24);
+        instance.onReceive(10 * 1024 * 1024);
+        assertTrue(instance.check(2 * SECOND, 20));
+        assertThat(instance.getGrowCount(), is(0));
+    }
+}
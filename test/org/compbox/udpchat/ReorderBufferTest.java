@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Tests all logic in {@link ReorderBuffer}
+ *
+ * @author Kevin Raoofi
+ */
+public class ReorderBufferTest {
+
+    private final List<Integer> delivered = new ArrayList<>();
+    private final List<Instant> times = new ArrayList<>();
+    private final Consumer<ChatPacket> out = (cp) -> {
+        delivered.add(cp.getSequence() & 0xFFFF);
+        times.add(cp.timestamp);
+    };
+
+    /**
+     * Test that packets are held until a gap fills and come out in order with
+     * timestamps in order
+     */
+    @Test
+    public void testGapFills() {
+        System.out.println("gapFills");
+        ReorderBuffer instance = new ReorderBuffer(1000, 1 << 16);
+        instance.offer(packet(0, 10), 0, out);
+        instance.offer(packet(2, 30), 0, out);
+        instance.offer(packet(3, 40), 0, out);
+        assertThat(delivered, is(Arrays.asList(0)));
+        assertThat(instance.getHeldCount(), is(2));
+
+        instance.offer(packet(1, 50), 0, out);
+        assertThat(delivered, is(Arrays.asList(0, 1, 2, 3)));
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue(times.get(i).isAfter(times.get(i - 1)));
+        }
+        assertThat(instance.getReorderedCount(), is(2L));
+    }
+
+    /**
+     * Test that a gap is given up on after the hold time, and that the
+     * missing packet is still passed on if it turns up later
+     */
+    @Test
+    public void testExpiry() {
+        System.out.println("expiry");
+        ReorderBuffer instance = new ReorderBuffer(1000, 1 << 16);
+        instance.offer(packet(0xFFFF, 1), 0, out);
+        instance.offer(packet(2, 2), 100, out);
+        instance.flushExpired(1000, out);
+        assertThat(delivered, is(Arrays.asList(0xFFFF)));
+        instance.flushExpired(1100, out);
+        assertThat(delivered, is(Arrays.asList(0xFFFF, 2)));
+        assertThat(instance.getSkippedCount(), is(2L));
+
+        instance.offer(packet(1, 3), 1200, out);
+        assertThat(delivered, is(Arrays.asList(0xFFFF, 2, 1)));
+        assertThat(instance.getLateCount(), is(1L));
+    }
+
+    /**
+     * Test that a stream which doesn't start at 0 waits out the hold time in
+     * case anything earlier is still on its way
+     */
+    @Test
+    public void testStart() {
+        System.out.println("start");
+        ReorderBuffer instance = new ReorderBuffer(1000, 1 << 16);
+        instance.offer(packet(12, 1), 0, out);
+        instance.offer(packet(10, 2), 10, out);
+        instance.offer(packet(13, 3), 20, out);
+        assertThat(delivered.size(), is(0));
+        instance.flushExpired(500, out);
+        assertThat(delivered.size(), is(0));
+        instance.flushExpired(1010, out);
+        assertThat(delivered, is(Arrays.asList(10, 12, 13)));
+        assertThat(instance.getSkippedCount(), is(1L));
+    }
+
+    /**
+     * Test that while the start is being worked out, a packet too far either
+     * side of those held to share the buffer with them isn't lost, and
+     * neither are they
+     */
+    @Test
+    public void testWideStart() {
+        System.out.println("wideStart");
+        ReorderBuffer instance = new ReorderBuffer(1000, 1 << 16);
+        instance.offer(packet(10, 1), 0, out);
+        instance.offer(packet(10 + ReorderBuffer.CAPACITY, 2), 0, out);
+        assertThat(delivered, is(Arrays.asList(10,
+                10 + ReorderBuffer.CAPACITY)));
+        assertThat(instance.getHeldCount(), is(0));
+
+        delivered.clear();
+        instance = new ReorderBuffer(1000, 1 << 16);
+        instance.offer(packet(2000, 1), 0, out);
+        instance.offer(packet(2001, 2), 0, out);
+        instance.offer(packet(2001 - ReorderBuffer.CAPACITY, 3), 0, out);
+        assertThat(delivered, is(Arrays.asList(2001 - ReorderBuffer.CAPACITY)));
+        instance.flushExpired(1000, out);
+        assertThat(delivered, is(Arrays.asList(2001 - ReorderBuffer.CAPACITY,
+                2000, 2001)));
+    }
+
+    /**
+     * Test that holding too much gives up on the gap early
+     */
+    @Test
+    public void testMemoryLimit() {
+        System.out.println("memoryLimit");
+        ReorderBuffer instance = new ReorderBuffer(1000, 2);
+        instance.offer(packet(0, 1), 0, out);
+        instance.offer(packet(2, 2), 0, out);
+        instance.offer(packet(3, 3), 0, out);
+        assertThat(delivered, is(Arrays.asList(0)));
+        instance.offer(packet(4, 4), 0, out);
+        assertThat(delivered, is(Arrays.asList(0, 2, 3, 4)));
+        assertThat(instance.getHeldCount(), is(0));
+    }
+
+    private static ChatPacket packet(int seq, long second) {
+        return new ChatPacket((byte) 0, (byte) 0, (short) seq, new byte[]{1},
+                Instant.ofEpochSecond(second));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+
+/**
+ * Tests all logic in {@link ReplayWindow}
+ *
+ * @author Kevin Raoofi
+ */
+public class ReplayWindowTest {
+
+    /**
+     * Test that duplicates are caught whether in or out of order
+     */
+    @Test
+    public void testDuplicates() {
+        System.out.println("duplicates");
+        ReplayWindow instance = new ReplayWindow(64);
+        assertTrue(instance.accept((short) 5));
+        assertTrue(instance.accept((short) 7));
+        assertTrue(instance.accept((short) 6));
+        assertFalse(instance.accept((short) 6));
+        assertFalse(instance.accept((short) 7));
+        assertTrue(instance.accept((short) 4));
+        assertThat(instance.getDuplicateCount(), is(2L));
+        assertThat(instance.getHighest(), is(7));
+    }
+
+    /**
+     * Test that anything further back than the window is dropped
+     */
+    @Test
+    public void testOutOfWindow() {
+        System.out.println("outOfWindow");
+        ReplayWindow instance = new ReplayWindow(64);
+        assertTrue(instance.accept((short) 100));
+        assertTrue(instance.accept((short) 37));
+        assertFalse(instance.accept((short) 36));
+        assertThat(instance.getOutOfWindowCount(), is(1L));
+
+        assertTrue(instance.accept((short) 200));
+        assertTrue(instance.accept((short) 199));
+        assertFalse(instance.accept((short) 100));
+    }
+
+    /**
+     * Test that the window follows the sequence number around when it wraps
+     */
+    @Test
+    public void testWrapAround() {
+        System.out.println("wrapAround");
+        ReplayWindow instance = new ReplayWindow(64);
+        assertTrue(instance.accept((short) 0xFFFE));
+        assertTrue(instance.accept((short) 1));
+        assertTrue(instance.accept((short) 0xFFFF));
+        assertTrue(instance.accept((short) 0));
+        assertFalse(instance.accept((short) 0xFFFE));
+        assertThat(instance.getHighest(), is(1));
+    }
+
+    /**
+     * Test that sequence numbers jumped over count as missing until they
+     * turn up
+     */
+    @Test
+    public void testMissing() {
+        System.out.println("missing");
+        ReplayWindow instance = new ReplayWindow(64);
+        assertTrue(instance.accept((short) 1));
+        assertTrue(instance.accept((short) 5));
+        assertThat(instance.getMissingCount(), is(3L));
+        assertTrue(instance.accept((short) 3));
+        assertFalse(instance.accept((short) 3));
+        assertThat(instance.getMissingCount(), is(2L));
+        assertTrue(instance.accept((short) 6));
+        assertThat(instance.getMissingCount(), is(2L));
+    }
+
+    /**
+     * Test that packets older than the first one seen weren't missing, so
+     * they don't take the count below zero
+     */
+    @Test
+    public void testMissingBeforeFirst() {
+        System.out.println("missingBeforeFirst");
+        ReplayWindow instance = new ReplayWindow(64);
+        assertTrue(instance.accept((short) 5));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(instance.accept((short) i));
+        }
+        assertThat(instance.getMissingCount(), is(0L));
+        assertTrue(instance.accept((short) 8));
+        assertTrue(instance.accept((short) 7));
+        assertThat(instance.getMissingCount(), is(1L));
+
+        // far enough along that the first one is out of the window
+        for (int i = 9; i < 200; i++) {
+            assertTrue(instance.accept((short) i));
+        }
+        assertTrue(instance.accept((short) 202));
+        assertTrue(instance.accept((short) 200));
+        assertThat(instance.getMissingCount(), is(2L));
+    }
+}
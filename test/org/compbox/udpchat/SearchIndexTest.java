@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests all logic in {@link SearchIndex}
+ *
+ * @author Kevin Raoofi
+ */
+public class SearchIndexTest {
+
+    private static ChatPacket message(int second, String text) {
+        return new ChatPacket(ChatPacketFactory.PacketType.MESSAGE.ID,
+                (byte) 0, (short) second, text.getBytes(
+                        StandardCharsets.UTF_8), Instant.ofEpochSecond(second));
+    }
+
+    private static List<String> texts(List<ChatPacket> found) {
+        List<String> texts = new ArrayList<>();
+        found.forEach((cp) -> texts.add(cp.getText().toString()));
+        return texts;
+    }
+
+    /**
+     * Test that text is split into lower cased words
+     */
+    @Test
+    public void testTokenize() {
+        System.out.println("tokenize");
+        assertThat(SearchIndex.tokenize("Hello, e-mail  W\u00d6RLD 42!"),
+                is(Arrays.asList("hello", "e", "mail", "w\u00f6rld", "42")));
+        assertThat(SearchIndex.tokenize(" ... ").isEmpty(), is(true));
+    }
+
+    /**
+     * Test words, prefixes and phrases, and that results come back in time
+     * order
+     */
+    @Test
+    public void testQueries() throws Exception {
+        System.out.println("queries");
+        try (SearchIndex instance = new SearchIndex()) {
+            // added out of order, as they might arrive
+            instance.add(message(3, "the quick brown fox"));
+            instance.add(message(1, "Quick thinking"));
+            instance.add(message(2, "brown quick fox"));
+            instance.add(message(4, "quicksand and a fox"));
+            assertTrue(instance.awaitIndexed(5, TimeUnit.SECONDS));
+            assertThat(instance.size(), is(4));
+
+            assertThat(texts(instance.search("QUICK")), is(Arrays.asList(
+                    "Quick thinking", "brown quick fox",
+                    "the quick brown fox")));
+            assertThat(texts(instance.search("quick*")).size(), is(4));
+            assertThat(texts(instance.search("\"quick brown\"")), is(Arrays
+                    .asList("the quick brown fox")));
+            assertThat(texts(instance.search("quick fox brown")), is(Arrays
+                    .asList("brown quick fox", "the quick brown fox")));
+            assertThat(texts(instance.search("fox", 2)), is(Arrays.asList(
+                    "the quick brown fox", "quicksand and a fox")));
+            assertThat(instance.search("fox cat").isEmpty(), is(true));
+            assertThat(instance.search("  ").isEmpty(), is(true));
+        }
+    }
+
+    /**
+     * Test that only MESSAGEs are indexed
+     */
+    @Test
+    public void testOnlyMessages() throws Exception {
+        System.out.println("onlyMessages");
+        try (SearchIndex instance = new SearchIndex()) {
+            instance.accept(new ChatPacket(ChatPacketFactory.PacketType.ACK.ID,
+                    (byte) 0, (short) 0, new byte[]{'h', 'i'}, Instant.now()),
+                    null);
+            assertTrue(instance.awaitIndexed(5, TimeUnit.SECONDS));
+            assertThat(instance.size(), is(0));
+        }
+    }
+
+    /**
+     * Test that spilled segments answer the same as memory, and are deleted on
+     * close
+     */
+    @Test
+    public void testSpill() throws Exception {
+        System.out.println("spill");
+        File dir = Files.createTempDirectory("index").toFile();
+        SearchIndex instance = new SearchIndex();
+        instance.setSpill(dir, 256);
+        for (int i = 0; i < 500; i++) {
+            instance.add(message(i, "message number " + i + (i % 10 == 0
+                    ? " round" : "")));
+            if (i % 50 == 0) {
+                // smaller batches, so there's more than one segment
+                assertTrue(instance.awaitIndexed(5, TimeUnit.SECONDS));
+            }
+        }
+        assertTrue(instance.awaitIndexed(5, TimeUnit.SECONDS));
+        assertThat(dir.list().length > 1, is(true));
+
+        assertThat(instance.search("message").size(), is(500));
+        assertThat(instance.search("round").size(), is(50));
+        assertThat(texts(instance.search("\"number 49\"")), is(Arrays.asList(
+                "message number 49")));
+        assertThat(instance.search("49*").size(), is(11));
+        assertThat(texts(instance.search("round", 1)), is(Arrays.asList(
+                "message number 490 round")));
+
+        instance.close();
+        assertThat(dir.list().length, is(0));
+        dir.delete();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests all logic in {@link SequenceRingBuffer}
+ *
+ * @author Kevin Raoofi
+ */
+public class SequenceRingBufferTest {
+
+    /**
+     * Test insert, lookup, removal and ordered iteration
+     */
+    @Test
+    public void testBasics() {
+        System.out.println("basics");
+        SequenceRingBuffer<String> instance = new SequenceRingBuffer<>(8);
+        assertTrue(instance.put((short) 5, "five"));
+        assertTrue(instance.put((short) 3, "three"));
+        assertTrue(instance.put((short) 7, "seven"));
+        assertThat(instance.get((short) 3), is("three"));
+        assertThat(instance.get((short) 11), is(nullValue()));
+        assertThat(instance.size(), is(3));
+
+        assertThat(order(instance), is(Arrays.asList(3, 5, 7)));
+        assertThat(instance.remove((short) 3), is("three"));
+        assertThat(instance.getLowest(), is(5));
+        assertThat(order(instance), is(Arrays.asList(5, 7)));
+    }
+
+    /**
+     * Test removing ACKed ranges, including across the wrap
+     */
+    @Test
+    public void testRemoveRanges() {
+        System.out.println("removeRanges");
+        SequenceRingBuffer<String> instance = new SequenceRingBuffer<>(16);
+        for (int i = 0xFFFA; i < 0xFFFA + 10; i++) {
+            instance.put((short) i, "x");
+        }
+        assertThat(instance.removeUpTo((short) 0xFFFD), is(4));
+        assertThat(instance.getLowest(), is(0xFFFE));
+        assertThat(instance.removeRange((short) 0, (short) 1), is(2));
+        assertThat(order(instance), is(Arrays.asList(0xFFFE, 0xFFFF, 2, 3)));
+        assertThat(instance.removeUpTo((short) 0xFFF0), is(0));
+        assertThat(instance.removeUpTo((short) 3), is(4));
+        assertTrue(instance.isEmpty());
+    }
+
+    /**
+     * Test that running too far ahead pushes out the oldest entries and that
+     * anything too old is refused
+     */
+    @Test
+    public void testOverwrite() {
+        System.out.println("overwrite");
+        SequenceRingBuffer<String> instance = new SequenceRingBuffer<>(4);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(instance.put((short) i, "x"));
+        }
+        assertThat(instance.getOverwrittenCount(), is(2L));
+        assertThat(order(instance), is(Arrays.asList(2, 3, 4, 5)));
+        assertFalse(instance.put((short) 1, "x"));
+    }
+
+    private static List<Integer> order(SequenceRingBuffer<?> rb) {
+        List<Integer> seqs = new ArrayList<>();
+        rb.forEach((seq, v) -> seqs.add(seq & 0xFFFF));
+        return seqs;
+    }
+}
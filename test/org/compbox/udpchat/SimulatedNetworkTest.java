@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests all logic in {@link SimulatedNetwork}, and the chat code running on
+ * top of it
+ *
+ * @author Kevin Raoofi
+ */
+public class SimulatedNetworkTest {
+
+    private static final InetSocketAddress A = new InetSocketAddress(
+            "10.0.0.1", 1000);
+    private static final InetSocketAddress B = new InetSocketAddress(
+            "10.0.0.2", 2000);
+
+    /**
+     * Test that the same seed gives the same run
+     */
+    @Test
+    public void testDeterministic() throws Exception {
+        System.out.println("deterministic");
+        assertThat(run(42), is(run(42)));
+        assertThat(run(42), is(not(run(43))));
+    }
+
+    private static List<String> run(long seed) throws Exception {
+        SimulatedNetwork net = new SimulatedNetwork(seed);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withLoss(0.2)
+                .withDuplication(0.1).withReordering(0.3, 5000)
+                .withDelay(1000, 2000));
+        SimulatedNetwork.Endpoint a = net.bind(A);
+        SimulatedNetwork.Endpoint b = net.bind(B);
+        List<String> seen = new ArrayList<>();
+        ByteBuffer in = ByteBuffer.allocate(16);
+        b.setListener(() -> {
+            try {
+                in.clear();
+                b.receive(in);
+                seen.add(in.get(0) + "@" + net.nanoTime());
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        for (int i = 0; i < 50; i++) {
+            a.send(ByteBuffer.wrap(new byte[]{(byte) i}), B);
+        }
+        net.runUntilIdle();
+        return seen;
+    }
+
+    /**
+     * Test that bandwidth and delay set arrival times
+     */
+    @Test
+    public void testBandwidthAndDelay() throws Exception {
+        System.out.println("bandwidthAndDelay");
+        SimulatedNetwork net = new SimulatedNetwork(1);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withBandwidth(1000)
+                .withDelay(TimeUnit.MILLISECONDS.toNanos(10), 0));
+        SimulatedNetwork.Endpoint a = net.bind(A);
+        net.bind(B);
+        for (int i = 0; i < 3; i++) {
+            a.send(ByteBuffer.allocate(100), B);
+        }
+        net.runFor(TimeUnit.MILLISECONDS.toNanos(110));
+        assertThat(net.getDeliveredCount(), is(1L));
+        net.runUntilIdle();
+        assertThat(net.getDeliveredCount(), is(3L));
+        assertThat(net.nanoTime(), is(TimeUnit.MILLISECONDS.toNanos(310)));
+
+        a.send(ByteBuffer.allocate(1), new InetSocketAddress("10.0.0.9", 9));
+        net.runUntilIdle();
+        assertThat(net.getUnroutableCount(), is(1L));
+    }
+
+    /**
+     * Test that with reordering on, a server behind a reordering link still
+     * stores every message in sequence order and the client sees them all
+     * ACKed
+     */
+    @Test
+    public void testChatOverReorderingLink() throws Exception {
+        System.out.println("chatOverReorderingLink");
+        SimulatedNetwork net = new SimulatedNetwork(7);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withDelay(1000000, 500000)
+                .withReordering(0.3, 3000000).withDuplication(0.05));
+        SortedSet<ChatPacket> stored = Collections.synchronizedSortedSet(
+                new TreeSet<>((o1, o2) -> o1.timestamp.compareTo(
+                        o2.timestamp)));
+        SimulatedNetwork.Endpoint serverEp = net.bind(A);
+        ChatServer server = new ChatServer(stored, serverEp, net::nanoTime);
+        server.setReordering(20, TimeUnit.MILLISECONDS, 1 << 16);
+        serverEp.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+
+        SimulatedNetwork.Endpoint clientEp = net.bind(B);
+        ChatClient client = new ChatClient(new TreeSet<>(
+                ChatPacket.getSequenceComparator()), clientEp, A,
+                ChatPacketFragmenter.DEFAULT_MTU, (byte) 0);
+        clientEp.setListener(() -> {
+            try {
+                client.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+
+        for (int i = 0; i < 40; i++) {
+            client.sendMsg("message " + i);
+        }
+        net.runUntilIdle();
+        net.runFor(TimeUnit.MILLISECONDS.toNanos(50));
+        server.tick();
+        net.runUntilIdle();
+
+        assertThat(stored.size(), is(40));
+        int expected = 0;
+        synchronized (stored) {
+            for (ChatPacket cp : stored) {
+                assertThat(new String(cp.getData()), is("message "
+                        + expected++));
+            }
+        }
+        assertThat(client.getUnackedMsgs().size(), is(0));
+        assertTrue(server.getReorderBuffer(B).getReorderedCount() > 0);
+    }
+
+    /**
+     * Test that a MESSAGE which can't be decompressed is neither ACKed nor
+     * counted as received, so the sender can still try again
+     */
+    @Test
+    public void testUndecodableNotAcked() throws Exception {
+        System.out.println("undecodableNotAcked");
+        SimulatedNetwork net = new SimulatedNetwork(5);
+        SortedSet<ChatPacket> stored = Collections.synchronizedSortedSet(
+                new TreeSet<>((o1, o2) -> o1.timestamp.compareTo(
+                        o2.timestamp)));
+        SimulatedNetwork.Endpoint serverEp = net.bind(A);
+        ChatServer server = new ChatServer(stored, serverEp, net::nanoTime);
+        serverEp.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        SimulatedNetwork.Endpoint b = net.bind(B);
+
+        // a Deflate header claiming 64 bytes, followed by garbage
+        ChatPacket bad = new ChatPacket(ChatPacketFactory.PacketType.MESSAGE.ID,
+                ChatPacketFactory.FLAG_COMPRESSED, (short) 0, new byte[]{
+                    DeflatePayloadCodec.ID, 0, 0, 0, 64, (byte) 0xFF,
+                    (byte) 0xFF, (byte) 0xFF}, Instant.MIN);
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        bad.toByteBuffer(buf);
+        buf.flip();
+        b.send(buf, A);
+        net.runUntilIdle();
+
+        assertThat(stored.size(), is(0));
+        assertThat(server.getReplayWindow(B), is(nullValue()));
+        assertThat(server.getAckTracker(B), is(nullValue()));
+        buf.clear();
+        assertThat(b.receive(buf), is(nullValue()));
+    }
+
+    /**
+     * Test that a new client at the address of an old one, counting its
+     * sequence numbers from 0 again, has its messages stored and ACKed
+     */
+    @Test
+    public void testReconnect() throws Exception {
+        System.out.println("reconnect");
+        SimulatedNetwork net = new SimulatedNetwork(11);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withDelay(1000000, 0));
+        SortedSet<ChatPacket> stored = Collections.synchronizedSortedSet(
+                new TreeSet<>((o1, o2) -> o1.timestamp.compareTo(
+                        o2.timestamp)));
+        SimulatedNetwork.Endpoint serverEp = net.bind(A);
+        ChatServer server = new ChatServer(stored, serverEp, net::nanoTime);
+        serverEp.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+
+        long lastSession = 0;
+        for (int run = 0; run < 2; run++) {
+            SimulatedNetwork.Endpoint clientEp = net.bind(B);
+            ChatClient client = new ChatClient(new TreeSet<>(
+                    ChatPacket.getSequenceComparator()), clientEp, A,
+                    ChatPacketFragmenter.DEFAULT_MTU, (byte) 0);
+            clientEp.setListener(() -> {
+                try {
+                    client.poll();
+                } catch (Exception ex) {
+                    throw new AssertionError(ex);
+                }
+            });
+            for (int i = 0; i < 5; i++) {
+                client.sendMsg("run " + run + " message " + i);
+            }
+            net.runUntilIdle();
+
+            assertTrue(client.isEstablished());
+            assertThat(client.getUnackedMsgs().size(), is(0));
+            assertThat(server.getSessionId(B), is(client.getSessionId()));
+            assertThat(client.getSessionId(), is(not(lastSession)));
+            lastSession = client.getSessionId();
+            // the HELLO started the ACKs off cumulative
+            ByteBuffer ack = ByteBuffer.allocate(64);
+            server.getAckTracker(B).writeAck(ack);
+            ack.flip();
+            assertTrue(AckTracker.isCumulative(ack));
+            assertThat(ack.getShort(), is((short) 4));
+            clientEp.close();
+        }
+        assertThat(stored.size(), is(10));
+        assertThat(server.getReplayWindow(B).getHighest(), is(4));
+    }
+
+    /**
+     * Test that a server with a packet filter lets a HELLO and the MESSAGEs
+     * after it through
+     */
+    @Test
+    public void testFilteredSession() throws Exception {
+        System.out.println("filteredSession");
+        SimulatedNetwork net = new SimulatedNetwork(13);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withDelay(1000000, 0));
+        SortedSet<ChatPacket> stored = Collections.synchronizedSortedSet(
+                new TreeSet<>((o1, o2) -> o1.timestamp.compareTo(
+                        o2.timestamp)));
+        SimulatedNetwork.Endpoint serverEp = net.bind(A);
+        ChatServer server = new ChatServer(stored, serverEp, net::nanoTime);
+        PacketFilter filter = new PacketFilter();
+        filter.setRateLimit(1000, 100);
+        server.setPacketFilter(filter);
+        serverEp.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+
+        SimulatedNetwork.Endpoint clientEp = net.bind(B);
+        ChatClient client = new ChatClient(new TreeSet<>(
+                ChatPacket.getSequenceComparator()), clientEp, A,
+                ChatPacketFragmenter.DEFAULT_MTU, (byte) 0);
+        clientEp.setListener(() -> {
+            try {
+                client.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            client.sendMsg("message " + i);
+        }
+        net.runUntilIdle();
+
+        assertTrue(client.isEstablished());
+        assertThat(stored.size(), is(5));
+        assertThat(client.getUnackedMsgs().size(), is(0));
+        assertThat(filter.getCount(PacketFilter.Verdict.MALFORMED), is(0L));
+    }
+
+    /**
+     * Test that a server forgets a peer which has gone quiet, sending the ACK
+     * it was still owed, without losing count of what went missing, and
+     * takes it as new when it's heard from again
+     */
+    @Test
+    public void testIdlePeer() throws Exception {
+        System.out.println("idlePeer");
+        SimulatedNetwork net = new SimulatedNetwork(17);
+        net.setLink(SimulatedNetwork.Link.PERFECT.withDelay(1000000, 0));
+        SortedSet<ChatPacket> stored = Collections.synchronizedSortedSet(
+                new TreeSet<>((o1, o2) -> o1.timestamp.compareTo(
+                        o2.timestamp)));
+        SimulatedNetwork.Endpoint serverEp = net.bind(A);
+        ChatServer server = new ChatServer(stored, serverEp, net::nanoTime);
+        server.setDelayedAcks(100, 1, TimeUnit.HOURS);
+        server.setPeerIdleTimeout(1, TimeUnit.SECONDS);
+        serverEp.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+
+        SimulatedNetwork.Endpoint clientEp = net.bind(B);
+        ChatClient client = new ChatClient(new TreeSet<>(
+                ChatPacket.getSequenceComparator()), clientEp, A,
+                ChatPacketFragmenter.DEFAULT_MTU, (byte) 0);
+        clientEp.setListener(() -> {
+            try {
+                client.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            client.sendMsg("message " + i);
+        }
+        net.runUntilIdle();
+        server.markReceived(B, (short) 7);
+        assertThat(server.getPeerCount(), is(1));
+        assertThat(client.getUnackedMsgs().size(), is(not(0)));
+        long missing = server.getMissingCount();
+        assertThat(missing, is(2L));
+
+        net.runFor(TimeUnit.MILLISECONDS.toNanos(500));
+        server.tick();
+        assertThat(server.getPeerCount(), is(1));
+        net.runFor(TimeUnit.MILLISECONDS.toNanos(600));
+        server.tick();
+        net.runUntilIdle();
+        assertThat(server.getPeerCount(), is(0));
+        assertNull(server.getReplayWindow(B));
+        assertNull(server.getAckTracker(B));
+        assertThat(server.getSessionId(B), is(0L));
+        assertThat(server.getMissingCount(), is(missing));
+        assertThat(client.getUnackedMsgs().size(), is(0));
+
+        client.sendMsg("message 5");
+        net.runUntilIdle();
+        assertThat(stored.size(), is(6));
+        assertThat(server.getPeerCount(), is(1));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests all logic in {@link StateSnapshot}, and restoring a server from one
+ *
+ * @author Kevin Raoofi
+ */
+public class StateSnapshotTest {
+
+    private static final InetSocketAddress A = new InetSocketAddress(
+            "10.0.0.1", 1000);
+    private static final InetSocketAddress B = new InetSocketAddress(
+            "10.0.0.2", 2000);
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = java.nio.file.Files.createTempDirectory("snapshot").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static SortedSet<ChatPacket> store() {
+        return Collections.synchronizedSortedSet(new TreeSet<>(
+                (o1, o2) -> o1.timestamp.compareTo(o2.timestamp)));
+    }
+
+    /**
+     * Test that a snapshot reads back as written, and that damage is noticed
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        System.out.println("roundTrip");
+        File file = new File(dir, "state");
+        assertThat(StateSnapshot.read(file), is(nullValue()));
+
+        ChatPacket cp = new ChatPacket(ChatPacketFactory.PacketType.MESSAGE.ID,
+                (byte) 0, (short) 7, "hi".getBytes(StandardCharsets.UTF_8),
+                Instant.ofEpochSecond(5, 6));
+        StateSnapshot instance = new StateSnapshot(1234, (short) 99,
+                Collections.singletonMap(B, (short) 0xFFFE), Arrays.asList(
+                        cp));
+        instance.write(file);
+        StateSnapshot read = StateSnapshot.read(file);
+        assertThat(read.getJournalPosition(), is(1234L));
+        assertThat(read.getNextSequence(), is((short) 99));
+        assertThat(read.getPeers(), is(instance.getPeers()));
+        assertThat(read.getRecent(), is(instance.getRecent()));
+        assertThat(new File(dir, "state.tmp").exists(), is(false));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(20);
+            raf.write(0x55);
+        }
+        try {
+            StateSnapshot.read(file);
+            fail();
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a restarted server gets the snapshot's recent messages plus
+     * the journal after it, and still knows what each peer has sent
+     */
+    @Test
+    public void testRestore() throws Exception {
+        System.out.println("restore");
+        File journalFile = new File(dir, "journal");
+        File snapshotFile = new File(dir, "state");
+
+        SimulatedNetwork net = new SimulatedNetwork(3);
+        SimulatedNetwork.Endpoint serverEp = net.bind(A);
+        ChatServer server = new ChatServer(store(), serverEp, net::nanoTime);
+        HistoryJournal journal = new HistoryJournal(journalFile);
+        server.setJournal(journal);
+        server.setSnapshots(snapshotFile, 10, 1, TimeUnit.MINUTES);
+        assertThat(server.restore(), is(0));
+        serverEp.setListener(() -> {
+            try {
+                server.poll();
+            } catch (Exception ex) {
+                throw new AssertionError(ex);
+            }
+        });
+        SimulatedNetwork.Endpoint clientEp = net.bind(B);
+        ChatClient client = new ChatClient(new TreeSet<>(
+                ChatPacket.getSequenceComparator()), clientEp, A,
+                ChatPacketFragmenter.DEFAULT_MTU, (byte) 0);
+
+        for (int i = 0; i < 25; i++) {
+            if (i == 20) {
+                server.writeSnapshot();
+            }
+            client.sendMsg("message " + i);
+            net.runUntilIdle();
+        }
+        journal.close();
+
+        SortedSet<ChatPacket> stored = store();
+        ChatServer restarted = new ChatServer(stored, new SimulatedNetwork(3)
+                .bind(A), System::nanoTime);
+        restarted.setJournal(new HistoryJournal(journalFile));
+        restarted.setSnapshots(snapshotFile, 10, 1, TimeUnit.MINUTES);
+        assertThat(restarted.restore(), is(5));
+        assertThat(stored.size(), is(15));
+        assertThat(stored.first().getText().toString(), is("message 10"));
+        assertThat(stored.last().getText().toString(), is("message 24"));
+        // 20 to 24 came after the snapshot, from the journal
+        assertThat(restarted.getReplayWindow(B).getHighest(), is(24));
+        assertFalse(restarted.getReplayWindow(B).accept((short) 12));
+        assertFalse(restarted.getReplayWindow(B).accept((short) 22));
+        assertTrue(restarted.getReplayWindow(B).accept((short) 25));
+        restarted.getJournal().close();
+
+        // without a snapshot everything is replayed
+        snapshotFile.delete();
+        stored = store();
+        restarted = new ChatServer(stored, new SimulatedNetwork(3).bind(A),
+                System::nanoTime);
+        restarted.setJournal(new HistoryJournal(journalFile));
+        assertThat(restarted.restore(), is(25));
+        assertThat(stored.size(), is(25));
+        restarted.getJournal().close();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2014 Kevin Raoofi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.compbox.udpchat;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+import org.junit.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Tests all logic in {@link TransportConfig}
+ *
+ * @author Kevin Raoofi
+ */
+public class TransportConfigTest {
+
+    /**
+     * Test that options end up on the channel
+     */
+    @Test
+    public void testConfigure() throws Exception {
+        System.out.println("configure");
+        TransportConfig config = TransportConfig.DEFAULT.withReceiveBuffer(
+                32 * 1024).withSendBuffer(32 * 1024).withDscp(46).withReuse(
+                        true, true).withMulticast(4, false);
+        try (ChannelTransport t = ChannelTransport.open(new InetSocketAddress(
+                "127.0.0.1", 0), config)) {
+            DatagramChannel ch = t.getChannel();
+            assertTrue(t.getReceiveBufferSize() >= 32 * 1024);
+            assertTrue(ch.getOption(StandardSocketOptions.SO_SNDBUF)
+                    >= 32 * 1024);
+            assertTrue(ch.getOption(StandardSocketOptions.SO_REUSEADDR));
+            assertThat(ch.getOption(StandardSocketOptions.IP_MULTICAST_TTL),
+                    is(4));
+            assertFalse(ch.getOption(StandardSocketOptions.IP_MULTICAST_LOOP));
+
+            t.setReceiveBufferSize(64 * 1024);
+            assertTrue(t.getReceiveBufferSize() >= 64 * 1024);
+        }
+    }
+
+    /**
+     * Test that nonsense is refused and copies leave the original alone
+     */
+    @Test
+    public void testWith() {
+        System.out.println("with");
+        TransportConfig config = TransportConfig.DEFAULT.withDscp(46);
+        assertThat(config.getTrafficClass(), is(184));
+        assertThat(TransportConfig.DEFAULT.getTrafficClass(), is(-1));
+        assertThat(config.withAutotune(1 << 20).getMaxReceiveBuffer(),
+                is(1 << 20));
+        try {
+            config.withDscp(64);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+        try {
+            config.withReceiveBuffer(-1);
+            fail();
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+}